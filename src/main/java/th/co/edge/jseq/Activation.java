@@ -22,6 +22,12 @@
 
 package th.co.edge.jseq;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
 import com.sun.jdi.Method;
 
 /**
@@ -33,11 +39,25 @@ public class Activation implements java.io.Serializable {
     private static final int INDENT_SIZE = 4;
 
     private Activation parent;
+    private String vmName;
     private String className;
     private Method method;
     private int frameCount;
     private int numRepetitions = 1;
+    private int loopLength = 0;
+    private int numLoopIterations = 1;
+    private long entryTime;
+    private long exitTime;
+    private boolean timed = false;
+    // Over all the calls this activation represents, see addRepetition.
+    private long minTime;
+    private long maxTime;
+    private long totalTime;
     private ActivationList nestedActivations = new ActivationList();
+    // Set once a root activation and its nested activations no longer change.
+    private transient volatile boolean complete = false;
+    // The structural hash code, see hashCode, or 0 if not computed yet.
+    private transient int hash = 0;
 
     /**
      * Creates a new <code>Activation</code> instance, representing a certain
@@ -53,8 +73,8 @@ public class Activation implements java.io.Serializable {
      * @param method
      *            the <code>Method</code> that is being called
      * @param frameCount
-     *            the index number of the stack frame associated with this
-     *            <code>Association</code>
+     *            the depth of this call among the traced calls, starting at
+     *            one for a root activation, or -1 if unknown
      */
     public Activation(Activation parent, String className, Method method,
             int frameCount) {
@@ -63,6 +83,7 @@ public class Activation implements java.io.Serializable {
         this.method = method;
         this.frameCount = frameCount;
         if (parent != null) {
+            this.vmName = parent.vmName;
             parent.add(this);
         }
     }
@@ -79,14 +100,52 @@ public class Activation implements java.io.Serializable {
      *
      * @return a copy of this <code>Activation</code> instance
      */
-    public Activation copy(Activation parentOfCopy) {
-        Activation copy =
-                new Activation(parentOfCopy, getClassName(), getMethod(),
-                        getFrameCount());
-        for (Activation child : nestedActivations) {
-            child.copy(copy);
-        }
-        return copy;
+    public Activation copy(final Activation parentOfCopy) {
+        final List<Activation> copies = new ArrayList<Activation>();
+        copies.add(parentOfCopy);
+        accept(new ActivationVisitor() {
+            public boolean visitEnter(Activation activation) {
+                Activation parent = copies.get(copies.size() - 1);
+                Activation copy =
+                        new Activation(parent, activation.getClassName(),
+                                activation.getMethod(), activation
+                                        .getFrameCount());
+                copy.copyAttributes(activation);
+                copy.numRepetitions = activation.numRepetitions;
+                copy.numLoopIterations = activation.numLoopIterations;
+                if (parent != null) {
+                    // The rest of the loop body is only copied along with
+                    // the parent.
+                    copy.loopLength = activation.loopLength;
+                }
+                copies.add(copy);
+                return true;
+            }
+
+            public void visitLeave(Activation activation) {
+                // The copy of this activation is kept, to be returned.
+                if (copies.size() > 2) {
+                    copies.remove(copies.size() - 1);
+                }
+            }
+        });
+        return copies.get(1);
+    }
+
+    /**
+     * Visits this <code>Activation</code> and recursively its nested
+     * activations, in the order the calls were made. The activations are
+     * walked with an explicit stack, so the depth of the calls is only limited
+     * by the size of the heap, not of the Java stack.
+     *
+     * @param visitor
+     *            the <code>ActivationVisitor</code> to call for each
+     *            <code>Activation</code>
+     *
+     * @see ActivationList#accept(ActivationVisitor)
+     */
+    public void accept(ActivationVisitor visitor) {
+        ActivationList.accept(Collections.singletonList(this), visitor);
     }
 
     /**
@@ -112,6 +171,43 @@ public class Activation implements java.io.Serializable {
         this.parent = parent;
     }
 
+    /**
+     * Returns the name of the virtual machine this method call was made in,
+     * when tracing several virtual machines at once.
+     *
+     * @return the name of the virtual machine of this <code>Activation</code>,
+     *         or <code>null</code> if only one virtual machine was traced
+     */
+    public String getVMName() {
+        return vmName;
+    }
+
+    /**
+     * Sets the name of the virtual machine this method call was made in.
+     * <code>Activation</code>s created later with this one as their parent
+     * get the same name.
+     *
+     * @param vmName
+     *            the name of the virtual machine, or <code>null</code> if
+     *            only one virtual machine was traced
+     */
+    public void setVMName(String vmName) {
+        this.vmName = vmName;
+        structureChanged();
+    }
+
+    /**
+     * Returns the name of the life-line that this method call belongs to in a
+     * sequence diagram. This is the class name, qualified with the name of the
+     * virtual machine if there is one, so that the same class in two virtual
+     * machines gets two life-lines.
+     *
+     * @return the life-line name of this <code>Activation</code>
+     */
+    public String getLifelineName() {
+        return (vmName == null ? className : vmName + "/" + className);
+    }
+
     /**
      * Returns the name of the class that this <code>Activation</code> belongs
      * to.
@@ -134,10 +230,12 @@ public class Activation implements java.io.Serializable {
     }
 
     /**
-     * Returns the index number of the stack frame associated with this
-     * <code>Association</code>.
+     * Returns the depth of this call among the traced calls, starting at one
+     * for a root activation. Since calls to methods that are not traced are
+     * not counted, this is not necessarily the index number of the stack frame
+     * associated with this <code>Activation</code>.
      *
-     * @return the index number of this stack frame
+     * @return the depth of this call, or -1 if unknown
      */
     public int getFrameCount() {
         return frameCount;
@@ -163,6 +261,336 @@ public class Activation implements java.io.Serializable {
         numRepetitions++;
     }
 
+    /**
+     * Adds a call that has been collapsed into this <code>Activation</code>,
+     * since it was identical to this one and made right after it. Increases
+     * the number of repetitions by one, and includes the time spent in the
+     * collapsed call, and recursively in its nested calls, in the timing
+     * statistics of this activation.
+     *
+     * @param repetition
+     *            an <code>Activation</code> equal to this one, representing
+     *            a call made right after the calls represented by this one
+     */
+    public void addRepetition(Activation repetition) {
+        increaseNumRepetitions();
+        mergeTimes(repetition);
+    }
+
+    /**
+     * Returns the number of activations, starting with this one, that make up
+     * the body of a loop, that is, a sequence of calls that was made a number
+     * of times in a row by the same method. The activations of the body are
+     * shown once, framed as a loop.
+     *
+     * @return the number of consecutive activations in the loop starting with
+     *         this <code>Activation</code>, or 0 if no loop starts here
+     *
+     * @see ActivationList#collapseRepetitions()
+     */
+    public int getLoopLength() {
+        return loopLength;
+    }
+
+    /**
+     * Marks this <code>Activation</code> as the first one of the body of a
+     * loop.
+     *
+     * @param loopLength
+     *            the number of consecutive activations in the loop body
+     */
+    void setLoopLength(int loopLength) {
+        this.loopLength = loopLength;
+    }
+
+    /**
+     * Returns the number of iterations of the loop that this
+     * <code>Activation</code> is part of.
+     *
+     * @return the number of times the loop body was repeated, or 1 if this
+     *         <code>Activation</code> is not part of a loop
+     *
+     * @see #getLoopLength()
+     */
+    public int getNumLoopIterations() {
+        return numLoopIterations;
+    }
+
+    /**
+     * Sets the number of iterations of the loop that this
+     * <code>Activation</code> is part of, without changing its times.
+     *
+     * @param numLoopIterations
+     *            the number of times the loop body was repeated
+     */
+    void setNumLoopIterations(int numLoopIterations) {
+        this.numLoopIterations = numLoopIterations;
+    }
+
+    /**
+     * Adds a call that has been collapsed into this <code>Activation</code>,
+     * since it was made in a later iteration of the loop this activation is
+     * part of. Increases the number of iterations by one, and includes the
+     * time spent in the collapsed call in the timing statistics of this
+     * activation.
+     *
+     * @param iteration
+     *            an <code>Activation</code> equal to this one, at the same
+     *            place in a later iteration of the loop
+     */
+    void addIteration(Activation iteration) {
+        numLoopIterations++;
+        mergeTimes(iteration);
+    }
+
+    private void mergeTimes(Activation other) {
+        // The pairs of activations left to merge, so that deep calls do not
+        // need a deep Java stack.
+        List<Activation> activations = new ArrayList<Activation>();
+        List<Activation> others = new ArrayList<Activation>();
+        activations.add(this);
+        others.add(other);
+        while (!activations.isEmpty()) {
+            Activation activation = activations.remove(activations.size() - 1);
+            other = others.remove(others.size() - 1);
+            if (!activation.timed || !other.timed) {
+                activation.timed = false;
+            } else {
+                activation.minTime =
+                        Math.min(activation.minTime, other.minTime);
+                activation.maxTime =
+                        Math.max(activation.maxTime, other.maxTime);
+                activation.totalTime += other.totalTime;
+                activation.exitTime = Math.max(activation.exitTime,
+                        other.exitTime);
+            }
+            ActivationList nested = activation.getNestedActivations();
+            ActivationList otherNested = other.getNestedActivations();
+            if (nested.size() == otherNested.size()) {
+                Iterator<Activation> i = otherNested.iterator();
+                for (Activation nestedActivation : nested) {
+                    activations.add(nestedActivation);
+                    others.add(i.next());
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the name of the virtual machine, the entry and exit times and
+     * the timing statistics of another <code>Activation</code> to this one.
+     */
+    void copyAttributes(Activation other) {
+        vmName = other.vmName;
+        entryTime = other.entryTime;
+        exitTime = other.exitTime;
+        timed = other.timed;
+        minTime = other.minTime;
+        maxTime = other.maxTime;
+        totalTime = other.totalTime;
+    }
+
+    /**
+     * Returns the time when this method was called, in nanoseconds. Only
+     * the difference between two such times is meaningful.
+     *
+     * @return the entry time of this method call
+     */
+    public long getEntryTime() {
+        return entryTime;
+    }
+
+    /**
+     * Sets the time when this method was called.
+     *
+     * @param entryTime
+     *            the entry time of this method call, in nanoseconds
+     */
+    public void setEntryTime(long entryTime) {
+        this.entryTime = entryTime;
+    }
+
+    /**
+     * Returns the time when this method returned, in nanoseconds, or when it
+     * was unwound by an exception.
+     *
+     * @return the exit time of this method call
+     */
+    public long getExitTime() {
+        return exitTime;
+    }
+
+    /**
+     * Sets the time when this method returned, and thereby the total time of
+     * this method call. The entry time must already have been set.
+     *
+     * @param exitTime
+     *            the exit time of this method call, in nanoseconds
+     */
+    public void setExitTime(long exitTime) {
+        this.exitTime = exitTime;
+        this.timed = true;
+        this.minTime = exitTime - entryTime;
+        this.maxTime = minTime;
+        this.totalTime = minTime;
+    }
+
+    /**
+     * Returns <code>true</code> if this is a root activation whose method call,
+     * including all nested calls, has been fully recorded while the program
+     * is being traced. A complete <code>Activation</code> is no longer
+     * changed, so it can safely be read by other threads than the one that
+     * recorded it.
+     *
+     * @return <code>true</code> if this activation is complete
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Marks this root activation as complete. This must be the last change
+     * made to it, and to its nested activations, by the recording thread.
+     */
+    void setComplete() {
+        this.complete = true;
+    }
+
+    /**
+     * Returns <code>true</code> if both the entry and the exit time of this
+     * method call are known. Calls that have not returned when the trace
+     * ended, and calls read from traces without times, are not timed.
+     *
+     * @return <code>true</code> if this method call has been timed
+     */
+    public boolean isTimed() {
+        return timed;
+    }
+
+    /**
+     * Returns the time spent in this method call, including the time spent
+     * in nested calls. If this <code>Activation</code> represents several
+     * repeated calls, this is the sum for all of them.
+     *
+     * @return the total time of this method call in nanoseconds, or -1 if it
+     *         has not been timed
+     */
+    public long getTotalTime() {
+        return (timed ? totalTime : -1);
+    }
+
+    /**
+     * Returns the time spent in this method call, excluding the time spent in
+     * the nested calls. Time spent in calls that were not traced, or that
+     * have been filtered out, is included.
+     *
+     * @return the self time of this method call in nanoseconds, or -1 if it
+     *         has not been timed
+     */
+    public long getSelfTime() {
+        if (!timed) {
+            return -1;
+        }
+        long selfTime = totalTime;
+        for (Activation nestedActivation : nestedActivations) {
+            if (nestedActivation.isTimed()) {
+                selfTime -= nestedActivation.getTotalTime();
+            }
+        }
+        return Math.max(selfTime, 0);
+    }
+
+    /**
+     * Returns the shortest total time of the calls this
+     * <code>Activation</code> represents.
+     *
+     * @return the minimum time of one call in nanoseconds, or -1 if it has
+     *         not been timed
+     */
+    public long getMinTime() {
+        return (timed ? minTime : -1);
+    }
+
+    /**
+     * Returns the longest total time of the calls this
+     * <code>Activation</code> represents.
+     *
+     * @return the maximum time of one call in nanoseconds, or -1 if it has
+     *         not been timed
+     */
+    public long getMaxTime() {
+        return (timed ? maxTime : -1);
+    }
+
+    /**
+     * Returns the average total time of the calls this
+     * <code>Activation</code> represents.
+     *
+     * @return the average time of one call in nanoseconds, or -1 if it has
+     *         not been timed
+     */
+    public long getAverageTime() {
+        return (timed ? totalTime / getNumCallsRepresented() : -1);
+    }
+
+    private int getNumCallsRepresented() {
+        return numRepetitions * numLoopIterations;
+    }
+
+    /**
+     * Returns <code>true</code> if at least one of the calls this
+     * <code>Activation</code> represents took at least the given time.
+     *
+     * @param threshold
+     *            the time in nanoseconds
+     *
+     * @return <code>true</code> if this method call has been timed, and took
+     *         at least <code>threshold</code> nanoseconds
+     */
+    public boolean exceeds(long threshold) {
+        return timed && maxTime >= threshold;
+    }
+
+    /**
+     * Returns a short description of the times of this method call, e.g.,
+     * "1.250 ms, self 0.100 ms", or for repeated calls, "3.000 ms, self 0.300
+     * ms, min/avg/max 0.500/1.000/2.000 ms".
+     *
+     * @return a description of the times of this method call, or
+     *         <code>null</code> if it has not been timed
+     */
+    public String getTimesDescription() {
+        if (!timed) {
+            return null;
+        }
+        StringBuffer s = new StringBuffer();
+        s.append(formatTime(getTotalTime()));
+        s.append(", self ").append(formatTime(getSelfTime()));
+        if (getNumCallsRepresented() > 1) {
+            s.append(", min/avg/max ");
+            s.append(formatMillis(getMinTime())).append("/");
+            s.append(formatMillis(getAverageTime())).append("/");
+            s.append(formatTime(getMaxTime()));
+        }
+        return s.toString();
+    }
+
+    /**
+     * Formats a time in nanoseconds as milliseconds, e.g., "1.250 ms".
+     *
+     * @param nanos
+     *            the time in nanoseconds
+     *
+     * @return the time in milliseconds, with three decimals
+     */
+    public static String formatTime(long nanos) {
+        return formatMillis(nanos) + " ms";
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1000000.0);
+    }
+
     /**
      * Adds another nested <code>Activation</code> to this
      * <code>Activation</code>. This represents a method call made by this
@@ -174,6 +602,7 @@ public class Activation implements java.io.Serializable {
      */
     public void add(Activation nestedActivation) {
         nestedActivations.add(nestedActivation);
+        structureChanged();
     }
 
     /**
@@ -195,6 +624,23 @@ public class Activation implements java.io.Serializable {
      */
     public void setNestedActivations(ActivationList nestedActivations) {
         this.nestedActivations = nestedActivations;
+        structureChanged();
+    }
+
+    /**
+     * Forgets the cached hash code of this <code>Activation</code> and of the
+     * <code>Activation</code>s that it is nested in, since their structure
+     * has changed. This must be called when the
+     * <code>ActivationList</code> of nested activations is changed directly,
+     * instead of through <code>add</code> or
+     * <code>setNestedActivations</code>.
+     */
+    void structureChanged() {
+        // If an activation has a hash code, so have all its nested
+        // activations, so we can stop at the first one without.
+        for (Activation a = this; a != null && a.hash != 0; a = a.parent) {
+            a.hash = 0;
+        }
     }
 
     /**
@@ -230,21 +676,66 @@ public class Activation implements java.io.Serializable {
      *         nested activations further indented
      */
     public String toString(int indent) {
-        StringBuffer s = new StringBuffer();
-        indent(s, indent);
+        return toString(indent, -1);
+    }
+
+    /**
+     * As <code>toString(int)</code>, but also shows the times of the
+     * activations, and flags slow activations.
+     *
+     * @param indent
+     *            the number of spaces to indent the first activation
+     * @param durationThreshold
+     *            -1 to not show any times, 0 to show the times of all timed
+     *            activations, or a time in nanoseconds to also flag the
+     *            activations that took at least that long with "(slow)"
+     *
+     * @return a string representation of this <code>Activation</code>, with
+     *         the first indented <code>indent</code> number of spaces, and
+     *         nested activations further indented
+     */
+    public String toString(final int indent, final long durationThreshold) {
+        final StringBuffer s = new StringBuffer();
+        accept(new ActivationVisitor() {
+            private int depth = 0;
+
+            public boolean visitEnter(Activation activation) {
+                indent(s, indent + depth * INDENT_SIZE);
+                activation.appendLine(s, durationThreshold);
+                depth++;
+                return true;
+            }
+
+            public void visitLeave(Activation activation) {
+                depth--;
+            }
+        });
+        return s.toString();
+    }
+
+    private void appendLine(StringBuffer s, long durationThreshold) {
+        if (vmName != null && parent == null) {
+            s.append(vmName + ": ");
+        }
         s.append(getClassName() + ".");
         s.append(getMethod().name());
         if (getNumRepetitions() > 1) {
             s.append(" (x " + getNumRepetitions() + ")");
         }
-        s.append("\n");
-        for (Activation nestedActivation : nestedActivations) {
-            s.append(nestedActivation.toString(indent + INDENT_SIZE));
+        if (loopLength > 0) {
+            s.append(" (loop x " + numLoopIterations + ", " + loopLength +
+                    (loopLength == 1 ? " call)" : " calls)"));
         }
-        return s.toString();
+        if (durationThreshold >= 0 && isTimed()) {
+            s.append(" [" + getTimesDescription() + "]");
+            if (durationThreshold > 0 && exceeds(durationThreshold)) {
+                s.append(" (slow)");
+            }
+        }
+        s.append("\n");
     }
 
-    private void indent(StringBuffer s, int indent) {
+    private static void indent(StringBuffer s, int indent) {
         for (int i = 0; i < indent; i++) {
             s.append(" ");
         }
@@ -254,7 +745,9 @@ public class Activation implements java.io.Serializable {
      * Compares this <code>Activation</code> to another object, and returns
      * <code>true</code> if and only if the other object is an
      * <code>Activation</code> with the same class and method names, and equal
-     * nested activations.
+     * nested activations, in the same virtual machine. Since the hash codes
+     * are cached, <code>Activation</code>s with different structure are
+     * usually told apart without comparing their nested activations.
      *
      * @param o
      *            the object to compare this <code>Activation</code> to
@@ -265,30 +758,100 @@ public class Activation implements java.io.Serializable {
      */
     @Override
     public boolean equals(Object o) {
-        boolean equal = false;
-        if (o instanceof Activation) {
-            Activation otherActivation = (Activation) o;
-            equal =
-                    className.equals(otherActivation.className) &&
-                            method.name().equals(otherActivation.method.name()) &&
-                            nestedActivations
-                                    .equals(otherActivation.nestedActivations);
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof Activation) || hashCode() != o.hashCode()) {
+            return false;
+        }
+        // The pairs of activations left to compare, so that deep calls do not
+        // need a deep Java stack.
+        List<Activation> activations = new ArrayList<Activation>();
+        List<Activation> others = new ArrayList<Activation>();
+        activations.add(this);
+        others.add((Activation) o);
+        while (!activations.isEmpty()) {
+            Activation activation =
+                    activations.remove(activations.size() - 1);
+            Activation other = others.remove(others.size() - 1);
+            if (!activation.isSameCall(other)) {
+                return false;
+            }
+            Iterator<Activation> i = other.getNestedActivations().iterator();
+            for (Activation nestedActivation : activation
+                    .getNestedActivations()) {
+                activations.add(nestedActivation);
+                others.add(i.next());
+            }
         }
-        return equal;
+        return true;
     }
 
     /**
-     * Returns a hash code for this <code>Activation</code>.
+     * Returns <code>true</code> if another <code>Activation</code> is a call
+     * to the same method as this one, with the same number of nested calls,
+     * and not known to have different nested calls.
+     */
+    private boolean isSameCall(Activation other) {
+        return (hash == 0 || other.hash == 0 || hash == other.hash) &&
+                className.equals(other.className) &&
+                (vmName == null ? other.vmName == null : vmName
+                        .equals(other.vmName)) &&
+                method.name().equals(other.method.name()) &&
+                nestedActivations.size() == other.nestedActivations.size();
+    }
+
+    /**
+     * Returns a hash code for this <code>Activation</code>, computed from its
+     * class and method names, its virtual machine and, recursively, its
+     * nested activations. The hash code is computed once, and then cached
+     * until the structure of this <code>Activation</code> changes.
      *
      * @return a hash code for this <code>Activation</code>
      */
     @Override
     public int hashCode() {
-        int result = 17;
-        result = 31 * result + className.hashCode();
-        result = 31 * result + method.name().hashCode();
-        result = 31 * result + nestedActivations.hashCode();
-        return result;
+        if (hash == 0) {
+            accept(new ActivationVisitor() {
+                // For each activation being visited, the hash code of its
+                // nested activations visited so far, as in List.hashCode.
+                private List<Integer> nestedHashes = new ArrayList<Integer>();
+
+                public boolean visitEnter(Activation activation) {
+                    if (activation.hash != 0) {
+                        addNestedHash(activation.hash);
+                        return false;
+                    }
+                    nestedHashes.add(Integer.valueOf(1));
+                    return true;
+                }
+
+                public void visitLeave(Activation activation) {
+                    int nestedHash =
+                            nestedHashes.remove(nestedHashes.size() - 1)
+                                    .intValue();
+                    int result = 17;
+                    result = 31 * result + activation.className.hashCode();
+                    result =
+                            31 * result +
+                                    (activation.vmName == null ? 0
+                                            : activation.vmName.hashCode());
+                    result = 31 * result + activation.method.name().hashCode();
+                    result = 31 * result + nestedHash;
+                    activation.hash = result;
+                    addNestedHash(result);
+                }
+
+                private void addNestedHash(int nestedHash) {
+                    int top = nestedHashes.size() - 1;
+                    if (top >= 0) {
+                        nestedHashes.set(top, Integer.valueOf(31 *
+                                nestedHashes.get(top).intValue() + nestedHash));
+                    }
+                }
+            });
+        }
+        return hash;
     }
 
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import com.sun.jdi.Method;
+
+/**
+ * An <code>ActivationBuilder</code> builds the <code>Activation</code>s of
+ * one traced thread from the trace records produced by an
+ * <code>EventThread</code>. A builder is only ever used by one worker thread
+ * of an <code>EventPipeline</code>, so it needs no synchronization.
+ */
+class ActivationBuilder implements TraceSink {
+    private final String threadName;
+    private final boolean trace;
+    private Activation currentActivation = null;
+
+    /**
+     * Creates a new <code>ActivationBuilder</code> for a traced thread.
+     *
+     * @param threadName
+     *            the name of the traced thread
+     * @param trace
+     *            if <code>true</code> method entries will be echoed to
+     *            <code>System.err</code>
+     */
+    public ActivationBuilder(String threadName, boolean trace) {
+        this.threadName = threadName;
+        this.trace = trace;
+        trace("====== " + threadName + " ======");
+    }
+
+    /**
+     * Records a call to a traced method.
+     *
+     * @param className
+     *            the name of the class of the object the method was called on
+     * @param method
+     *            the method that was called
+     * @param depth
+     *            the depth of the call among the traced calls of this thread
+     * @param root
+     *            the already created root <code>Activation</code> if this is
+     *            a call at depth one, otherwise <code>null</code>
+     * @param time
+     *            the time of the call, in nanoseconds
+     */
+    public void entry(String className, Method method, int depth,
+            Activation root, long time) {
+        trace(className + "." + method.name() + " " + method.argumentTypeNames());
+        if (root != null) {
+            currentActivation = root;
+        } else {
+            currentActivation =
+                    new Activation(currentActivation, className, method, depth);
+        }
+        currentActivation.setEntryTime(time);
+    }
+
+    /**
+     * Records that the current method call returned.
+     *
+     * @param time
+     *            the time of the return, in nanoseconds
+     */
+    public void exit(long time) {
+        if (currentActivation != null) {
+            currentActivation.setExitTime(time);
+            leave();
+        }
+    }
+
+    /**
+     * Records that an exception unwound the stack, so that the current method
+     * call is now the one at the given depth.
+     *
+     * @param depth
+     *            the depth of the method call that caught the exception
+     * @param time
+     *            the time the exception was thrown, in nanoseconds
+     */
+    public void unwind(int depth, long time) {
+        while (currentActivation != null &&
+                currentActivation.getFrameCount() > depth) {
+            currentActivation.setExitTime(time);
+            leave();
+        }
+    }
+
+    /**
+     * Records that the traced thread ended.
+     */
+    public void threadEnd() {
+        // Calls that never returned are left untimed, but the activations
+        // will not change any more.
+        while (currentActivation != null) {
+            leave();
+        }
+        trace("====== " + threadName + " end ======");
+    }
+
+    private void leave() {
+        Activation parent = currentActivation.getParent();
+        if (parent == null) {
+            currentActivation.setComplete();
+        }
+        currentActivation = parent;
+    }
+
+    private void trace(String s) {
+        if (trace) {
+            System.err.println(s);
+        }
+    }
+}
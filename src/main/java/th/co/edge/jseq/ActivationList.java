@@ -22,6 +22,9 @@
 
 package th.co.edge.jseq;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -37,7 +40,34 @@ public class ActivationList implements java.io.Serializable,
         Iterable<Activation> {
     private static final long serialVersionUID = 5359418912455509769L;
 
-    private List<Activation> activations = new LinkedList<Activation>();
+    /**
+     * The maximum number of activations in the body of a loop found by
+     * <code>collapseRepetitions</code>.
+     */
+    public static final int MAX_LOOP_LENGTH = 32;
+
+    private List<Activation> activations;
+    private List<String> notes;
+    private boolean showingDurations = false;
+    private long durationThreshold = 0;
+
+    /**
+     * Creates a new, empty <code>ActivationList</code>.
+     */
+    public ActivationList() {
+        this(new LinkedList<Activation>());
+    }
+
+    /**
+     * Creates an <code>ActivationList</code> backed by a given list, such as
+     * a read-only view of the calls in a <code>TraceStore</code>.
+     *
+     * @param activations
+     *            the list holding the <code>Activation</code>s
+     */
+    ActivationList(List<Activation> activations) {
+        this.activations = activations;
+    }
 
     /**
      * Adds an <code>Activation</code> to this list.
@@ -95,6 +125,72 @@ public class ActivationList implements java.io.Serializable,
         return activations.size();
     }
 
+    /**
+     * Adds a note to this list, for example about what was left out of the
+     * program trace. Notes are kept by <code>filter</code>, <code>find</code>,
+     * <code>collapseRepetitions</code> and <code>copy</code>, and shown by
+     * the formatters that support them.
+     *
+     * @param note
+     *            the note to add
+     */
+    public void addNote(String note) {
+        if (notes == null) {
+            notes = new ArrayList<String>();
+        }
+        notes.add(note);
+    }
+
+    /**
+     * Returns the notes added to this list, in the order they were added.
+     *
+     * @return an unmodifiable list of the notes added to this list
+     */
+    public List<String> getNotes() {
+        if (notes == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(notes);
+    }
+
+    /**
+     * Sets how the formatters that support it should show the times of the
+     * activations. Like notes, this is kept by <code>filter</code>,
+     * <code>find</code>, <code>collapseRepetitions</code> and
+     * <code>copy</code>.
+     *
+     * @param durationThreshold
+     *            -1 to not show any times, the default, 0 to show the times of
+     *            all timed activations, or a time in nanoseconds to also flag
+     *            the activations that took at least that long
+     */
+    public void setDurationThreshold(long durationThreshold) {
+        this.showingDurations = durationThreshold >= 0;
+        this.durationThreshold = Math.max(durationThreshold, 0);
+    }
+
+    /**
+     * Returns how the times of the activations should be shown.
+     *
+     * @return -1 if no times should be shown, 0 if the times should be shown,
+     *         or a time in nanoseconds if the times should be shown and the
+     *         activations that took at least that long should be flagged
+     *
+     * @see #setDurationThreshold(long)
+     */
+    public long getDurationThreshold() {
+        return (showingDurations ? durationThreshold : -1);
+    }
+
+    private ActivationList withAnnotationsOf(ActivationList activationList) {
+        if (activationList.notes != null) {
+            notes = new ArrayList<String>(activationList.notes);
+        }
+        showingDurations = activationList.showingDurations;
+        durationThreshold = activationList.durationThreshold;
+        return this;
+    }
+
     /**
      * Returns an iterator that iterates over the <code>Activation</code>s in
      * this list, in the order they were added.
@@ -106,6 +202,50 @@ public class ActivationList implements java.io.Serializable,
         return activations.iterator();
     }
 
+    /**
+     * Visits the <code>Activation</code>s in this list, and recursively their
+     * nested activations, in the order the calls were made. The activations
+     * are walked with an explicit stack, so the depth of the calls is only
+     * limited by the size of the heap, not of the Java stack.
+     *
+     * @param visitor
+     *            the <code>ActivationVisitor</code> to call for each
+     *            <code>Activation</code>
+     */
+    public void accept(ActivationVisitor visitor) {
+        accept(activations, visitor);
+    }
+
+    /**
+     * Visits some <code>Activation</code>s, and recursively their nested
+     * activations, with an explicit stack.
+     */
+    static void accept(Iterable<Activation> activations,
+            ActivationVisitor visitor) {
+        // The activations being visited, and where we are in the nested
+        // activations of their parents.
+        List<Activation> path = new ArrayList<Activation>();
+        List<Iterator<Activation>> iterators =
+                new ArrayList<Iterator<Activation>>();
+        Iterator<Activation> i = activations.iterator();
+        while (true) {
+            if (i.hasNext()) {
+                Activation activation = i.next();
+                if (visitor.visitEnter(activation)) {
+                    path.add(activation);
+                    iterators.add(i);
+                    i = activation.getNestedActivations().iterator();
+                }
+            } else if (!path.isEmpty()) {
+                int top = path.size() - 1;
+                i = iterators.remove(top);
+                visitor.visitLeave(path.remove(top));
+            } else {
+                break;
+            }
+        }
+    }
+
     /**
      * Returns a new <code>ActivationList</code> containing only the
      * <code>Activation</code>s for which the given filter returns
@@ -120,19 +260,79 @@ public class ActivationList implements java.io.Serializable,
      *         <code>Activation</code>s that <code>filter</code> accepts
      */
     public ActivationList filter(Filter filter) {
-        ActivationList filteredList = new ActivationList();
-        for (Activation activation : activations) {
-            if (filter.accept(activation)) {
-                Activation newActivation = new Activation(null, activation
-                        .getClassName(), activation.getMethod(), -1);
-                ActivationList nestedActivations = activation
-                        .getNestedActivations().filter(filter);
-                newActivation.setNestedActivations(nestedActivations);
-                nestedActivations.setParent(newActivation);
-                filteredList.add(newActivation);
+        return select(null, filter);
+    }
+
+    /**
+     * Returns a new <code>ActivationList</code> where the
+     * <code>Activation</code>s accepted by <code>startFilter</code> have been
+     * lifted to be root activations, as by <code>find</code>, and then only
+     * the <code>Activation</code>s accepted by <code>filter</code> have been
+     * kept, as by <code>filter</code>. This is the same as
+     * <code>find(startFilter).filter(filter)</code>, but takes a single pass
+     * over this list, and only copies the activations that are kept.
+     *
+     * @param startFilter
+     *            the <code>Filter</code> used to determine which activations
+     *            should be used as root activations, or <code>null</code> to
+     *            use the root activations of this list
+     * @param filter
+     *            the <code>Filter</code> used to determine which activations
+     *            should be included
+     *
+     * @return a new <code>ActivationList</code> with the selected
+     *         activations
+     *
+     * @see ActivationPipeline
+     */
+    ActivationList select(final Filter startFilter, final Filter filter) {
+        final ActivationList selectedList = new ActivationList();
+        accept(new ActivationVisitor() {
+            // The copies of the selected activations being visited, empty
+            // while searching for an activation accepted by startFilter.
+            private List<Activation> copies = new ArrayList<Activation>();
+
+            public boolean visitEnter(Activation activation) {
+                Activation newActivation;
+                if (copies.isEmpty()) {
+                    if (startFilter != null &&
+                            !startFilter.accept(activation)) {
+                        return true;
+                    }
+                    // The filter sees the activation as a root activation,
+                    // as find would have made it.
+                    newActivation = copyOf(activation, null);
+                    if (!filter.accept(newActivation)) {
+                        return false;
+                    }
+                    selectedList.add(newActivation);
+                } else {
+                    if (!filter.accept(activation)) {
+                        return false;
+                    }
+                    newActivation =
+                            copyOf(activation, copies.get(copies.size() - 1));
+                }
+                copies.add(newActivation);
+                return true;
             }
-        }
-        return filteredList;
+
+            public void visitLeave(Activation activation) {
+                if (!copies.isEmpty()) {
+                    copies.remove(copies.size() - 1);
+                }
+            }
+        });
+        return selectedList.withAnnotationsOf(this);
+    }
+
+    private static Activation copyOf(Activation activation,
+            Activation parentOfCopy) {
+        Activation copy =
+                new Activation(parentOfCopy, activation.getClassName(),
+                        activation.getMethod(), -1);
+        copy.copyAttributes(activation);
+        return copy;
     }
 
     /**
@@ -174,17 +374,99 @@ public class ActivationList implements java.io.Serializable,
      * @return a new <code>ActivationList</code> with <code>Activation</code>s
      *         accepted by <code>filter</code> as root activations
      */
-    public ActivationList find(Filter filter) {
-        ActivationList foundActivations = new ActivationList();
+    public ActivationList find(final Filter filter) {
+        final ActivationList foundActivations = new ActivationList();
+        accept(new ActivationVisitor() {
+            public boolean visitEnter(Activation activation) {
+                if (filter.accept(activation)) {
+                    foundActivations.add(activation.copy(null));
+                    return false;
+                }
+                return true;
+            }
+
+            public void visitLeave(Activation activation) {
+            }
+        });
+        return foundActivations.withAnnotationsOf(this);
+    }
+
+    /**
+     * Returns a new <code>ActivationList</code> containing the
+     * <code>Activation</code>s of this list that are complete, see
+     * <code>Activation.isComplete</code>, and the notes of this list. The
+     * <code>Activation</code>s are shared with this list, not copied, so
+     * this is cheap enough to do while the program is being traced, as long
+     * as the caller holds the same lock as the thread adding to this list.
+     *
+     * @return a new <code>ActivationList</code> with the complete
+     *         <code>Activation</code>s of this list
+     */
+    public ActivationList snapshot() {
+        ActivationList snapshot = new ActivationList();
         for (Activation activation : activations) {
-            if (filter.accept(activation)) {
-                foundActivations.add(activation.copy(null));
-            } else {
-                foundActivations.addAll(activation.getNestedActivations().find(
-                        filter));
+            if (activation.isComplete()) {
+                snapshot.add(activation);
             }
         }
-        return foundActivations;
+        return snapshot.withAnnotationsOf(this);
+    }
+
+    /**
+     * Returns a new <code>ActivationList</code> with the same
+     * <code>Activation</code>s as this list, ordered by the time they were
+     * called. This is used to merge the root activations of several virtual
+     * machines, whose times all come from the same clock in JSeq.
+     *
+     * @return a new <code>ActivationList</code> ordered by entry time
+     */
+    public ActivationList sortByEntryTime() {
+        ActivationList sortedList = new ActivationList();
+        sortedList.activations.addAll(activations);
+        Collections.sort(sortedList.activations, new Comparator<Activation>() {
+            public int compare(Activation a1, Activation a2) {
+                long t1 = a1.getEntryTime();
+                long t2 = a2.getEntryTime();
+                return (t1 < t2 ? -1 : (t1 == t2 ? 0 : 1));
+            }
+        });
+        return sortedList.withAnnotationsOf(this);
+    }
+
+    /**
+     * Splits this list into groups of <code>Activation</code>s that should be
+     * shown together in one sequence diagram. <code>Activation</code>s from
+     * different virtual machines that overlap in time, for example a request
+     * to a gateway and the work it hands over to another virtual machine, end
+     * up in the same group. All other <code>Activation</code>s, including all
+     * <code>Activation</code>s that are not tagged with a virtual machine, get
+     * a group of their own. This list should be ordered by entry time, see
+     * <code>sortByEntryTime</code>.
+     *
+     * @return a list of groups of the <code>Activation</code>s in this list,
+     *         in order
+     */
+    public List<ActivationList> groupConcurrentCalls() {
+        List<ActivationList> groups = new ArrayList<ActivationList>();
+        ActivationList group = null;
+        long groupExitTime = 0;
+        for (Activation activation : activations) {
+            boolean concurrent =
+                    group != null && activation.getVMName() != null &&
+                            activation.isTimed() &&
+                            activation.getEntryTime() < groupExitTime;
+            if (!concurrent) {
+                group = new ActivationList();
+                groups.add(group);
+                groupExitTime = Long.MIN_VALUE;
+            }
+            group.add(activation);
+            if (activation.getVMName() != null && activation.isTimed()) {
+                groupExitTime =
+                        Math.max(groupExitTime, activation.getExitTime());
+            }
+        }
+        return groups;
     }
 
     /**
@@ -203,30 +485,130 @@ public class ActivationList implements java.io.Serializable,
     /**
      * Returns an <code>ActivationList</code> where all consecutive identical
      * <code>Activation</code>s but the first have been removed, and its
-     * <code>numRepetitions</code> property increased accordingly.
+     * <code>numRepetitions</code> property increased accordingly. The times
+     * of the removed activations are added to the timing statistics of the
+     * first one, see <code>Activation.addRepetition</code>.
+     *
+     * <p>
+     * Then, in the nested activations, sequences of up to
+     * <code>MAX_LOOP_LENGTH</code> activations that are repeated in a row,
+     * such as <code>read(); parse(); write();</code> called in a loop, are
+     * kept only once and marked as a loop, see
+     * <code>Activation.getLoopLength</code>. The times of the removed
+     * iterations are added to the activations of the first one.
      *
      * @return an <code>ActivationList</code> with no repeated identical
-     *         <code>Activation</code>s
+     *         <code>Activation</code>s or sequences of activations
      */
     public ActivationList collapseRepetitions() {
         ActivationList newList = copy();
-        for (int i = 0; i < newList.size(); i++) {
-            Activation activation = newList.get(i);
-            while (newList.size() > i + 1) {
-                Activation nextActivation = newList.get(i + 1);
-                if (activation.equals(nextActivation)) {
-                    newList.remove(i + 1);
-                    activation.increaseNumRepetitions();
-                } else {
+        newList.collapseRepetitionsInPlace();
+        return newList;
+    }
+
+    /**
+     * Does the same as <code>collapseRepetitions</code>, but changes this
+     * list instead of a copy. The <code>Activation</code>s of this list must
+     * not be shared with any other list.
+     *
+     * @see ActivationPipeline
+     */
+    void collapseRepetitionsInPlace() {
+        collapseList(false);
+        accept(new ActivationVisitor() {
+            public boolean visitEnter(Activation activation) {
+                // The nested activations are collapsed before they are
+                // visited, and compared as they were in the trace.
+                activation.getNestedActivations().collapseList(true);
+                return true;
+            }
+
+            public void visitLeave(Activation activation) {
+                activation.structureChanged();
+            }
+        });
+    }
+
+    /**
+     * Collapses the repetitions in this list, but not in the nested lists,
+     * with one pass over the list. Equal activations are compared with their
+     * cached hash codes first, so the time is linear in the number of
+     * activations, unless many large subtrees are repeated. The
+     * <code>Activation</code>s of this list must not be shared with any other
+     * list.
+     */
+    private void collapseList(boolean collapsingLoops) {
+        List<Activation> collapsedList =
+                new ArrayList<Activation>(activations.size());
+        Activation previous = null;
+        for (Activation activation : activations) {
+            if (previous != null && previous.equals(activation)) {
+                previous.addRepetition(activation);
+            } else {
+                collapsedList.add(activation);
+                previous = activation;
+            }
+        }
+        activations =
+                (collapsingLoops ? collapseLoops(collapsedList)
+                        : collapsedList);
+    }
+
+    /**
+     * Finds the loops in a list without consecutive equal activations, and
+     * returns a list with only the first iteration of each loop. At each
+     * position, the shortest loop body starting there is used, so the body of
+     * a loop never contains two full iterations of a shorter loop.
+     */
+    private static List<Activation> collapseLoops(List<Activation> list) {
+        int size = list.size();
+        if (size < 4) {
+            return list;
+        }
+        Activation[] calls = list.toArray(new Activation[size]);
+        List<Activation> collapsedList = new ArrayList<Activation>(size);
+        int i = 0;
+        while (i < size) {
+            int length = 0;
+            for (int n = 2; n <= MAX_LOOP_LENGTH && i + 2 * n <= size; n++) {
+                if (isSameSequence(calls, i, i + n, n)) {
+                    length = n;
                     break;
                 }
             }
-            ActivationList nestedActivations = activation
-                    .getNestedActivations().collapseRepetitions();
-            nestedActivations.setParent(activation);
-            activation.setNestedActivations(nestedActivations);
+            if (length == 0) {
+                collapsedList.add(calls[i++]);
+                continue;
+            }
+            int numIterations = 2;
+            while (i + (numIterations + 1) * length <= size &&
+                    isSameSequence(calls, i, i + numIterations * length,
+                            length)) {
+                numIterations++;
+            }
+            for (int j = i; j < i + length; j++) {
+                for (int k = 1; k < numIterations; k++) {
+                    calls[j].addIteration(calls[j + k * length]);
+                }
+                collapsedList.add(calls[j]);
+            }
+            calls[i].setLoopLength(length);
+            i += numIterations * length;
         }
-        return newList;
+        return collapsedList;
+    }
+
+    private static boolean isSameSequence(Activation[] calls, int first,
+            int second, int length) {
+        for (int j = 0; j < length; j++) {
+            Activation call = calls[first + j];
+            Activation otherCall = calls[second + j];
+            if (call.getNumRepetitions() != otherCall.getNumRepetitions() ||
+                    !call.equals(otherCall)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -242,7 +624,7 @@ public class ActivationList implements java.io.Serializable,
         for (Activation activation : activations) {
             newList.add(activation.copy(null));
         }
-        return newList;
+        return newList.withAnnotationsOf(this);
     }
 
     /**
@@ -252,7 +634,18 @@ public class ActivationList implements java.io.Serializable,
      */
     @Override
     public String toString() {
-        return activations.toString();
+        long threshold = getDurationThreshold();
+        if (threshold < 0) {
+            return activations.toString();
+        }
+        StringBuffer s = new StringBuffer("[");
+        for (Iterator<Activation> i = activations.iterator(); i.hasNext();) {
+            s.append(i.next().toString(0, threshold));
+            if (i.hasNext()) {
+                s.append(", ");
+            }
+        }
+        return s.append("]").toString();
     }
 
     /**
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An <code>ActivationPipeline</code> is a sequence of the operations used to
+ * prepare the activations of a program trace for a sequence diagram: lifting
+ * the activations accepted by a filter to be root activations, as by
+ * <code>ActivationList.find</code>, keeping only the activations accepted by
+ * a number of filters, as by <code>ActivationList.filter</code>, and
+ * collapsing repetitions, as by
+ * <code>ActivationList.collapseRepetitions</code>. For example:
+ *
+ * <pre>
+ * ActivationList diagramActivations =
+ *         new ActivationPipeline().find(new MethodFilter(&quot;Foo.bar&quot;))
+ *                 .filter(new ClassExclusionFilter(&quot;java.*&quot;))
+ *                 .collapseRepetitions().apply(rootActivations);
+ * </pre>
+ *
+ * <p>
+ * Instead of copying all activations once for each operation, the pipeline
+ * finds and filters the activations in a single pass, copying only the
+ * activations that are kept, and then collapses the repetitions of the copy
+ * in place.
+ */
+public class ActivationPipeline {
+    private ActivationList.Filter startFilter;
+    private List<ActivationList.Filter> filters =
+            new ArrayList<ActivationList.Filter>();
+    private boolean collapsingRepetitions = false;
+
+    /**
+     * Adds a step that lifts the activations accepted by a filter to be root
+     * activations, like <code>ActivationList.find</code>. This must be the
+     * first step of the pipeline.
+     *
+     * @param filter
+     *            the <code>Filter</code> used to determine which activations
+     *            should be used as root activations
+     *
+     * @return this <code>ActivationPipeline</code>
+     *
+     * @throws IllegalStateException
+     *             if this pipeline already has other steps
+     *
+     * @see ActivationList#find(ActivationList.Filter)
+     */
+    public ActivationPipeline find(ActivationList.Filter filter) {
+        if (startFilter != null || !filters.isEmpty() ||
+                collapsingRepetitions) {
+            throw new IllegalStateException(
+                    "find must be the first step of a pipeline");
+        }
+        this.startFilter = filter;
+        return this;
+    }
+
+    /**
+     * Adds a step that only keeps the activations accepted by a filter, like
+     * <code>ActivationList.filter</code>.
+     *
+     * @param filter
+     *            the <code>Filter</code> used to determine which activations
+     *            should be included
+     *
+     * @return this <code>ActivationPipeline</code>
+     *
+     * @throws IllegalStateException
+     *             if repetitions are already collapsed by this pipeline
+     *
+     * @see ActivationList#filter(ActivationList.Filter)
+     */
+    public ActivationPipeline filter(ActivationList.Filter filter) {
+        if (collapsingRepetitions) {
+            throw new IllegalStateException(
+                    "filter must come before collapseRepetitions");
+        }
+        filters.add(filter);
+        return this;
+    }
+
+    /**
+     * Adds a step that collapses repeated activations and sequences of
+     * activations, like <code>ActivationList.collapseRepetitions</code>.
+     * This must be the last step of the pipeline.
+     *
+     * @return this <code>ActivationPipeline</code>
+     *
+     * @see ActivationList#collapseRepetitions()
+     */
+    public ActivationPipeline collapseRepetitions() {
+        collapsingRepetitions = true;
+        return this;
+    }
+
+    /**
+     * Applies the steps of this pipeline to an <code>ActivationList</code>.
+     *
+     * @param activationList
+     *            the root activations to start with
+     *
+     * @return a new <code>ActivationList</code>, as if the steps had been
+     *         applied one by one, with the notes of
+     *         <code>activationList</code>
+     */
+    public ActivationList apply(ActivationList activationList) {
+        ActivationList.Filter filter = getFilter();
+        ActivationList result;
+        if (filter != null) {
+            result = activationList.select(startFilter, filter);
+        } else if (startFilter != null) {
+            result = activationList.find(startFilter);
+        } else {
+            result = activationList.copy();
+        }
+        if (collapsingRepetitions) {
+            result.collapseRepetitionsInPlace();
+        }
+        return result;
+    }
+
+    /**
+     * Applies the steps of this pipeline to a <code>CallDag</code>, where
+     * each distinct call subtree is only found and filtered once. The
+     * result is read lazily, through <code>getRootActivations</code>.
+     *
+     * @param dag
+     *            the <code>CallDag</code> with the root calls to start with
+     *
+     * @return a new <code>CallDag</code>, as if the steps had been applied
+     *         one by one, sharing the nodes of <code>dag</code> where
+     *         possible
+     */
+    public CallDag apply(CallDag dag) {
+        ActivationList.Filter filter = getFilter();
+        if (startFilter != null || filter != null) {
+            dag = dag.select(startFilter, filter);
+        }
+        if (collapsingRepetitions) {
+            dag = dag.collapseRepetitions();
+        }
+        return dag;
+    }
+
+    /**
+     * Returns a filter that accepts the activations accepted by all filters
+     * of this pipeline, or <code>null</code> if there are none.
+     */
+    private ActivationList.Filter getFilter() {
+        if (filters.isEmpty()) {
+            return null;
+        } else if (filters.size() == 1) {
+            return filters.get(0);
+        } else {
+            return new AllFilter(filters);
+        }
+    }
+
+    //
+    // Nested top-level classes
+    //
+
+    /**
+     * A <code>Filter</code> that accepts the activations accepted by all of
+     * a number of filters.
+     */
+    private static class AllFilter implements ActivationList.Filter {
+        private final ActivationList.Filter[] filters;
+
+        public AllFilter(List<ActivationList.Filter> filters) {
+            this.filters =
+                    filters.toArray(new ActivationList.Filter[filters.size()]);
+        }
+
+        public boolean accept(Activation activation) {
+            for (ActivationList.Filter filter : filters) {
+                if (!filter.accept(activation)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+/**
+ * An <code>ActivationVisitor</code> is called for each <code>Activation</code>
+ * in a tree of activations, in the order the calls were made, by the
+ * <code>accept</code> methods of <code>Activation</code> and
+ * <code>ActivationList</code>. The tree is walked with an explicit stack
+ * instead of by recursion, so arbitrarily deep traces can be visited.
+ *
+ * @see Activation#accept(ActivationVisitor)
+ * @see ActivationList#accept(ActivationVisitor)
+ */
+public interface ActivationVisitor {
+
+    /**
+     * Called when an <code>Activation</code> is reached, before any of its
+     * nested activations.
+     *
+     * @param activation
+     *            the <code>Activation</code> being visited
+     *
+     * @return <code>true</code> if the nested activations of
+     *         <code>activation</code> should be visited, followed by a call
+     *         to <code>visitLeave</code>, or <code>false</code> to skip them
+     */
+    boolean visitEnter(Activation activation);
+
+    /**
+     * Called when all nested activations of an <code>Activation</code> have
+     * been visited. This is only called if <code>visitEnter</code> returned
+     * <code>true</code> for <code>activation</code>.
+     *
+     * @param activation
+     *            the <code>Activation</code> being visited
+     */
+    void visitLeave(Activation activation);
+}
@@ -0,0 +1,665 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.jdi.Method;
+
+/**
+ * A <code>CallDag</code> holds the root activations of a program trace with
+ * all identical call subtrees stored only once. Two calls are identical if
+ * they are calls to methods with the same name, on the same class in the
+ * same virtual machine, and make identical calls in turn, which is when two
+ * <code>Activation</code>s are equal. Each distinct call subtree is a
+ * <code>Node</code>, and a call that is made in many places is one
+ * <code>Node</code> referenced from many parents, so the trace is a directed
+ * acyclic graph instead of a tree.
+ *
+ * <p>
+ * Since program traces are very repetitive, this usually takes a fraction of
+ * the memory of the <code>Activation</code>s. <code>find</code>,
+ * <code>filter</code> and <code>collapseRepetitions</code> work like the
+ * methods of <code>ActivationList</code> with the same names, but only visit
+ * each distinct subtree once, and return a new <code>CallDag</code> that
+ * shares the nodes of this one where possible. The result is read through
+ * the <code>ActivationList</code> returned by <code>getRootActivations</code>,
+ * which walks the graph as if it were a tree.
+ *
+ * <p>
+ * The times of the calls are not kept, since they differ between calls that
+ * are otherwise identical. The filters used must only look at the class,
+ * method and virtual machine of an <code>Activation</code>, and of its parent,
+ * as all the filters in JSeq do.
+ *
+ * <p>
+ * A <code>CallDag</code> is not safe to use from several threads.
+ */
+public class CallDag {
+    // The canonical instance of each node, shared by all CallDags derived
+    // from the same one.
+    private final Map<Node, Node> nodes;
+    private final Calls roots;
+    private final List<String> notes;
+
+    /**
+     * Creates a new <code>CallDag</code> with the same calls and notes as an
+     * <code>ActivationList</code>.
+     *
+     * @param activations
+     *            the root activations of a program trace
+     */
+    public CallDag(ActivationList activations) {
+        this.nodes = new HashMap<Node, Node>();
+        final List<CallsBuilder> calls = new ArrayList<CallsBuilder>();
+        calls.add(new CallsBuilder());
+        activations.accept(new ActivationVisitor() {
+            public boolean visitEnter(Activation activation) {
+                calls.add(new CallsBuilder());
+                return true;
+            }
+
+            public void visitLeave(Activation activation) {
+                CallsBuilder nestedCalls = calls.remove(calls.size() - 1);
+                Node node =
+                        intern(activation.getVMName(), activation
+                                .getClassName(), activation.getMethod(),
+                                nestedCalls);
+                calls.get(calls.size() - 1).add(node, activation);
+            }
+        });
+        this.roots = calls.get(0).toCalls();
+        this.notes = activations.getNotes();
+    }
+
+    private CallDag(CallDag dag, CallsBuilder roots) {
+        this.nodes = dag.nodes;
+        this.roots = roots.toCalls();
+        this.notes = dag.notes;
+    }
+
+    private Node intern(String vmName, String className, Method method,
+            CallsBuilder calls) {
+        Node node = new Node(vmName, className, method, calls.toCalls());
+        Node canonicalNode = nodes.get(node);
+        if (canonicalNode == null) {
+            nodes.put(node, node);
+            canonicalNode = node;
+        }
+        return canonicalNode;
+    }
+
+    /**
+     * Returns the number of distinct call subtrees stored, including those
+     * only used by the <code>CallDag</code>s that this one was derived from,
+     * or that were derived from it.
+     *
+     * @return the number of nodes
+     */
+    public int getNumNodes() {
+        return nodes.size();
+    }
+
+    /**
+     * Returns a new <code>CallDag</code> where the calls accepted by a filter
+     * are the root calls, like <code>ActivationList.find</code>.
+     *
+     * @param filter
+     *            the <code>Filter</code> used to determine which calls should
+     *            be used as root calls
+     *
+     * @return a new <code>CallDag</code> with the calls accepted by
+     *         <code>filter</code> as root calls
+     *
+     * @see ActivationList#find(ActivationList.Filter)
+     */
+    public CallDag find(ActivationList.Filter filter) {
+        return select(filter, null);
+    }
+
+    /**
+     * Returns a new <code>CallDag</code> with only the calls accepted by a
+     * filter, like <code>ActivationList.filter</code>.
+     *
+     * @param filter
+     *            the <code>Filter</code> used to determine which calls should
+     *            be included
+     *
+     * @return a new <code>CallDag</code> with only the calls that
+     *         <code>filter</code> accepts
+     *
+     * @see ActivationList#filter(ActivationList.Filter)
+     */
+    public CallDag filter(ActivationList.Filter filter) {
+        return select(null, filter);
+    }
+
+    /**
+     * Returns a new <code>CallDag</code> where the calls accepted by
+     * <code>startFilter</code> are the root calls, and only the calls
+     * accepted by <code>filter</code> are kept, like
+     * <code>ActivationList.select</code>. This is the same as
+     * <code>find(startFilter).filter(filter)</code>, but takes a single pass
+     * over the distinct subtrees.
+     *
+     * @param startFilter
+     *            the <code>Filter</code> used to determine which calls should
+     *            be used as root calls, or <code>null</code> to use the root
+     *            calls of this <code>CallDag</code>
+     * @param filter
+     *            the <code>Filter</code> used to determine which calls should
+     *            be included, or <code>null</code> to include all calls
+     *
+     * @return a new <code>CallDag</code> with the selected calls
+     *
+     * @see ActivationPipeline
+     */
+    CallDag select(ActivationList.Filter startFilter,
+            ActivationList.Filter filter) {
+        // The calls found in the nodes that are not accepted by startFilter,
+        // and the nodes with their nested calls filtered.
+        Map<Node, CallsBuilder> found = new HashMap<Node, CallsBuilder>();
+        Map<Node, Node> filtered = new HashMap<Node, Node>();
+        List<Frame> frames = new ArrayList<Frame>();
+        frames.add(new Frame(null, roots, null, false));
+        while (true) {
+            Frame frame = frames.get(frames.size() - 1);
+            if (frame.index < frame.calls.size()) {
+                int i = frame.index++;
+                Node node = frame.calls.getNode(i);
+                if (!frame.selected && startFilter != null) {
+                    Activation activation =
+                            frame.calls.activation(i, frame.parent);
+                    if (!startFilter.accept(activation)) {
+                        if (found.containsKey(node)) {
+                            frame.result.addAll(found.get(node));
+                        } else {
+                            frames.add(new Frame(node, node.children,
+                                    activation, false));
+                        }
+                        continue;
+                    }
+                }
+                // The filter sees a call accepted by startFilter as a root
+                // call, as find would have made it.
+                Activation activation =
+                        frame.calls.activation(i, (frame.selected ? frame.parent
+                                : null));
+                if (filter == null) {
+                    frame.result.add(node, frame.calls, i);
+                } else if (filter.accept(activation)) {
+                    Node filteredNode = filtered.get(node);
+                    if (filteredNode != null) {
+                        frame.result.add(filteredNode, frame.calls, i);
+                    } else {
+                        frames.add(new Frame(node, node.children, activation,
+                                true));
+                    }
+                }
+            } else if (frames.size() > 1) {
+                frames.remove(frames.size() - 1);
+                Frame parentFrame = frames.get(frames.size() - 1);
+                if (frame.selected) {
+                    Node filteredNode =
+                            intern(frame.node.vmName, frame.node.className,
+                                    frame.node.method, frame.result);
+                    filtered.put(frame.node, filteredNode);
+                    parentFrame.result.add(filteredNode, parentFrame.calls,
+                            parentFrame.index - 1);
+                } else {
+                    found.put(frame.node, frame.result);
+                    parentFrame.result.addAll(frame.result);
+                }
+            } else {
+                return new CallDag(this, frame.result);
+            }
+        }
+    }
+
+    /**
+     * Returns a new <code>CallDag</code> where consecutive identical calls
+     * have been collapsed into one call with a number of repetitions, and
+     * repeated sequences of nested calls into loops, like
+     * <code>ActivationList.collapseRepetitions</code>.
+     *
+     * @return a new <code>CallDag</code> with no repeated identical calls or
+     *         sequences of calls
+     *
+     * @see ActivationList#collapseRepetitions()
+     */
+    public CallDag collapseRepetitions() {
+        Map<Node, Node> collapsed = new HashMap<Node, Node>();
+        List<Frame> frames = new ArrayList<Frame>();
+        frames.add(new Frame(null, collapseRepetitions(roots, false), null,
+                false));
+        while (true) {
+            Frame frame = frames.get(frames.size() - 1);
+            if (frame.index < frame.calls.size()) {
+                int i = frame.index++;
+                Node node = frame.calls.getNode(i);
+                Node collapsedNode = collapsed.get(node);
+                if (collapsedNode != null) {
+                    frame.result.add(collapsedNode, frame.calls
+                            .getRepetitions(i), frame.calls.getLoopLength(i),
+                            frame.calls.getIterations(i));
+                } else {
+                    frames.add(new Frame(node, collapseRepetitions(
+                            node.children, true), null, false));
+                }
+            } else if (frames.size() > 1) {
+                frames.remove(frames.size() - 1);
+                Node collapsedNode =
+                        intern(frame.node.vmName, frame.node.className,
+                                frame.node.method, frame.result);
+                collapsed.put(frame.node, collapsedNode);
+                Frame parentFrame = frames.get(frames.size() - 1);
+                int i = parentFrame.index - 1;
+                parentFrame.result.add(collapsedNode, parentFrame.calls
+                        .getRepetitions(i), parentFrame.calls.getLoopLength(i),
+                        parentFrame.calls.getIterations(i));
+            } else {
+                return new CallDag(this, frame.result);
+            }
+        }
+    }
+
+    /**
+     * Returns the calls in a list of calls with consecutive identical calls
+     * collapsed, and, if <code>collapsingLoops</code> is <code>true</code>,
+     * repeated sequences of calls collapsed into loops. The nested calls are
+     * not collapsed.
+     */
+    private static Calls collapseRepetitions(Calls calledNodes,
+            boolean collapsingLoops) {
+        // Identical calls are the same node, so no deep comparison is
+        // needed. Like Activation.addRepetition, each collapsed call adds one
+        // repetition.
+        List<Node> runNodes = new ArrayList<Node>();
+        List<Integer> runRepetitions = new ArrayList<Integer>();
+        List<Integer> runIterations = new ArrayList<Integer>();
+        int i = 0;
+        while (i < calledNodes.size()) {
+            Node node = calledNodes.getNode(i);
+            runNodes.add(node);
+            int numRepetitions = calledNodes.getRepetitions(i);
+            runIterations.add(Integer.valueOf(calledNodes.getIterations(i)));
+            for (i++; i < calledNodes.size() &&
+                    calledNodes.getNode(i) == node; i++) {
+                numRepetitions++;
+            }
+            runRepetitions.add(Integer.valueOf(numRepetitions));
+        }
+        CallsBuilder calls = new CallsBuilder();
+        int size = runNodes.size();
+        i = 0;
+        while (i < size) {
+            int length = 0;
+            int maxLength =
+                    (collapsingLoops ? ActivationList.MAX_LOOP_LENGTH : 0);
+            for (int n = 2; n <= maxLength && i + 2 * n <= size; n++) {
+                if (isSameSequence(runNodes, runRepetitions, i, i + n, n)) {
+                    length = n;
+                    break;
+                }
+            }
+            int numIterations = 1;
+            if (length == 0) {
+                length = 1;
+            } else {
+                numIterations = 2;
+                while (i + (numIterations + 1) * length <= size &&
+                        isSameSequence(runNodes, runRepetitions, i, i +
+                                numIterations * length, length)) {
+                    numIterations++;
+                }
+            }
+            for (int j = i; j < i + length; j++) {
+                // Like Activation.addIteration, each collapsed iteration
+                // adds one iteration.
+                calls.add(runNodes.get(j), runRepetitions.get(j).intValue(),
+                        (j == i && numIterations > 1 ? length : 0),
+                        runIterations.get(j).intValue() + numIterations - 1);
+            }
+            i += numIterations * length;
+        }
+        return calls.toCalls();
+    }
+
+    private static boolean isSameSequence(List<Node> nodes,
+            List<Integer> repetitions, int first, int second, int length) {
+        for (int j = 0; j < length; j++) {
+            if (nodes.get(first + j) != nodes.get(second + j) ||
+                    !repetitions.get(first + j).equals(
+                            repetitions.get(second + j))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a read-only <code>ActivationList</code> with the root calls
+     * and the notes of this <code>CallDag</code>. Its
+     * <code>Activation</code>s are created as they are read, and are not
+     * timed, so a call made in many places is a different
+     * <code>Activation</code> in each place.
+     *
+     * @return an <code>ActivationList</code> with the root calls of this
+     *         <code>CallDag</code>
+     */
+    public ActivationList getRootActivations() {
+        ActivationList rootActivations =
+                new ActivationList(new NodeList(roots, null));
+        for (String note : notes) {
+            rootActivations.addNote(note);
+        }
+        return rootActivations;
+    }
+
+    //
+    // Nested top-level classes
+    //
+
+    /**
+     * A <code>Node</code> is a distinct call subtree: a call to a method,
+     * and the calls it makes. Nodes are immutable, and there is only one
+     * instance of each in a <code>CallDag</code>, so nested nodes are
+     * compared by identity.
+     */
+    private static final class Node {
+        private final String vmName;
+        private final String className;
+        private final Method method;
+        private final Calls children;
+        private final int hash;
+
+        public Node(String vmName, String className, Method method,
+                Calls children) {
+            this.vmName = vmName;
+            this.className = className;
+            this.method = method;
+            this.children = children;
+            int result = 17;
+            result = 31 * result + className.hashCode();
+            result = 31 * result + (vmName == null ? 0 : vmName.hashCode());
+            result = 31 * result + method.name().hashCode();
+            result = 31 * result + children.hashCode();
+            this.hash = result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Node)) {
+                return false;
+            }
+            Node other = (Node) o;
+            return hash == other.hash && children.equals(other.children) &&
+                    className.equals(other.className) &&
+                    (vmName == null ? other.vmName == null : vmName
+                            .equals(other.vmName)) &&
+                    method.name().equals(other.method.name());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * An immutable list of calls, with the number of times each call is
+     * repeated, and the loops they form. Two <code>Calls</code> are equal if
+     * they call the same nodes, in the same way.
+     */
+    private static final class Calls {
+        private final Node[] nodes;
+        // Each of these is null if all its values are the default, which is
+        // one repetition, no loop starting at the call, and one iteration.
+        private final int[] repetitions;
+        private final int[] loopLengths;
+        private final int[] loopIterations;
+
+        public Calls(Node[] nodes, int[] repetitions, int[] loopLengths,
+                int[] loopIterations) {
+            this.nodes = nodes;
+            this.repetitions = repetitions;
+            this.loopLengths = loopLengths;
+            this.loopIterations = loopIterations;
+        }
+
+        public int size() {
+            return nodes.length;
+        }
+
+        public Node getNode(int i) {
+            return nodes[i];
+        }
+
+        public int getRepetitions(int i) {
+            return (repetitions == null ? 1 : repetitions[i]);
+        }
+
+        public int getLoopLength(int i) {
+            return (loopLengths == null ? 0 : loopLengths[i]);
+        }
+
+        public int getIterations(int i) {
+            return (loopIterations == null ? 1 : loopIterations[i]);
+        }
+
+        /**
+         * Returns a new <code>Activation</code> for a call, with a read-only
+         * view of its nested calls.
+         */
+        public Activation activation(int i, Activation parent) {
+            Node node = nodes[i];
+            Activation activation =
+                    new Activation(null, node.className, node.method,
+                            (parent == null ? 1 : parent.getFrameCount() + 1));
+            activation.setParent(parent);
+            activation.setVMName(node.vmName);
+            for (int n = 1; n < getRepetitions(i); n++) {
+                activation.increaseNumRepetitions();
+            }
+            activation.setLoopLength(getLoopLength(i));
+            activation.setNumLoopIterations(getIterations(i));
+            activation.setNestedActivations(new ActivationList(new NodeList(
+                    node.children, activation)));
+            return activation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Calls)) {
+                return false;
+            }
+            Calls other = (Calls) o;
+            if (nodes.length != other.nodes.length) {
+                return false;
+            }
+            for (int i = 0; i < nodes.length; i++) {
+                if (nodes[i] != other.nodes[i]) {
+                    return false;
+                }
+            }
+            return Arrays.equals(repetitions, other.repetitions) &&
+                    Arrays.equals(loopLengths, other.loopLengths) &&
+                    Arrays.equals(loopIterations, other.loopIterations);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 17;
+            for (Node node : nodes) {
+                result = 31 * result + System.identityHashCode(node);
+            }
+            result = 31 * result + Arrays.hashCode(repetitions);
+            result = 31 * result + Arrays.hashCode(loopLengths);
+            result = 31 * result + Arrays.hashCode(loopIterations);
+            return result;
+        }
+    }
+
+    /**
+     * A list of calls being walked, when walking the graph with an explicit
+     * stack, and the result of walking them.
+     */
+    private static class Frame {
+        // The node whose nested calls are walked, or null for the roots.
+        private final Node node;
+        private final Calls calls;
+        private final Activation parent;
+        // Whether the node has been selected, so that its nested calls are
+        // filtered instead of searched.
+        private final boolean selected;
+        private final CallsBuilder result = new CallsBuilder();
+        // The next call to walk.
+        private int index = 0;
+
+        public Frame(Node node, Calls calls, Activation parent,
+                boolean selected) {
+            this.node = node;
+            this.calls = calls;
+            this.parent = parent;
+            this.selected = selected;
+        }
+    }
+
+    /**
+     * A list of calls being built.
+     */
+    private static class CallsBuilder {
+        private final List<Node> nodes = new ArrayList<Node>();
+        private final IntList repetitions = new IntList(1);
+        private final IntList loopLengths = new IntList(0);
+        private final IntList loopIterations = new IntList(1);
+
+        public void add(Node node, int numRepetitions, int loopLength,
+                int numLoopIterations) {
+            nodes.add(node);
+            repetitions.add(numRepetitions);
+            loopLengths.add(loopLength);
+            loopIterations.add(numLoopIterations);
+        }
+
+        /**
+         * Adds a call taken from another list of calls. The call may not
+         * be followed by the same calls as there, so it does not start a loop
+         * any longer.
+         */
+        public void add(Node node, Calls calls, int i) {
+            add(node, calls.getRepetitions(i), 0, calls.getIterations(i));
+        }
+
+        public void add(Node node, Activation activation) {
+            add(node, activation.getNumRepetitions(), activation
+                    .getLoopLength(), activation.getNumLoopIterations());
+        }
+
+        public void addAll(CallsBuilder calls) {
+            for (int i = 0; i < calls.nodes.size(); i++) {
+                add(calls.nodes.get(i), calls.repetitions.get(i),
+                        calls.loopLengths.get(i), calls.loopIterations.get(i));
+            }
+        }
+
+        public Calls toCalls() {
+            return new Calls(nodes.toArray(new Node[nodes.size()]),
+                    repetitions.toArray(), loopLengths.toArray(),
+                    loopIterations.toArray());
+        }
+    }
+
+    /**
+     * A growable list of <code>int</code>s, most of which are usually the
+     * same default value.
+     */
+    private static class IntList {
+        private final int defaultValue;
+        private int[] values = new int[4];
+        private int size = 0;
+        private boolean allDefault = true;
+
+        public IntList(int defaultValue) {
+            this.defaultValue = defaultValue;
+        }
+
+        public void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+            allDefault &= value == defaultValue;
+        }
+
+        public int get(int i) {
+            return values[i];
+        }
+
+        /**
+         * Returns the values, or <code>null</code> if they are all the
+         * default value.
+         */
+        public int[] toArray() {
+            return (allDefault ? null : Arrays.copyOf(values, size));
+        }
+    }
+
+    /**
+     * A read-only list of <code>Activation</code>s created from a list of
+     * calls. When serialized, it is replaced with a plain list of the
+     * <code>Activation</code>s.
+     */
+    private static class NodeList extends AbstractList<Activation> implements
+            java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Calls calls;
+        private final Activation parent;
+
+        public NodeList(Calls calls, Activation parent) {
+            this.calls = calls;
+            this.parent = parent;
+        }
+
+        @Override
+        public Activation get(int index) {
+            return calls.activation(index, parent);
+        }
+
+        @Override
+        public int size() {
+            return calls.size();
+        }
+
+        protected Object writeReplace() {
+            return new LinkedList<Activation>(this);
+        }
+    }
+}
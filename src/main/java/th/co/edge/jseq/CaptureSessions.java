@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+/**
+ * A <code>CaptureSessions</code> keeps track of the capture sessions started
+ * from a start method breakpoint. Each invocation of the start method that is
+ * traced is a separate session, on its own thread, with its own root
+ * <code>Activation</code>. Sessions may run concurrently, up to a limit, and
+ * a quota limits the total number of sessions.
+ */
+class CaptureSessions {
+    private final int maxConcurrentSessions;
+    private final int quota;
+    private int numStarted = 0;
+    private int numActive = 0;
+
+    /**
+     * Creates a new <code>CaptureSessions</code>.
+     *
+     * @param maxConcurrentSessions
+     *            the maximum number of sessions running at the same time
+     * @param quota
+     *            the maximum number of sessions to start, or 0 for no limit
+     */
+    public CaptureSessions(int maxConcurrentSessions, int quota) {
+        if (maxConcurrentSessions < 1 || quota < 0) {
+            throw new IllegalArgumentException("Illegal sessions: " +
+                    maxConcurrentSessions + " concurrent, quota " + quota);
+        }
+        this.maxConcurrentSessions = maxConcurrentSessions;
+        this.quota = quota;
+    }
+
+    /**
+     * Starts a new session, unless too many sessions are running or the quota
+     * has been reached.
+     *
+     * @return <code>true</code> if a session was started
+     */
+    public boolean tryStart() {
+        if (isFull() || isQuotaReached()) {
+            return false;
+        }
+        numStarted++;
+        numActive++;
+        return true;
+    }
+
+    /**
+     * Records that a session has finished.
+     */
+    public void finish() {
+        if (numActive == 0) {
+            throw new IllegalStateException("No active session");
+        }
+        numActive--;
+    }
+
+    /**
+     * Returns <code>true</code> if the maximum number of sessions are running,
+     * so that no new session can be started until one finishes.
+     *
+     * @return <code>true</code> if no more sessions can run at the same time
+     */
+    public boolean isFull() {
+        return numActive >= maxConcurrentSessions;
+    }
+
+    /**
+     * Returns <code>true</code> if the quota of sessions has been started.
+     *
+     * @return <code>true</code> if no more sessions will be started
+     */
+    public boolean isQuotaReached() {
+        return quota != 0 && numStarted >= quota;
+    }
+
+    /**
+     * Returns <code>true</code> if the quota has been reached and all
+     * sessions have finished.
+     *
+     * @return <code>true</code> if all sessions are done
+     */
+    public boolean isDone() {
+        return isQuotaReached() && numActive == 0;
+    }
+
+    /**
+     * Returns the number of sessions started so far.
+     *
+     * @return the number of started sessions
+     */
+    public int getNumStarted() {
+        return numStarted;
+    }
+
+    /**
+     * Returns the number of sessions currently running.
+     *
+     * @return the number of active sessions
+     */
+    public int getNumActive() {
+        return numActive;
+    }
+}
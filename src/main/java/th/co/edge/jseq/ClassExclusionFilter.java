@@ -22,17 +22,22 @@
 
 package th.co.edge.jseq;
 
+import java.util.Collection;
+import java.util.Collections;
+
+import th.co.edge.jseq.util.PatternMatcher;
+
 /**
  * A <code>Filter</code> that only accepts <code>Activation</code>s with
- * method names that do not match a given exclude pattern.
+ * method names that do not match any of a given set of exclude patterns.
  */
 public class ClassExclusionFilter implements ActivationList.Filter {
-    private String excludePattern;
+    private final PatternMatcher excludeMatcher;
 
     /**
      * Creates a new <code>ClassExclusionFilter</code> with the given method
-     * name exclude pattern. If the pattern starts or ends with "*", all method
-     * names with the correct suffix or prefix, respectively, are accepted.
+     * name exclude pattern. The wild-card "*" in the pattern matches any
+     * sequence of characters, and "?" matches any single character.
      *
      * <p>
      * For example, the pattern "foo.Bar.baz" would only match a method named
@@ -41,38 +46,43 @@ public class ClassExclusionFilter implements ActivationList.Filter {
      *
      * @param excludePattern
      *            the exclude pattern to use for this filter instance, possibly
-     *            starting or ending with the wildcard "*"
+     *            containing the wildcards "*" and "?"
      */
     public ClassExclusionFilter(String excludePattern) {
-        this.excludePattern = excludePattern;
+        this(Collections.singletonList(excludePattern));
+    }
+
+    /**
+     * Creates a new <code>ClassExclusionFilter</code> that excludes method
+     * names matching any of the given patterns. The patterns are compiled
+     * once, so filtering with many patterns takes a single pass over the
+     * activations.
+     *
+     * @param excludePatterns
+     *            the exclude patterns to use for this filter instance, possibly
+     *            containing the wildcards "*" and "?"
+     *
+     * @see #ClassExclusionFilter(String)
+     */
+    public ClassExclusionFilter(Collection<String> excludePatterns) {
+        this.excludeMatcher = new PatternMatcher(excludePatterns);
     }
 
     /**
      * Returns <code>true</code> if and only if the given
      * <code>Activation</code> represents a method call where the class name
-     * plus method name matches the exclude pattern used by this filter.
+     * plus method name does not match any exclude pattern used by this filter.
      *
      * @param activation
      *            the <code>Activation</code> to check for matching method
      *            name
      *
      * @return <code>true</code> if <code>activation</code> represents a
-     *         method call that matches the exclude pattern used by this filter
+     *         method call that does not match the exclude patterns used by
+     *         this filter
      */
     public boolean accept(Activation activation) {
-        String fullMethodName =
-                activation.getClassName() + "." + activation.getMethod().name();
-        boolean accepted = true;
-        if (excludePattern.endsWith("*")) {
-            String prefix =
-                    excludePattern.substring(0, excludePattern.length() - 1);
-            accepted = !fullMethodName.startsWith(prefix);
-        } else if (excludePattern.startsWith("*")) {
-            String suffix = excludePattern.substring(1);
-            accepted = !fullMethodName.endsWith(suffix);
-        } else {
-            accepted = !fullMethodName.equals(excludePattern);
-        }
-        return accepted;
+        return !excludeMatcher.matches(activation.getClassName(), activation
+                .getMethod().name());
     }
 }
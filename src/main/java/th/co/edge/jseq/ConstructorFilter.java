@@ -117,8 +117,12 @@ public class ConstructorFilter implements Filter {
     private boolean isDeclaredInSuperclass(Method m1, Method m2) {
         boolean fromSuperclass = false;
         try {
-            Class<?> c1 = classLoader.loadClass(m1.declaringType().name());
-            Class<?> c2 = classLoader.loadClass(m2.declaringType().name());
+            Class<?> c1 =
+                    classLoader.loadClass(DetachedMethod
+                            .getDeclaringTypeName(m1));
+            Class<?> c2 =
+                    classLoader.loadClass(DetachedMethod
+                            .getDeclaringTypeName(m2));
             if (c1.isAssignableFrom(c2) && !c1.equals(c2)) {
                 fromSuperclass = true;
             }
@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.sun.jdi.AbsentInformationException;
+import com.sun.jdi.LocalVariable;
+import com.sun.jdi.Location;
+import com.sun.jdi.Method;
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.Type;
+import com.sun.jdi.VirtualMachine;
+
+/**
+ * A <code>DetachedMethod</code> is a <code>Method</code> that has been
+ * recorded without a connection to a live virtual machine, for example by the
+ * JSeq instrumentation agent. It only knows the name, signature, modifiers and
+ * declaring class name of the method, and unlike the JDI implementation it can
+ * be serialized.
+ *
+ * <p>
+ * Operations that would require a live virtual machine, like
+ * <code>declaringType</code> or <code>allLineLocations</code>, return
+ * <code>null</code> or empty lists.
+ */
+public class DetachedMethod implements Method, java.io.Serializable {
+    private static final long serialVersionUID = 4326529785127043174L;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_PROTECTED = 0x0004;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SYNCHRONIZED = 0x0020;
+    private static final int ACC_BRIDGE = 0x0040;
+    private static final int ACC_VARARGS = 0x0080;
+    private static final int ACC_NATIVE = 0x0100;
+    private static final int ACC_ABSTRACT = 0x0400;
+    private static final int ACC_SYNTHETIC = 0x1000;
+
+    private final String declaringTypeName;
+    private final String name;
+    private final String signature;
+    private final int modifiers;
+
+    /**
+     * Creates a new <code>DetachedMethod</code>.
+     *
+     * @param declaringTypeName
+     *            the fully qualified name of the class declaring the method
+     * @param name
+     *            the name of the method, e.g., "&lt;init&gt;" for a
+     *            constructor
+     * @param signature
+     *            the JNI-style signature of the method, e.g., "(I)V"
+     * @param modifiers
+     *            the access flags of the method, as defined in the class file
+     *            format
+     */
+    public DetachedMethod(String declaringTypeName, String name,
+            String signature, int modifiers) {
+        this.declaringTypeName = declaringTypeName;
+        this.name = name;
+        this.signature = signature;
+        this.modifiers = modifiers;
+    }
+
+    /**
+     * Returns the fully qualified name of the class declaring this method.
+     *
+     * @return the name of the class declaring this method
+     */
+    public String getDeclaringTypeName() {
+        return declaringTypeName;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String signature() {
+        return signature;
+    }
+
+    public String genericSignature() {
+        return null;
+    }
+
+    public int modifiers() {
+        return modifiers;
+    }
+
+    public ReferenceType declaringType() {
+        return null;
+    }
+
+    public VirtualMachine virtualMachine() {
+        return null;
+    }
+
+    public List<Location> allLineLocations() throws AbsentInformationException {
+        return Collections.emptyList();
+    }
+
+    public List<Location> allLineLocations(String stratum, String sourceName)
+            throws AbsentInformationException {
+        return Collections.emptyList();
+    }
+
+    public List<Location> locationsOfLine(int lineNumber)
+            throws AbsentInformationException {
+        return Collections.emptyList();
+    }
+
+    public List<Location> locationsOfLine(String stratum, String sourceName,
+            int lineNumber) throws AbsentInformationException {
+        return Collections.emptyList();
+    }
+
+    public Location location() {
+        return null;
+    }
+
+    public Location locationOfCodeIndex(long codeIndex) {
+        return null;
+    }
+
+    public List<String> argumentTypeNames() {
+        List<String> typeNames = new ArrayList<String>();
+        int i = 1;
+        while (i < signature.length() && signature.charAt(i) != ')') {
+            i = parseTypeName(signature, i, typeNames);
+        }
+        return typeNames;
+    }
+
+    public List<Type> argumentTypes() {
+        return Collections.emptyList();
+    }
+
+    public String returnTypeName() {
+        List<String> typeNames = new ArrayList<String>();
+        parseTypeName(signature, signature.indexOf(')') + 1, typeNames);
+        return typeNames.get(0);
+    }
+
+    /**
+     * Parses the type in a JNI-style signature starting at a given position,
+     * and adds its name, as used in Java source code, to a list.
+     *
+     * @return the position after the parsed type
+     */
+    private static int parseTypeName(String signature, int start,
+            List<String> typeNames) {
+        int i = start;
+        int dimensions = 0;
+        while (signature.charAt(i) == '[') {
+            dimensions++;
+            i++;
+        }
+        String typeName;
+        char c = signature.charAt(i++);
+        switch (c) {
+        case 'Z': typeName = "boolean"; break;
+        case 'B': typeName = "byte"; break;
+        case 'C': typeName = "char"; break;
+        case 'S': typeName = "short"; break;
+        case 'I': typeName = "int"; break;
+        case 'J': typeName = "long"; break;
+        case 'F': typeName = "float"; break;
+        case 'D': typeName = "double"; break;
+        case 'V': typeName = "void"; break;
+        case 'L':
+            int end = signature.indexOf(';', i);
+            typeName = signature.substring(i, end).replace('/', '.');
+            i = end + 1;
+            break;
+        default:
+            throw new IllegalArgumentException("Illegal signature: " +
+                    signature);
+        }
+        StringBuffer s = new StringBuffer(typeName);
+        for (int d = 0; d < dimensions; d++) {
+            s.append("[]");
+        }
+        typeNames.add(s.toString());
+        return i;
+    }
+
+    public Type returnType() {
+        return null;
+    }
+
+    public List<LocalVariable> arguments() throws AbsentInformationException {
+        throw new AbsentInformationException();
+    }
+
+    public List<LocalVariable> variables() throws AbsentInformationException {
+        throw new AbsentInformationException();
+    }
+
+    public List<LocalVariable> variablesByName(String name)
+            throws AbsentInformationException {
+        throw new AbsentInformationException();
+    }
+
+    public byte[] bytecodes() {
+        return new byte[0];
+    }
+
+    public boolean isConstructor() {
+        return "<init>".equals(name);
+    }
+
+    public boolean isStaticInitializer() {
+        return "<clinit>".equals(name);
+    }
+
+    public boolean isObsolete() {
+        return false;
+    }
+
+    public boolean isAbstract() {
+        return (modifiers & ACC_ABSTRACT) != 0;
+    }
+
+    public boolean isBridge() {
+        return (modifiers & ACC_BRIDGE) != 0;
+    }
+
+    public boolean isNative() {
+        return (modifiers & ACC_NATIVE) != 0;
+    }
+
+    public boolean isSynchronized() {
+        return (modifiers & ACC_SYNCHRONIZED) != 0;
+    }
+
+    public boolean isVarArgs() {
+        return (modifiers & ACC_VARARGS) != 0;
+    }
+
+    public boolean isFinal() {
+        return (modifiers & ACC_FINAL) != 0;
+    }
+
+    public boolean isStatic() {
+        return (modifiers & ACC_STATIC) != 0;
+    }
+
+    public boolean isSynthetic() {
+        return (modifiers & ACC_SYNTHETIC) != 0;
+    }
+
+    public boolean isPublic() {
+        return (modifiers & ACC_PUBLIC) != 0;
+    }
+
+    public boolean isPrivate() {
+        return (modifiers & ACC_PRIVATE) != 0;
+    }
+
+    public boolean isProtected() {
+        return (modifiers & ACC_PROTECTED) != 0;
+    }
+
+    public boolean isPackagePrivate() {
+        return !isPublic() && !isPrivate() && !isProtected();
+    }
+
+    /**
+     * Compares this method to another method, first by declaring class name,
+     * then by name and finally by signature.
+     *
+     * @param otherMethod
+     *            the <code>Method</code> to compare this method to
+     *
+     * @return a negative integer, zero or a positive integer if this method
+     *         is less than, equal to, or greater than
+     *         <code>otherMethod</code>
+     */
+    public int compareTo(Method otherMethod) {
+        int result =
+                declaringTypeName.compareTo(getDeclaringTypeName(otherMethod));
+        if (result == 0) {
+            result = name.compareTo(otherMethod.name());
+        }
+        if (result == 0) {
+            result = signature.compareTo(otherMethod.signature());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the name of the class declaring a method, without requiring a
+     * live virtual machine if the method is a <code>DetachedMethod</code>.
+     *
+     * @param method
+     *            the <code>Method</code> whose declaring class to look up
+     *
+     * @return the fully qualified name of the class declaring
+     *         <code>method</code>
+     */
+    public static String getDeclaringTypeName(Method method) {
+        if (method instanceof DetachedMethod) {
+            return ((DetachedMethod) method).getDeclaringTypeName();
+        }
+        return method.declaringType().name();
+    }
+
+    /**
+     * Compares this <code>DetachedMethod</code> to another object, and
+     * returns <code>true</code> if and only if the other object is a
+     * <code>DetachedMethod</code> with the same declaring class, name and
+     * signature.
+     *
+     * @param o
+     *            the object to compare this <code>DetachedMethod</code> to
+     *
+     * @return <code>true</code> if <code>o</code> represents the same
+     *         method as this <code>DetachedMethod</code>
+     */
+    @Override
+    public boolean equals(Object o) {
+        boolean equal = false;
+        if (o instanceof DetachedMethod) {
+            DetachedMethod otherMethod = (DetachedMethod) o;
+            equal =
+                    declaringTypeName.equals(otherMethod.declaringTypeName) &&
+                            name.equals(otherMethod.name) &&
+                            signature.equals(otherMethod.signature);
+        }
+        return equal;
+    }
+
+    /**
+     * Returns a hash code for this <code>DetachedMethod</code>.
+     *
+     * @return a hash code for this <code>DetachedMethod</code>
+     */
+    @Override
+    public int hashCode() {
+        int result = 17;
+        result = 31 * result + declaringTypeName.hashCode();
+        result = 31 * result + name.hashCode();
+        result = 31 * result + signature.hashCode();
+        return result;
+    }
+
+    /**
+     * Returns a string representation of this <code>DetachedMethod</code>,
+     * mainly useful for logging.
+     *
+     * @return a string representation of this <code>DetachedMethod</code>
+     */
+    @Override
+    public String toString() {
+        return declaringTypeName + "." + name + signature;
+    }
+}
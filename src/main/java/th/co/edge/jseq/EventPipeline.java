@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+/**
+ * An <code>EventPipeline</code> decouples the handling of JDI events from the
+ * building of <code>Activation</code>s. The event thread only copies the
+ * essential data of each event into an <code>EventRing</code> and can then
+ * resume the traced VM at once, while a number of worker threads build the
+ * <code>Activation</code>s in the background.
+ *
+ * <p>
+ * Each traced thread is assigned to one worker thread, so the records of a
+ * traced thread are always processed in order, by the same worker thread.
+ */
+class EventPipeline {
+    private final EventRing[] rings;
+    private final Worker[] workers;
+    private volatile boolean stopping = false;
+
+    /**
+     * Creates a new <code>EventPipeline</code>. The worker threads are not
+     * started until <code>start</code> is called.
+     *
+     * @param numWorkers
+     *            the number of worker threads
+     * @param ringCapacity
+     *            the minimum number of records each worker thread can have
+     *            waiting
+     */
+    public EventPipeline(int numWorkers, int ringCapacity) {
+        if (numWorkers < 1) {
+            throw new IllegalArgumentException("numWorkers < 1: " + numWorkers);
+        }
+        this.rings = new EventRing[numWorkers];
+        this.workers = new Worker[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            rings[i] = new EventRing(ringCapacity);
+            workers[i] = new Worker(rings[i], "activation-builder-" + i);
+        }
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    public void start() {
+        for (Worker worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Returns the <code>EventRing</code> that the records of the traced
+     * thread with the given unique ID should be published to.
+     *
+     * @param threadId
+     *            the unique ID of a traced thread
+     *
+     * @return the <code>EventRing</code> for the thread
+     */
+    public EventRing ringFor(long threadId) {
+        return rings[(int) ((threadId & Long.MAX_VALUE) % rings.length)];
+    }
+
+    /**
+     * Waits until all published records have been processed.
+     */
+    public void drain() {
+        for (EventRing ring : rings) {
+            while (!ring.isEmpty()) {
+                EventRing.pause();
+            }
+        }
+    }
+
+    /**
+     * Processes all published records and then stops the worker threads.
+     */
+    public void shutdown() {
+        stopping = true;
+        for (Worker worker : workers) {
+            boolean interrupted = false;
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the queue statistics of all worker threads.
+     *
+     * @return the current queue statistics
+     */
+    public QueueStatistics getStatistics() {
+        long numRecords = 0;
+        long numStalls = 0;
+        long maxBacklog = 0;
+        long totalLag = 0;
+        long maxLag = 0;
+        for (int i = 0; i < workers.length; i++) {
+            numRecords += workers[i].numProcessed;
+            totalLag += workers[i].totalLagNanos;
+            maxLag = Math.max(maxLag, workers[i].maxLagNanos);
+            numStalls += rings[i].getNumStalls();
+            maxBacklog = Math.max(maxBacklog, rings[i].getMaxBacklog());
+        }
+        return new QueueStatistics(workers.length, rings[0].getCapacity(),
+                numRecords, numStalls, maxBacklog, totalLag, maxLag);
+    }
+
+    private class Worker extends Thread {
+        private final EventRing ring;
+        private volatile long numProcessed = 0;
+        private volatile long totalLagNanos = 0;
+        private volatile long maxLagNanos = 0;
+
+        Worker(EventRing ring, String name) {
+            super(name);
+            this.ring = ring;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            int numEmptyPolls = 0;
+            while (true) {
+                EventRing.Record record = ring.peek();
+                if (record == null) {
+                    if (stopping && ring.isEmpty()) {
+                        break;
+                    }
+                    EventRing.pause(numEmptyPolls);
+                    if (numEmptyPolls < Integer.MAX_VALUE) {
+                        numEmptyPolls++;
+                    }
+                    continue;
+                }
+                numEmptyPolls = 0;
+                long lag = System.nanoTime() - record.publishTime;
+                try {
+                    process(record);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                ring.release();
+                numProcessed++;
+                totalLagNanos += lag;
+                if (lag > maxLagNanos) {
+                    maxLagNanos = lag;
+                }
+            }
+        }
+
+        private void process(EventRing.Record record) {
+            TraceSink sink = record.sink;
+            switch (record.kind) {
+            case EventRing.Record.ENTRY:
+                sink.entry(record.className, record.method, record.depth,
+                        record.root, record.publishTime);
+                break;
+            case EventRing.Record.EXIT:
+                sink.exit(record.publishTime);
+                break;
+            case EventRing.Record.UNWIND:
+                sink.unwind(record.depth, record.publishTime);
+                break;
+            case EventRing.Record.THREAD_END:
+                sink.threadEnd();
+                break;
+            default:
+                throw new IllegalStateException("Unknown record kind: " +
+                        record.kind);
+            }
+        }
+    }
+}
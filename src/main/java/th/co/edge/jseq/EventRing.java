@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sun.jdi.Method;
+
+/**
+ * An <code>EventRing</code> is a preallocated, bounded queue of trace
+ * records, written by exactly one producer thread and read by exactly one
+ * consumer thread. The records are reused, so publishing a record does not
+ * allocate any memory.
+ *
+ * <p>
+ * The producer claims a record with <code>claim</code>, fills it in, and
+ * makes it visible to the consumer with <code>publish</code>. If the ring is
+ * full, <code>claim</code> waits until the consumer has caught up.
+ */
+class EventRing {
+    private static final long MIN_PAUSE_NANOS = 50000L;
+    // The number of times in a row a consumer may find the ring empty before
+    // it starts to wait longer, and the number of times the wait is doubled.
+    private static final int NUM_SHORT_PAUSES = 100;
+    private static final int MAX_DOUBLINGS = 8;
+
+    private final Record[] records;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // Only written by the producer thread.
+    private long numStalls = 0;
+    private long maxBacklog = 0;
+
+    /**
+     * Creates a new <code>EventRing</code> that can hold at least the given
+     * number of records.
+     *
+     * @param minCapacity
+     *            the minimum number of records the ring can hold
+     */
+    public EventRing(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(minCapacity, 2) - 1) << 1;
+        this.records = new Record[capacity];
+        for (int i = 0; i < capacity; i++) {
+            records[i] = new Record();
+        }
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Returns the next free record, waiting for the consumer if the ring is
+     * full. The record must be filled in and then published with
+     * <code>publish</code> before <code>claim</code> is called again.
+     *
+     * @return the next free record
+     */
+    public Record claim() {
+        long t = tail.get();
+        if (t - head.get() >= records.length) {
+            numStalls++;
+            while (t - head.get() >= records.length) {
+                Thread.yield();
+            }
+        }
+        return records[(int) t & mask];
+    }
+
+    /**
+     * Makes the record returned by the last call to <code>claim</code>
+     * visible to the consumer.
+     */
+    public void publish() {
+        long t = tail.get() + 1;
+        long backlog = t - head.get();
+        if (backlog > maxBacklog) {
+            maxBacklog = backlog;
+        }
+        records[(int) (t - 1) & mask].publishTime = System.nanoTime();
+        tail.lazySet(t);
+    }
+
+    /**
+     * Returns the oldest published record, or <code>null</code> if there is
+     * none. The record stays valid until <code>release</code> is called.
+     *
+     * @return the oldest published record, or <code>null</code>
+     */
+    public Record peek() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        return records[(int) h & mask];
+    }
+
+    /**
+     * Hands the record returned by the last call to <code>peek</code> back to
+     * the producer.
+     */
+    public void release() {
+        long h = head.get();
+        records[(int) h & mask].clear();
+        head.lazySet(h + 1);
+    }
+
+    /**
+     * Returns <code>true</code> if all published records have been released.
+     *
+     * @return <code>true</code> if the ring is empty
+     */
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * Waits a short while, for use by a consumer that found the ring empty.
+     */
+    public static void pause() {
+        pause(0);
+    }
+
+    /**
+     * Waits a while, for use by a consumer that found the ring empty. The
+     * longer the ring has been empty, the longer the wait, up to about 13
+     * milliseconds, so that an idle consumer hardly uses any CPU, while a
+     * busy one picks up new records at once.
+     *
+     * @param numEmptyPolls
+     *            the number of times in a row that the consumer has found the
+     *            ring empty before
+     */
+    public static void pause(int numEmptyPolls) {
+        int numDoublings =
+                Math.min(Math.max(numEmptyPolls - NUM_SHORT_PAUSES, 0),
+                        MAX_DOUBLINGS);
+        LockSupport.parkNanos(MIN_PAUSE_NANOS << numDoublings);
+    }
+
+    /**
+     * Returns the number of records published so far.
+     *
+     * @return the number of published records
+     */
+    public long getNumPublished() {
+        return tail.get();
+    }
+
+    /**
+     * Returns the number of times the producer had to wait because the ring
+     * was full.
+     *
+     * @return the number of producer stalls
+     */
+    public long getNumStalls() {
+        return numStalls;
+    }
+
+    /**
+     * Returns the largest number of records that have been waiting in the
+     * ring at the same time.
+     *
+     * @return the maximum backlog
+     */
+    public long getMaxBacklog() {
+        return maxBacklog;
+    }
+
+    /**
+     * Returns the number of records the ring can hold.
+     *
+     * @return the capacity of the ring
+     */
+    public int getCapacity() {
+        return records.length;
+    }
+
+    /**
+     * A single trace record, describing something that happened in a traced
+     * thread.
+     */
+    static class Record {
+        static final int ENTRY = 1;
+        static final int EXIT = 2;
+        static final int UNWIND = 3;
+        static final int THREAD_END = 4;
+
+        int kind;
+        TraceSink sink;
+        String className;
+        Method method;
+        int depth;
+        Activation root;
+        long publishTime;
+
+        void clear() {
+            sink = null;
+            className = null;
+            method = null;
+            root = null;
+        }
+    }
+}
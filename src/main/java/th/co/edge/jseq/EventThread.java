@@ -22,15 +22,18 @@
 
 package th.co.edge.jseq;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.sun.jdi.AbsentInformationException;
 import com.sun.jdi.IncompatibleThreadStateException;
 import com.sun.jdi.Location;
 import com.sun.jdi.Method;
-import com.sun.jdi.ObjectReference;
 import com.sun.jdi.ReferenceType;
 import com.sun.jdi.StackFrame;
 import com.sun.jdi.ThreadReference;
@@ -61,6 +64,9 @@ import com.sun.jdi.request.MethodExitRequest;
 import com.sun.jdi.request.StepRequest;
 import com.sun.jdi.request.ThreadDeathRequest;
 
+import th.co.edge.jseq.util.LongHashMap;
+import th.co.edge.jseq.util.PatternMatcher;
+
 /**
  * An <code>EventThred</code> traces the execution of a Java process, keeping
  * track of all method calls as <code>Activation</code>s in an
@@ -70,23 +76,52 @@ import com.sun.jdi.request.ThreadDeathRequest;
  * activation.
  */
 public class EventThread extends Thread {
+    private static final int RING_CAPACITY = 8192;
+    private static final int MAX_COUNTED_METHODS = 10;
 
     private final VirtualMachine vm;
     private final ActivationList rootActivations;
     private final List<String> includes;
     private final List<String> excludes;
-    private final List<String> boundaryMethods;
+    private final PatternMatcher captureIncludes;
+    private final PatternMatcher captureExcludes;
+    // Boundary methods without wild-cards, keyed by method name.
+    private final Map<String, Set<String>> boundaryClasses =
+            new HashMap<String, Set<String>>();
+    private final PatternMatcher boundaryPatterns;
     private boolean publicOnly;
     private final boolean trace;
+    private SuspendPolicy suspendPolicy = SuspendPolicy.ALL;
+    private boolean trackExceptions = true;
 
     private String startClassName;
     private String startMethodName;
+    private List<Method> startMethods = new ArrayList<Method>();
+    private int numSkippedInvocations = 0;
+    private int captureInterval = 1;
+    private int captureQuota = 1;
+    private int maxConcurrentSessions = 1;
+    private CaptureSessions sessions;
+    private List<BreakpointRequest> startBreakpoints =
+            new ArrayList<BreakpointRequest>();
+    private boolean startBreakpointsCounted = false;
 
     private boolean connected = true;
     private boolean vmDied = true;
 
-    private Map<ThreadReference, ThreadTrace> traceMap =
-            new HashMap<ThreadReference, ThreadTrace>();
+    // The threads being traced, by unique ID. A thread is removed when it
+    // dies, so this only holds the live threads.
+    private final LongHashMap<ThreadTrace> traceMap =
+            new LongHashMap<ThreadTrace>();
+    private final RuntimeTypeResolver typeResolver = new RuntimeTypeResolver();
+    private final SymbolTable symbols = new SymbolTable();
+    private List<EventRequest> globalRequests = null;
+    private TraceLogWriter traceLog = null;
+    private String vmName = null;
+    private OverheadGovernor governor = new OverheadGovernor(0, 0);
+    private final Set<String> droppedClasses = new HashSet<String>();
+    private final EventPipeline pipeline =
+            new EventPipeline(defaultNumWorkers(), RING_CAPACITY);
 
     /**
      * Creates a new <code>EventThread</code> that traces a given JDI
@@ -99,8 +134,10 @@ public class EventThread extends Thread {
      * method name is empty. If both lists are non-empty, only the methods in
      * the included list are traced, except the ones in the excluded list.
      * Method names in the included and excluded lists can either be a fully
-     * qualified method name, or a simple wild-card expression starting or
-     * ending with "*".
+     * qualified method name, or a wild-card expression where "*" matches any
+     * sequence of characters and "?" any single character. Patterns that only
+     * start or end with "*" are handed to JDI as class filters; other patterns
+     * are checked by the <code>EventThread</code> for each traced call.
      *
      * <p>
      * For example, if the included list contains "foo.Bar.*", and the excluded
@@ -115,14 +152,17 @@ public class EventThread extends Thread {
      * <p>
      * It is also possible to specify a list of boundary methods. A <it>bounday
      * method</it> is a method where tracing stops at entry to the method and
-     * is resumed when the method exits. This list should contain fully
-     * qualified method names, no wild-cards are accepted.
+     * is resumed when the method exits. This list contains fully qualified
+     * method names, which may contain the wild-cards "*" and "?".
      *
      * <p>
      * For example, if the list of boundary methods contains "foo.Bar.baz",
      * tracing will include the call to <code>baz</code>, but no methods
      * called by <code>baz</code>. Normal tracing is resumed after
-     * <code>baz</code> returns.
+     * <code>baz</code> returns. The call to <code>baz</code> is recorded as
+     * a single <code>Activation</code>, carrying the elapsed time of the
+     * call. Listing "com.mysql.*" makes every call into the
+     * <code>com.mysql</code> package such an opaque call.
      *
      * @param vm
      *            the JDI <code>VirtualMachine</code>, a representation of
@@ -132,15 +172,16 @@ public class EventThread extends Thread {
      *            program trace
      * @param includes
      *            a list of method name pattern that will be included in the
-     *            program trace, where name patterns may start or end with the
-     *            wild-card "*"
+     *            program trace, where name patterns may contain the
+     *            wild-cards "*" and "?"
      * @param excludes
      *            a list of method name patterns that will be excluded in the
-     *            program trace, where name patterns may start or end with the
-     *            wild-card "*"
+     *            program trace, where name patterns may contain the
+     *            wild-cards "*" and "?"
      * @param boundaryMethods
-     *            a list of boundary methods, methods where tracing will stop
-     *            during the execution of the method
+     *            a list of boundary method name patterns, methods where
+     *            tracing will stop during the execution of the method, where
+     *            name patterns may contain the wild-cards "*" and "?"
      * @param publicOnly
      *            if <code>true</code> only include public methods
      *            in the program trace
@@ -155,30 +196,307 @@ public class EventThread extends Thread {
         super("event-handler");
         this.vm = vm;
         this.rootActivations = rootActivations;
-        this.includes = includes;
-        this.excludes = excludes;
+        this.includes = new ArrayList<String>();
+        this.excludes = new ArrayList<String>();
+        boolean complexIncludes = false;
+        for (String includePattern : includes) {
+            if (PatternMatcher.isComplex(includePattern)) {
+                // Let JDI narrow the events down as far as it can.
+                String prefix = PatternMatcher.literalPrefix(includePattern);
+                if (prefix.length() > 0) {
+                    this.includes.add(prefix + "*");
+                }
+                complexIncludes = true;
+            } else {
+                this.includes.add(includePattern);
+            }
+        }
+        List<String> complexExcludes = new ArrayList<String>();
+        for (String excludePattern : excludes) {
+            if (PatternMatcher.isComplex(excludePattern)) {
+                complexExcludes.add(excludePattern);
+            } else {
+                this.excludes.add(excludePattern);
+            }
+        }
+        this.captureIncludes =
+                (complexIncludes ? new PatternMatcher(includes) : null);
+        this.captureExcludes =
+                (complexExcludes.isEmpty() ? null : new PatternMatcher(
+                        complexExcludes));
         this.trace = trace;
-        this.boundaryMethods = boundaryMethods;
+        List<String> wildcardBoundaries = new ArrayList<String>();
+        for (String boundaryMethod : boundaryMethods) {
+            int lastDot = boundaryMethod.lastIndexOf('.');
+            if (boundaryMethod.indexOf('*') >= 0 ||
+                    boundaryMethod.indexOf('?') >= 0 || lastDot < 0) {
+                wildcardBoundaries.add(boundaryMethod);
+            } else {
+                String methodName = boundaryMethod.substring(lastDot + 1);
+                Set<String> classNames = boundaryClasses.get(methodName);
+                if (classNames == null) {
+                    classNames = new HashSet<String>();
+                    boundaryClasses.put(methodName, classNames);
+                }
+                classNames.add(boundaryMethod.substring(0, lastDot));
+            }
+        }
+        this.boundaryPatterns =
+                (wildcardBoundaries.isEmpty() ? null : new PatternMatcher(
+                        wildcardBoundaries));
         this.publicOnly = publicOnly;
     }
 
+    /**
+     * Sets the suspend policy used for all event requests created by this
+     * <code>EventThread</code>. This must be called before
+     * <code>setEventRequests</code>.
+     *
+     * <p>
+     * With <code>SuspendPolicy.ALL</code>, the default, every thread in the
+     * traced VM is stopped while an event is handled. With
+     * <code>SuspendPolicy.THREAD</code> only the thread that generated the
+     * event is stopped, so threads that are not currently executing traced
+     * code keep running.
+     *
+     * @param suspendPolicy
+     *            the suspend policy to use for event requests
+     */
+    public void setSuspendPolicy(SuspendPolicy suspendPolicy) {
+        this.suspendPolicy = suspendPolicy;
+    }
+
+    /**
+     * Sets which invocations of the start method are traced. This must be
+     * called before <code>setEventRequests</code>, and has no effect unless a
+     * start method is given.
+     *
+     * <p>
+     * The first <code>numSkippedInvocations</code> invocations are not
+     * traced, which is useful to skip invocations dominated by class loading
+     * and JIT compilation. The next invocation is traced, and after that every
+     * <code>captureInterval</code>th invocation, until
+     * <code>captureQuota</code> invocations have been traced. All event
+     * requests are then removed, so the traced VM runs at full speed.
+     *
+     * <p>
+     * Invocations are counted using breakpoint count filters, so the traced VM
+     * is not suspended for the invocations that are not traced.
+     *
+     * @param numSkippedInvocations
+     *            the number of invocations to skip before the first traced
+     *            invocation
+     * @param captureInterval
+     *            trace every <code>captureInterval</code>th invocation after
+     *            the first traced invocation, where 1 means every invocation
+     * @param captureQuota
+     *            the number of invocations to trace, or 0 for no limit
+     *
+     * @throws IllegalArgumentException
+     *             if <code>numSkippedInvocations</code> or
+     *             <code>captureQuota</code> is negative, or
+     *             <code>captureInterval</code> is less than 1
+     */
+    public void setSampling(int numSkippedInvocations, int captureInterval,
+            int captureQuota) {
+        if (numSkippedInvocations < 0 || captureInterval < 1 ||
+                captureQuota < 0) {
+            throw new IllegalArgumentException("Illegal sampling: skip " +
+                    numSkippedInvocations + ", every " + captureInterval +
+                    ", quota " + captureQuota);
+        }
+        this.numSkippedInvocations = numSkippedInvocations;
+        this.captureInterval = captureInterval;
+        this.captureQuota = captureQuota;
+    }
+
+    /**
+     * Makes this <code>EventThread</code> write the program trace to a log
+     * instead of building the root activations in memory. This must be called
+     * before the thread is started. The root activations, and the notes about
+     * the trace, are then read back from the log using
+     * <code>TraceLogReader</code>, after the log has been closed.
+     *
+     * @param traceLog
+     *            the log to write the program trace to
+     */
+    public void setTraceLog(TraceLogWriter traceLog) {
+        this.traceLog = traceLog;
+    }
+
+    /**
+     * Sets the name of the traced VM, used when several VMs are traced at
+     * the same time. The root activations created by this thread, and thereby
+     * all their nested activations, are tagged with the name, and so are the
+     * notes added about the trace. This must be called before the thread is
+     * started.
+     *
+     * @param vmName
+     *            the name of the traced VM, or <code>null</code> if it is
+     *            the only one
+     */
+    public void setVMName(String vmName) {
+        this.vmName = vmName;
+    }
+
+    /**
+     * Sets whether exceptions are reported by the traced VM. This must be
+     * called before <code>setEventRequests</code>.
+     *
+     * <p>
+     * By default, each exception thrown in a traced class is reported, and
+     * the calls it unwinds are popped right away. If exceptions are not
+     * tracked, the traced VM does not stop for exceptions at all, which
+     * matters for programs that use exceptions for control flow. The calls
+     * unwound by an exception are then popped when the method that caught the
+     * exception returns, so calls made by that method after catching the
+     * exception are shown as nested in the unwound calls.
+     *
+     * @param trackExceptions
+     *            if <code>true</code> exceptions are reported, the default
+     */
+    public void setTrackExceptions(boolean trackExceptions) {
+        this.trackExceptions = trackExceptions;
+    }
+
+    /**
+     * Sets the maximum number of invocations of the start method that are
+     * traced at the same time, on different threads. This must be called
+     * before <code>setEventRequests</code>, and has no effect unless a start
+     * method is given.
+     *
+     * <p>
+     * Each traced invocation is a separate capture session, with its own root
+     * activation. While the maximum number of sessions are running, the start
+     * method breakpoints are disabled, so other invocations run at full speed.
+     *
+     * @param maxConcurrentSessions
+     *            the maximum number of concurrent capture sessions
+     *
+     * @throws IllegalArgumentException
+     *             if <code>maxConcurrentSessions</code> is less than 1
+     */
+    public void setMaxConcurrentSessions(int maxConcurrentSessions) {
+        if (maxConcurrentSessions < 1) {
+            throw new IllegalArgumentException("Illegal number of sessions: " +
+                    maxConcurrentSessions);
+        }
+        this.maxConcurrentSessions = maxConcurrentSessions;
+    }
+
+    /**
+     * Sets a budget for the overhead that tracing may put on the traced VM.
+     * This must be called before <code>setEventRequests</code>.
+     *
+     * <p>
+     * Once a second, the number of events per second and the share of the
+     * time that the traced VM was suspended are measured. Each time the
+     * budget is exceeded, tracing is cut down one step: first, the classes
+     * generating the most events are excluded, up to three times; then
+     * method calls are only counted, without suspending the traced VM; and
+     * finally tracing is paused altogether. Each step is recorded as a note
+     * in the list of root activations.
+     *
+     * @param maxEventsPerSecond
+     *            the maximum number of events per second, or 0 for no limit
+     * @param maxSuspendedPercent
+     *            the maximum percentage of the time that the traced VM may be
+     *            suspended, or 0 for no limit
+     */
+    public void setOverheadBudget(int maxEventsPerSecond,
+            int maxSuspendedPercent) {
+        this.governor =
+                new OverheadGovernor(maxEventsPerSecond, maxSuspendedPercent);
+    }
+
     /**
      * Handles all events generated by JDI, running for as long as the Java
      * process is active, or until an attached process disconnects the event
-     * thread.
+     * thread. When this method returns, all <code>Activation</code>s have been
+     * added to the list of root activations.
      */
     @Override
     public void run() {
+        pipeline.start();
+        try {
+            handleEvents();
+        } finally {
+            pipeline.shutdown();
+            String callCountsNote =
+                    governor.getCallCountsNote(MAX_COUNTED_METHODS);
+            if (callCountsNote != null) {
+                addNote(callCountsNote);
+            }
+        }
+    }
+
+    /**
+     * Stops tracing before the traced VM has exited, for example when JSeq is
+     * stopped with Ctrl-C. The traced VM is disconnected, and continues to
+     * run untraced, and this method then waits until this thread has added
+     * all the <code>Activation</code>s built so far to the list of root
+     * activations, so that they are no longer modified when the list is
+     * filtered and formatted.
+     */
+    public void disconnect() {
+        try {
+            vm.dispose();
+        } catch (VMDisconnectedException e) {
+            // The traced VM has already exited or been disconnected.
+        }
+        boolean interrupted = false;
+        while (isAlive()) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns statistics about how well the worker threads that build the
+     * <code>Activation</code>s keep up with the events from the traced VM.
+     * While the traced VM is suspended handling an event, the event thread
+     * only records the event and resumes the VM; the building of the
+     * <code>Activation</code>s is left to a number of worker threads, one per
+     * traced thread.
+     *
+     * @return the current queue statistics
+     */
+    public QueueStatistics getQueueStatistics() {
+        return pipeline.getStatistics();
+    }
+
+    private static int defaultNumWorkers() {
+        int numProcessors = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(4, numProcessors / 2));
+    }
+
+    private void handleEvents() {
         EventQueue queue = vm.eventQueue();
         while (connected) {
             try {
                 EventSet eventSet = queue.remove();
+                long startTime = System.nanoTime();
                 EventIterator it = eventSet.eventIterator();
                 while (it.hasNext()) {
                     Event event = it.nextEvent();
                     handleEvent(event);
                 }
                 eventSet.resume();
+                if (governor.isEnabled()) {
+                    long suspendedTime =
+                            (eventSet.suspendPolicy() == EventRequest.SUSPEND_NONE ? 0
+                                    : System.nanoTime() - startTime);
+                    if (governor.eventSetHandled(eventSet.size(),
+                            suspendedTime)) {
+                        degrade();
+                    }
+                }
             } catch (InterruptedException exc) {
                 System.err.println(exc);
             } catch (VMDisconnectedException discExc) {
@@ -200,6 +518,7 @@ public class EventThread extends Thread {
      *            immediately
      */
     public void setEventRequests(String startMethod) {
+        sessions = new CaptureSessions(maxConcurrentSessions, captureQuota);
         if (startMethod != null) {
             setStartMethodBreakpoints(startMethod);
         } else {
@@ -208,9 +527,31 @@ public class EventThread extends Thread {
     }
 
     private void activateTracingOfAllMethods() {
+        if (isOnlyCounting()) {
+            return;
+        }
+        globalRequests = createTracingRequests(null);
+    }
+
+    /**
+     * Creates and enables the method entry, method exit and exception
+     * requests used to trace method calls, either in all threads or in a
+     * single thread.
+     *
+     * @param thread
+     *            the thread to trace, or <code>null</code> to trace all
+     *            threads
+     *
+     * @return the created requests
+     */
+    private List<EventRequest> createTracingRequests(ThreadReference thread) {
     	EventRequestManager mgr = vm.eventRequestManager();
+        List<EventRequest> requests = new ArrayList<EventRequest>();
     	
     	MethodEntryRequest methodEntryRequest = mgr.createMethodEntryRequest();
+        if (thread != null) {
+            methodEntryRequest.addThreadFilter(thread);
+        }
         for (String includePattern : includes) {
         	methodEntryRequest.addClassFilter(includePattern);
         }
@@ -218,8 +559,12 @@ public class EventThread extends Thread {
         	methodEntryRequest.addClassExclusionFilter(excludePattern);
         }
         enableRequest(methodEntryRequest);
+        requests.add(methodEntryRequest);
         
         MethodExitRequest methodExitRequest = mgr.createMethodExitRequest();
+        if (thread != null) {
+            methodExitRequest.addThreadFilter(thread);
+        }
         for (String includePattern : includes) {
         	methodExitRequest.addClassFilter(includePattern);
         }
@@ -227,24 +572,175 @@ public class EventThread extends Thread {
         	methodExitRequest.addClassExclusionFilter(excludePattern);
         }
         enableRequest(methodExitRequest);
+        requests.add(methodExitRequest);
     	
-    	ExceptionRequest exceptionRequest = mgr.createExceptionRequest(null, true, true);
-        for (String includePattern : includes) {
-        	exceptionRequest.addClassFilter(includePattern);
+        if (trackExceptions) {
+            ExceptionRequest exceptionRequest =
+                    mgr.createExceptionRequest(null, true, true);
+            if (thread != null) {
+                exceptionRequest.addThreadFilter(thread);
+            }
+            for (String includePattern : includes) {
+                exceptionRequest.addClassFilter(includePattern);
+            }
+            for (String excludePattern : excludes) {
+                exceptionRequest.addClassExclusionFilter(excludePattern);
+            }
+            enableRequest(exceptionRequest);
+            requests.add(exceptionRequest);
         }
-        for (String excludePattern : excludes) {
-        	exceptionRequest.addClassExclusionFilter(excludePattern);
+    	
+        if (mgr.threadDeathRequests().isEmpty()) {
+            // Also covers virtual threads. The thread is not suspended, since
+            // it is already done, and the events it sent before are handled
+            // first.
+            ThreadDeathRequest threadDeathRequest =
+                    mgr.createThreadDeathRequest();
+            threadDeathRequest.setSuspendPolicy(EventRequest.SUSPEND_NONE);
+            threadDeathRequest.enable();
         }
+        return requests;
+    }
+
+    /**
+     * Creates and enables the requests needed while a thread is inside a
+     * call to a boundary method: a method exit request for the boundary
+     * method, and an exception request to notice if an exception ends the
+     * boundary call.
+     *
+     * @param method
+     *            the boundary method
+     * @param thread
+     *            the thread that called the boundary method
+     *
+     * @return the created requests
+     */
+    private List<EventRequest> createBoundaryRequests(Method method,
+            ThreadReference thread) {
+        EventRequestManager mgr = vm.eventRequestManager();
+        List<EventRequest> requests = new ArrayList<EventRequest>();
+
+        MethodExitRequest methodExitRequest = mgr.createMethodExitRequest();
+        methodExitRequest.addClassFilter(method.declaringType());
+        methodExitRequest.addThreadFilter(thread);
+        enableRequest(methodExitRequest);
+        requests.add(methodExitRequest);
+
+        ExceptionRequest exceptionRequest =
+                mgr.createExceptionRequest(null, true, true);
+        exceptionRequest.addThreadFilter(thread);
         enableRequest(exceptionRequest);
-    	
-        enableRequest(mgr.createThreadDeathRequest());
+        requests.add(exceptionRequest);
+        return requests;
+    }
+
+    /**
+     * Recreates all active method tracing requests, so that changes to the
+     * include and exclude patterns take effect.
+     */
+    private void recreateTracingRequests() {
+        EventRequestManager mgr = vm.eventRequestManager();
+        if (globalRequests != null) {
+            mgr.deleteEventRequests(globalRequests);
+            globalRequests = createTracingRequests(null);
+        }
+        for (ThreadTrace threadTrace : traceMap) {
+            if (threadTrace.isTracingActive() &&
+                    threadTrace.boundaryMethod == null) {
+                threadTrace.deactivateTracing();
+                threadTrace.activateTracing();
+            }
+        }
+    }
+
+    /**
+     * Cuts down tracing one step, as decided by the overhead governor.
+     */
+    private void degrade() {
+        List<String> noisiestClasses = new ArrayList<String>();
+        String note = governor.degrade(noisiestClasses);
+        trace("-- " + note + " --");
+        addNote(note);
+        EventRequestManager mgr = vm.eventRequestManager();
+        switch (governor.getLevel()) {
+        case EXCLUDE:
+            excludes.addAll(noisiestClasses);
+            droppedClasses.addAll(noisiestClasses);
+            recreateTracingRequests();
+            break;
+        case COUNT:
+            deleteAllEventRequests();
+            MethodEntryRequest methodEntryRequest =
+                    mgr.createMethodEntryRequest();
+            for (String includePattern : includes) {
+                methodEntryRequest.addClassFilter(includePattern);
+            }
+            for (String excludePattern : excludes) {
+                methodEntryRequest.addClassExclusionFilter(excludePattern);
+            }
+            methodEntryRequest.setSuspendPolicy(EventRequest.SUSPEND_NONE);
+            methodEntryRequest.enable();
+            break;
+        default:
+            deleteAllEventRequests();
+            break;
+        }
+    }
+
+    private boolean isOnlyCounting() {
+        return governor.getLevel().compareTo(OverheadGovernor.Level.COUNT) >= 0;
     }
 
 	private void enableRequest(EventRequest request) {
-		request.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+		request.setSuspendPolicy(suspendPolicy.getPolicy());
         request.enable();
 	}
 
+    /**
+     * Returns <code>true</code> if calls to the given method should be traced
+     * according to the include and exclude patterns that could not be handled
+     * by JDI class filters.
+     */
+    private boolean isCaptured(Method method) {
+        if (captureIncludes == null && captureExcludes == null) {
+            return true;
+        }
+        String typeName = method.declaringType().name();
+        if (captureIncludes != null && !captureIncludes.matches(typeName)) {
+            return false;
+        }
+        return captureExcludes == null || !captureExcludes.matches(typeName);
+    }
+
+    private boolean isBoundaryMethod(String className, String methodName) {
+        Set<String> classNames = boundaryClasses.get(methodName);
+        if (classNames != null && classNames.contains(className)) {
+            return true;
+        }
+        return boundaryPatterns != null &&
+                boundaryPatterns.matches(className, methodName);
+    }
+
+    private void addNote(String note) {
+        if (vmName != null) {
+            note = vmName + ": " + note;
+        }
+        if (traceLog != null) {
+            traceLog.addNote(note);
+        } else {
+            synchronized (rootActivations) {
+                rootActivations.addNote(note);
+            }
+        }
+    }
+
+    private void addRootActivation(Activation activation) {
+        activation.setVMName(vmName);
+        synchronized (rootActivations) {
+            rootActivations.add(activation);
+        }
+    }
+
     private void setStartMethodBreakpoints(String qualifiedMethodName) {
         int lastDot = qualifiedMethodName.lastIndexOf('.');
         if (lastDot < 0) {
@@ -274,39 +770,164 @@ public class EventThread extends Thread {
     }
 
     private void setMethodBreakpoints(List<Method> methods) {
+        startMethods.addAll(methods);
+        setMethodBreakpoints(methods, numSkippedInvocations + 1);
+    }
+
+    /**
+     * Sets breakpoints at the given methods, that are hit on the
+     * <code>count</code>th invocation of each method. The breakpoints are
+     * disabled if no more capture sessions can be started right now.
+     */
+    private void setMethodBreakpoints(List<Method> methods, int count) {
         EventRequestManager mgr = vm.eventRequestManager();
         for (Method method : methods) {
             try {
                 Location location = method.allLineLocations().get(0);
                 BreakpointRequest bpr = mgr.createBreakpointRequest(location);
-                enableRequest(bpr);
+                if (count > 1) {
+                    bpr.addCountFilter(count);
+                }
+                bpr.setSuspendPolicy(suspendPolicy.getPolicy());
+                bpr.setEnabled(!sessions.isFull());
+                startBreakpoints.add(bpr);
             } catch (AbsentInformationException e) {
                 e.printStackTrace();
             }
         }
+        startBreakpointsCounted = (count > 1);
+    }
+
+    /**
+     * Updates the start method breakpoints after one of them has been hit.
+     * A breakpoint with a count filter only fires once, so it is replaced by
+     * one that fires on the next sampled invocation. The breakpoints are
+     * removed when the session quota has been reached, and disabled while the
+     * maximum number of sessions are running.
+     */
+    private void startBreakpointHit() {
+        if (sessions.isQuotaReached()) {
+            deleteStartBreakpoints();
+        } else if (startBreakpointsCounted) {
+            deleteStartBreakpoints();
+            setMethodBreakpoints(startMethods, captureInterval);
+        } else {
+            enableStartBreakpoints(!sessions.isFull());
+        }
+    }
+
+    private void enableStartBreakpoints(boolean enabled) {
+        for (BreakpointRequest bpr : startBreakpoints) {
+            bpr.setEnabled(enabled);
+        }
+    }
+
+    private void deleteStartBreakpoints() {
+        vm.eventRequestManager().deleteEventRequests(startBreakpoints);
+        startBreakpoints.clear();
+    }
+
+    /**
+     * Called when a capture session is done, that is, when the traced
+     * invocation of the start method has returned. Removes all event requests
+     * if this was the last session, and otherwise makes sure that new
+     * sessions can be started.
+     */
+    private void sessionDone() {
+        sessions.finish();
+        if (isOnlyCounting()) {
+            return;
+        }
+        if (sessions.isDone()) {
+            deleteAllEventRequests();
+            // No calls are traced any more, so there is no shadow stack left
+            // to unwind when a thread dies.
+            EventRequestManager mgr = vm.eventRequestManager();
+            mgr.deleteEventRequests(mgr.threadDeathRequests());
+            trace("-- Traced " + sessions.getNumStarted() +
+                    " invocation(s) of " + startClassName + "." +
+                    startMethodName + ", stopping --");
+        } else if (!sessions.isQuotaReached()) {
+            enableStartBreakpoints(true);
+        }
     }
 
     private void deleteAllEventRequests() {
         EventRequestManager mgr = vm.eventRequestManager();
         mgr.deleteEventRequests(mgr.classPrepareRequests());
+        deleteTracingRequests();
+        mgr.deleteAllBreakpoints();
+        startBreakpoints.clear();
+    }
+
+    private void deleteTracingRequests() {
+        EventRequestManager mgr = vm.eventRequestManager();
         mgr.deleteEventRequests(mgr.methodEntryRequests());
         mgr.deleteEventRequests(mgr.methodExitRequests());
         mgr.deleteEventRequests(mgr.exceptionRequests());
-        mgr.deleteAllBreakpoints();
+        globalRequests = null;
+        for (ThreadTrace threadTrace : traceMap) {
+            threadTrace.tracingRequests = null;
+        }
     }
 
+    /**
+     * The part of the tracing of a thread that must be done while the thread
+     * is suspended: deciding which calls to trace, and keeping a shadow stack
+     * of the traced calls. The records published by a
+     * <code>ThreadTrace</code> are handled by a <code>TraceSink</code>
+     * running in a worker thread: an <code>ActivationBuilder</code> that
+     * builds the <code>Activation</code>s, or a trace log.
+     */
     private class ThreadTrace {
         private final ThreadReference thread;
+        private final EventRing ring;
+        private final TraceSink sink;
+
+        // The shadow stack: the traced calls that have not yet returned.
+        private Method[] stackMethods = new Method[16];
+        private String[] stackClassNames = new String[16];
+        private int depth = 0;
 
-        private Activation currentActivation = null;
+        // The boundary call in progress, if any. While it runs, the calls
+        // it makes are not traced.
+        private Method boundaryMethod = null;
+        private int boundaryFrameCount;
+        private int boundaryDepth;
 
-        private String currentBoundaryMethod;
+        private boolean inSession = false;
 
-        private boolean stopWhenActivationDone = false;
+        // The requests tracing only this thread, if any.
+        private List<EventRequest> tracingRequests = null;
+
+        // The step to the handler of an exception, if it is not yet known
+        // which call catches it.
+        private StepRequest stepRequest = null;
 
         public ThreadTrace(ThreadReference thread) {
             this.thread = thread;
-            trace("====== " + thread.name() + " ======");
+            this.ring = pipeline.ringFor(thread.uniqueID());
+            this.sink =
+                    (traceLog == null ? new ActivationBuilder(thread.name(),
+                            trace) : traceLog.threadLog(thread.uniqueID()));
+        }
+
+        private boolean isTracingActive() {
+            return tracingRequests != null;
+        }
+
+        private void activateTracing() {
+            if (isOnlyCounting()) {
+                return;
+            }
+            tracingRequests = createTracingRequests(thread);
+        }
+
+        private void deactivateTracing() {
+            if (tracingRequests != null) {
+                vm.eventRequestManager().deleteEventRequests(tracingRequests);
+                tracingRequests = null;
+            }
         }
 
         private void classPrepareEvent(ClassPrepareEvent event)
@@ -323,97 +944,349 @@ public class EventThread extends Thread {
         }
 
         private void methodEntryEvent(MethodEntryEvent event) {
-        	String className = getClassName(event);
+            if (boundaryMethod != null) {
+                // Only possible when the events of other threads are still
+                // needed, so the event requests could not be replaced.
+                return;
+            }
             Method method = event.method();
-            String qualifiedMethodName = className + "." + method.name();
-            if (isBoundaryMethod(qualifiedMethodName)) {
-                deleteAllEventRequests();
-                currentBoundaryMethod = qualifiedMethodName;
-                EventRequestManager mgr = vm.eventRequestManager();
-                MethodExitRequest methodExitRequest = mgr.createMethodExitRequest();
-                methodExitRequest.addClassFilter(className);
-                enableRequest(methodExitRequest);
+            if (!isCaptured(method)) return;
+        	String className = getClassName(event);
+            boolean traced = !publicOnly || method.isPublic();
+            if (traced) {
+                methodEntry(className, method);
             }
-
-            if (publicOnly && !method.isPublic()) {
-            	return;
+            if (isBoundaryMethod(className, method.name())) {
+                enterBoundary(method, traced);
             }
+        }
 
-            methodEntry(className, method);
+        /**
+         * Starts a boundary call. The events of this thread are suppressed
+         * until the call ends: if the event requests only cover this thread,
+         * they are replaced by requests that only report the end of the call,
+         * otherwise the requests are still needed by the other threads, and
+         * the events of this thread are ignored as they arrive.
+         */
+        private void enterBoundary(Method method, boolean traced) {
+            boundaryMethod = method;
+            boundaryDepth = (traced ? depth : -1);
+            try {
+                boundaryFrameCount = thread.frameCount();
+            } catch (IncompatibleThreadStateException e) {
+                boundaryFrameCount = -1;
+            }
+            if (isTracingActive()) {
+                deactivateTracing();
+                tracingRequests = createBoundaryRequests(method, thread);
+            }
         }
 
-        private boolean isBoundaryMethod(String qualifiedMethodName) {
-            for (String boundaryMethod : boundaryMethods) {
-                if (qualifiedMethodName.equals(boundaryMethod)) {
-                    return true;
-                }
+        /**
+         * Ends the boundary call in progress, records its elapsed time, and
+         * resumes normal tracing.
+         */
+        private void exitBoundary() {
+            boundaryMethod = null;
+            if (depth > 0 && depth == boundaryDepth) {
+                pop(depth - 1);
+                publishExit();
+            }
+            if (isTracingActive()) {
+                deactivateTracing();
+                activateTracing();
             }
-            return false;
         }
 
-        private void methodEntry(String className, Method method) {
-            trace(className + "." + method.name() + " " + method.argumentTypeNames());
-            int frameCount = -1;
+        /**
+         * Returns <code>true</code> if an event for the boundary method
+         * happened in the boundary call itself, and not in a recursive call.
+         */
+        private boolean isBoundaryFrame() {
+            if (boundaryFrameCount < 0) {
+                return true;
+            }
             try {
-                frameCount = thread.frameCount();
+                return thread.frameCount() == boundaryFrameCount;
             } catch (IncompatibleThreadStateException e) {
-                e.printStackTrace();
-                // Ignore -- I THINK this exception cannot occur here...
+                return true;
             }
-            Activation activation =
-                    new Activation(currentActivation, className, method,
-                            frameCount);
-            if (currentActivation == null) {
-                rootActivations.add(activation);
+        }
+
+        private void methodEntry(String className, Method method) {
+            if (depth == stackMethods.length) {
+                stackMethods = Arrays.copyOf(stackMethods, depth * 2);
+                stackClassNames = Arrays.copyOf(stackClassNames, depth * 2);
             }
-            currentActivation = activation;
+            stackMethods[depth] = method;
+            stackClassNames[depth] = className;
+            depth++;
+
+            // The shadow stack keeps the JDI mirror, to match method exit
+            // events, but the activations only get the interned symbols.
+            DetachedMethod symbol = symbols.intern(method);
+            String classSymbol = symbols.intern(className);
+            Activation root = null;
+            if (depth == 1 && traceLog == null) {
+                // Root activations are created here, so that they are added
+                // in the order the calls were made, whatever worker builds them.
+                root = new Activation(null, classSymbol, symbol, depth);
+                addRootActivation(root);
+            }
+            EventRing.Record record = ring.claim();
+            record.kind = EventRing.Record.ENTRY;
+            record.sink = sink;
+            record.className = classSymbol;
+            record.method = symbol;
+            record.depth = depth;
+            record.root = root;
+            ring.publish();
         }
 
         private void methodExitEvent(MethodExitEvent event) {
-            if (currentActivation == null) return;
+            Method method = event.method();
+            if (boundaryMethod != null) {
+                if (method.equals(boundaryMethod) && isBoundaryFrame()) {
+                    exitBoundary();
+                    if (depth == 0 && inSession) {
+                        endSession();
+                    }
+                }
+                return;
+            }
+            if (depth == 0) return;
 
-            String className = getClassName(event);
-            String methodName = event.method().name();
-            String qualifiedMethodName = className + "." + methodName;
+            if (!isCaptured(method)) return;
+            if (!droppedClasses.isEmpty()) {
+                popDroppedCalls(method);
+                if (depth == 0) return;
+            }
+            if (!method.equals(stackMethods[depth - 1])) {
+                // The calls above an active call of the method were unwound
+                // by an exception that was not reported.
+                for (int i = depth - 2; i >= 0; i--) {
+                    if (stackMethods[i].equals(method)) {
+                        unwind(i + 1);
+                        break;
+                    }
+                }
+            }
+            String methodName = method.name();
+            Method currentMethod = stackMethods[depth - 1];
+            String currentClassName = stackClassNames[depth - 1];
+            String className = null;
+            if (method.equals(currentMethod)) {
+                // Resolved when the method was entered, no need to look again.
+                className = currentClassName;
+                typeResolver.lookupAvoided();
+            } else if (methodName.equals(currentMethod.name())) {
+                className = getClassName(event);
+            }
+            if (className == null) return;
 
-            if (className.equals(currentActivation.getClassName()) &&
-                    methodName.equals(currentActivation.getMethod().name())) {
-                currentActivation = currentActivation.getParent();
+            if (className.equals(currentClassName) &&
+                    methodName.equals(currentMethod.name())) {
+                pop(depth - 1);
+                publishExit();
             }
-            if (currentActivation == null && stopWhenActivationDone) {
-                deleteAllEventRequests();
+            if (depth == 0 && inSession) {
+                endSession();
             }
-            if (currentBoundaryMethod != null &&
-                    currentBoundaryMethod.equals(qualifiedMethodName)) {
-            	deleteAllEventRequests();
-            	activateTracingOfAllMethods();
+        }
+
+        private void publishExit() {
+            EventRing.Record record = ring.claim();
+            record.kind = EventRing.Record.EXIT;
+            record.sink = sink;
+            ring.publish();
+        }
+
+        /**
+         * Pops the calls to methods in classes that have been excluded by the
+         * overhead governor while the calls were active, since their exits
+         * will never be reported.
+         */
+        private void popDroppedCalls(Method exitingMethod) {
+            while (depth > 0) {
+                Method top = stackMethods[depth - 1];
+                if (top.equals(exitingMethod) ||
+                        !droppedClasses.contains(top.declaringType().name())) {
+                    break;
+                }
+                pop(depth - 1);
+                publishExit();
             }
         }
 
+        /**
+         * Pops the calls that an exception will unwind, without waiting for
+         * the exception to be caught. The catching method is looked for
+         * first on the shadow stack, and trusted if it is active once: an
+         * exception caught in the method that threw it unwinds nothing, if
+         * that is the innermost call. Otherwise the stack frames of the
+         * thread are fetched from the traced VM. If several frames run the
+         * catching method, as in a recursive-descent parser, the frames
+         * cannot tell which of them catches, so the thread is stepped into
+         * the exception handler and resynchronized there.
+         */
         private void exceptionEvent(ExceptionEvent event) {
-            EventRequestManager mgr = vm.eventRequestManager();
-            StepRequest request =
-                    mgr.createStepRequest(thread, StepRequest.STEP_MIN,
-                            StepRequest.STEP_INTO);
-            request.addCountFilter(1);
-            enableRequest(request);
+            Location catchLocation = event.catchLocation();
+            Method catchMethod =
+                    (catchLocation == null ? null : catchLocation.method());
+            if (boundaryMethod == null) {
+                if (depth == 0) return;
+                if (catchMethod == null) {
+                    // Uncaught, so the thread is about to end.
+                    unwind(inSession ? 0 : 1);
+                    return;
+                }
+                int catchDepth = findOnlyActiveCall(catchMethod);
+                if (catchMethod.equals(event.location().method())) {
+                    if (catchDepth == depth - 1) {
+                        return;
+                    }
+                } else if (catchDepth >= 0) {
+                    unwind(catchDepth + 1);
+                    return;
+                }
+            }
+            List<StackFrame> frames = null;
+            try {
+                frames = thread.frames();
+            } catch (IncompatibleThreadStateException e) {
+                System.err.println(e);
+                return;
+            }
+            // The frames that remain when the exception has been caught.
+            int catchFrame = frames.size();
+            if (catchMethod != null) {
+                for (int f = frames.size() - 1; f >= 0; f--) {
+                    if (catchMethod.equals(frames.get(f).location().method())) {
+                        if (catchFrame < frames.size()) {
+                            stepToHandler();
+                            return;
+                        }
+                        catchFrame = f;
+                    }
+                }
+            }
+            caught(frames.subList(catchFrame, frames.size()));
+        }
+
+        /**
+         * Returns the index on the shadow stack of the only active call of
+         * the given method, or -1 if the method is not active, or active
+         * more than once.
+         */
+        private int findOnlyActiveCall(Method method) {
+            int index = -1;
+            for (int i = depth - 1; i >= 0; i--) {
+                if (stackMethods[i].equals(method)) {
+                    if (index >= 0) {
+                        return -1;
+                    }
+                    index = i;
+                }
+            }
+            return index;
+        }
+
+        /**
+         * Steps the thread to the next location, which is the handler of the
+         * exception just thrown, where the stack frames show which call
+         * caught it.
+         */
+        private void stepToHandler() {
+            if (stepRequest != null) {
+                return;
+            }
+            stepRequest =
+                    vm.eventRequestManager().createStepRequest(thread,
+                            StepRequest.STEP_MIN, StepRequest.STEP_INTO);
+            stepRequest.addCountFilter(1);
+            enableRequest(stepRequest);
         }
 
         private void stepEvent(StepEvent event) {
-            EventRequestManager mgr = vm.eventRequestManager();
-            mgr.deleteEventRequest(event.request());
-            // Find the activation that catches the exception.
-            int frameCount = -1;
+            deleteStepRequest();
+            List<StackFrame> frames = null;
             try {
-                frameCount = thread.frameCount();
+                frames = thread.frames();
             } catch (IncompatibleThreadStateException e) {
                 System.err.println(e);
+                return;
             }
-            while (currentActivation.getParent() != null) {
-                if (currentActivation.getFrameCount() == frameCount) {
-                    break;
+            caught(frames);
+        }
+
+        private void deleteStepRequest() {
+            if (stepRequest != null) {
+                vm.eventRequestManager().deleteEventRequest(stepRequest);
+                stepRequest = null;
+            }
+        }
+
+        /**
+         * Pops the calls that an exception unwound, given the stack frames
+         * that remain when it has been caught.
+         */
+        private void caught(List<StackFrame> liveFrames) {
+            if (boundaryMethod != null) {
+                if (boundaryFrameCount >= 0 &&
+                        liveFrames.size() >= boundaryFrameCount) {
+                    // Caught inside the boundary call.
+                    return;
                 }
-                currentActivation = currentActivation.getParent();
+                exitBoundary();
+            }
+            if (depth == 0) return;
+            resynchronize(liveFrames);
+        }
+
+        /**
+         * Pops the calls whose stack frames are no longer on the stack, which
+         * happens when an exception unwinds the stack. The depth of the shadow
+         * stack only counts traced calls, so it is mapped to the real stack
+         * here: the traced calls are matched, outermost first, against the
+         * stack frames, bottom first, and the innermost matched call becomes
+         * the current one.
+         */
+        private void resynchronize(List<StackFrame> frames) {
+            int numLive = 0;
+            for (int f = frames.size() - 1; f >= 0 && numLive < depth; f--) {
+                Method method = frames.get(f).location().method();
+                if (method.equals(stackMethods[numLive])) {
+                    numLive++;
+                }
+            }
+            // Outside of a capture session, the root activation is kept even if
+            // its frame is gone, as before.
+            unwind(inSession ? numLive : Math.max(numLive, 1));
+        }
+
+        /**
+         * Pops the calls above the given depth, as when an exception unwinds
+         * the stack.
+         */
+        private void unwind(int newDepth) {
+            if (newDepth < depth) {
+                pop(newDepth);
+                EventRing.Record record = ring.claim();
+                record.kind = EventRing.Record.UNWIND;
+                record.sink = sink;
+                record.depth = newDepth;
+                ring.publish();
+            }
+            if (depth == 0 && inSession) {
+                endSession();
+            }
+        }
+
+        private void pop(int newDepth) {
+            while (depth > newDepth) {
+                depth--;
+                stackMethods[depth] = null;
+                stackClassNames[depth] = null;
             }
         }
 
@@ -426,51 +1299,56 @@ public class EventThread extends Thread {
                                 methodName + ". Event=" + event;
                 throw new IllegalArgumentException(message);
             }
-            methodEntry(startClassName, event.location().method());
-            EventRequestManager mgr = vm.eventRequestManager();
-            mgr.deleteEventRequest(event.request());
-            activateTracingOfAllMethods();
-            stopWhenActivationDone = true;
-        }
-
-        private void threadDeathEvent(ThreadDeathEvent event) {
-            trace("====== " + thread.name() + " end ======");
+            // A recursive invocation is part of the session already running.
+            boolean started = !inSession && sessions.tryStart();
+            startBreakpointHit();
+            if (started) {
+                methodEntry(startClassName, event.location().method());
+                activateTracing();
+                inSession = true;
+            }
         }
 
-        private String getClassName(LocatableEvent event) {
-        	ReferenceType instanceType = getInstanceType(event);
-        	if (instanceType != null) {
-        		return instanceType.name();
-        	} else {
-        		return getDeclaringType(event).name();
-        	}
+        /**
+         * Ends the capture session running in this thread.
+         */
+        private void endSession() {
+            inSession = false;
+            boundaryMethod = null;
+            deactivateTracing();
+            sessionDone();
         }
 
-        private ReferenceType getDeclaringType(LocatableEvent event) {
-            return event.location().method().declaringType();
+        private void threadDeathEvent(ThreadDeathEvent event) {
+            deleteStepRequest();
+            if (boundaryMethod != null) {
+                exitBoundary();
+            }
+            // The calls still on the shadow stack ended with the thread, for
+            // example because of an uncaught exception.
+            unwind(0);
+            if (inSession) {
+                endSession();
+            }
+            deactivateTracing();
+            EventRing.Record record = ring.claim();
+            record.kind = EventRing.Record.THREAD_END;
+            record.sink = sink;
+            ring.publish();
         }
 
-        private ReferenceType getInstanceType(LocatableEvent event) {
-            ThreadReference thread = event.thread();
-            if (thread == null) return null;
-			StackFrame frame = null;
-			try {
-				frame = thread.frame(0);
-			} catch (IncompatibleThreadStateException e) {
-			}
-			if (frame == null) return null;
-			ObjectReference thisObject = frame.thisObject();
-			if (thisObject == null) return null;
-			ReferenceType referenceType = thisObject.referenceType();
-			return referenceType;
+        private String getClassName(LocatableEvent event) {
+            return typeResolver.getClassName(event.location().method(),
+                    event.thread());
         }
     }
 
     private ThreadTrace threadTrace(ThreadReference thread) {
-        ThreadTrace threadTrace = traceMap.get(thread);
+        long threadId = thread.uniqueID();
+        ThreadTrace threadTrace = traceMap.get(threadId);
         if (threadTrace == null) {
             threadTrace = new ThreadTrace(thread);
-            traceMap.put(thread, threadTrace);
+            traceMap.put(threadId, threadTrace);
         }
         return threadTrace;
     }
@@ -518,6 +1396,10 @@ public class EventThread extends Thread {
                 eventSet.resume();
             } catch (InterruptedException e) {
                 System.err.println(e);
+            } catch (VMDisconnectedException e) {
+                // Disconnected by disconnect, so no VMDisconnectEvent may
+                // ever arrive.
+                vmDisconnectEvent(null);
             }
         }
     }
@@ -532,6 +1414,14 @@ public class EventThread extends Thread {
     }
 
     private void methodEntryEvent(MethodEntryEvent event) {
+        if (governor.isEnabled()) {
+            Method method = event.method();
+            if (isOnlyCounting()) {
+                governor.callCounted(method);
+                return;
+            }
+            governor.methodEntered(method.declaringType().name());
+        }
         threadTrace(event.thread()).methodEntryEvent(event);
     }
 
@@ -539,31 +1429,39 @@ public class EventThread extends Thread {
         threadTrace(event.thread()).methodExitEvent(event);
     }
 
-    private void stepEvent(StepEvent event) {
-        threadTrace(event.thread()).stepEvent(event);
-    }
-
     private void breakpointEvent(BreakpointEvent event) {
         threadTrace(event.thread()).breakpointEvent(event);
     }
 
     private void threadDeathEvent(ThreadDeathEvent event) {
-        ThreadTrace threadTrace = traceMap.get(event.thread());
+        ThreadTrace threadTrace = traceMap.remove(event.thread().uniqueID());
         if (threadTrace != null) {
             threadTrace.threadDeathEvent(event);
         }
     }
 
     private void exceptionEvent(ExceptionEvent event) {
-        ThreadTrace threadTrace = traceMap.get(event.thread());
+        ThreadTrace threadTrace = traceMap.get(event.thread().uniqueID());
         if (threadTrace != null) {
             threadTrace.exceptionEvent(event);
         }
     }
 
+    private void stepEvent(StepEvent event) {
+        ThreadTrace threadTrace = traceMap.get(event.thread().uniqueID());
+        if (threadTrace != null) {
+            threadTrace.stepEvent(event);
+        }
+    }
+
     private void vmDeathEvent(VMDeathEvent event) {
         vmDied = true;
+        pipeline.drain();
         trace("-- The application exited --");
+        trace("-- Runtime type lookups: " +
+                typeResolver.getNumFrameLookups() + " performed, " +
+                typeResolver.getNumFrameLookupsAvoided() + " avoided --");
+        trace("-- Event queues: " + pipeline.getStatistics() + " --");
     }
 
     private void vmDisconnectEvent(VMDisconnectEvent event) {
@@ -578,4 +1476,38 @@ public class EventThread extends Thread {
             System.err.println(s);
         }
     }
+
+    /**
+     * The suspend policies that can be used for the JDI event requests created
+     * by an <code>EventThread</code>.
+     *
+     * @see EventThread#setSuspendPolicy(SuspendPolicy)
+     */
+    public static enum SuspendPolicy {
+        /**
+         * Suspends all threads in the traced VM while an event is handled.
+         */
+        ALL(EventRequest.SUSPEND_ALL),
+
+        /**
+         * Suspends only the thread where the event occurred.
+         */
+        THREAD(EventRequest.SUSPEND_EVENT_THREAD);
+
+        private final int policy;
+
+        private SuspendPolicy(int policy) {
+            this.policy = policy;
+        }
+
+        /**
+         * Returns the JDI suspend policy constant, as defined in
+         * <code>EventRequest</code>, corresponding to this suspend policy.
+         *
+         * @return the JDI suspend policy for this <code>SuspendPolicy</code>
+         */
+        public int getPolicy() {
+            return policy;
+        }
+    }
 }
@@ -117,7 +117,11 @@ public class FormatterRegistry {
 
     private static class TextFormatter implements Formatter {
         public Diagram format(ActivationList activationList) {
-            return new TextDiagram(activationList.toString());
+            StringBuffer text = new StringBuffer(activationList.toString());
+            for (String note : activationList.getNotes()) {
+                text.append("\nNote: ").append(note);
+            }
+            return new TextDiagram(text.toString());
         }
     }
 
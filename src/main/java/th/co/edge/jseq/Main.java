@@ -31,7 +31,11 @@ import java.io.ObjectOutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -46,6 +50,9 @@ import com.sun.jdi.connect.LaunchingConnector;
 import com.sun.jdi.connect.VMStartException;
 import com.sun.jdi.connect.Connector.Argument;
 
+import th.co.edge.jseq.agent.AgentTraceReader;
+import th.co.edge.jseq.jfr.JfrTraceReader;
+
 public class Main {
     private static final String PROGRAM_NAME = "JSeq";
     private static final String PROGRAM_VERSION = "0.5.SNAPSHOT";
@@ -53,19 +60,36 @@ public class Main {
             { "java.*", "javax.*", "sun.*", "com.sun.*", "junit.*" };
     private ActivationList rootActivations = new ActivationList();
     private ConnectorType connectorType = null;
-    private String attachAddress = null;
+    private List<String> attachAddresses = new ArrayList<String>();
     private String classname = null;
     private String arguments = null;
     private String classpath = null;
     private String readFilename = null;
     private String saveFilename = null;
+    private String logFilename = null;
+    private TraceLogWriter traceLog = null;
+    private List<ProgramRunner> runners = new ArrayList<ProgramRunner>();
     private String outFilename = null;
+    private long snapshotInterval = 0;
+    private SnapshotThread snapshotThread = null;
     private Formatter formatter = FormatterRegistry.getInstance().get("svg");
     private boolean quiet = false;
     private boolean trace = true;
+    private EventThread.SuspendPolicy suspendPolicy =
+            EventThread.SuspendPolicy.ALL;
     private String startMethod = null;
+    private int numSkippedInvocations = 0;
+    private int captureInterval = 1;
+    private int captureQuota = 1;
+    private int maxConcurrentSessions = 1;
+    private int maxEventsPerSecond = 0;
+    private int maxSuspendedPercent = 0;
     private List<String> includePatterns = new LinkedList<String>();
     private List<String> excludePatterns = new LinkedList<String>();
+    private List<String> boundaryPatterns = new LinkedList<String>();
+    private boolean trackExceptions = true;
+    private long durationThreshold = -1;
+    private boolean sharing = false;
     private boolean stdExcludes = true;
     private boolean shouldRun = true;
 
@@ -109,26 +133,58 @@ public class Main {
             }
             if (arg.equals("-connector")) {
                 connectorType = ConnectorType.valueOf(args[++inx]);
+            } else if (arg.equals("-suspend")) {
+                suspendPolicy = EventThread.SuspendPolicy.valueOf(args[++inx]);
             } else if (arg.equals("-attach")) {
-                attachAddress = args[++inx];
+                for (String address : args[++inx].split(",")) {
+                    attachAddresses.add(address);
+                }
             } else if (arg.equals("-read")) {
                 readFilename = args[++inx];
             } else if (arg.equals("-classpath") || arg.equals("-cp")) {
                 classpath = args[++inx];
             } else if (arg.equals("-save")) {
                 saveFilename = args[++inx];
+            } else if (arg.equals("-log")) {
+                logFilename = args[++inx];
             } else if (arg.equals("-out")) {
                 outFilename = args[++inx];
+            } else if (arg.equals("-snapshot-interval")) {
+                snapshotInterval =
+                        (long) (Double.parseDouble(args[++inx]) * 1000);
             } else if (arg.equals("-format")) {
                 formatter = FormatterRegistry.getInstance().get(args[++inx]);
             } else if (arg.equals("-quiet")) {
                 quiet = true;
             } else if (arg.equals("-start")) {
                 startMethod = args[++inx];
+            } else if (arg.equals("-skip")) {
+                numSkippedInvocations = Integer.parseInt(args[++inx]);
+            } else if (arg.equals("-every")) {
+                captureInterval = Integer.parseInt(args[++inx]);
+            } else if (arg.equals("-quota")) {
+                captureQuota = Integer.parseInt(args[++inx]);
+            } else if (arg.equals("-sessions")) {
+                maxConcurrentSessions = Integer.parseInt(args[++inx]);
+            } else if (arg.equals("-maxrate")) {
+                maxEventsPerSecond = Integer.parseInt(args[++inx]);
+            } else if (arg.equals("-maxsuspended")) {
+                maxSuspendedPercent = Integer.parseInt(args[++inx]);
             } else if (arg.equals("-include")) {
                 includePatterns.add(args[++inx]);
             } else if (arg.equals("-exclude")) {
                 excludePatterns.add(args[++inx]);
+            } else if (arg.equals("-boundary")) {
+                boundaryPatterns.add(args[++inx]);
+            } else if (arg.equals("-noexceptions")) {
+                trackExceptions = false;
+            } else if (arg.equals("-durations")) {
+                durationThreshold = Math.max(durationThreshold, 0);
+            } else if (arg.equals("-threshold")) {
+                durationThreshold =
+                        (long) (Double.parseDouble(args[++inx]) * 1000000);
+            } else if (arg.equals("-share")) {
+                sharing = true;
             } else if (arg.equals("-nostdexcludes")) {
                 stdExcludes = false;
             } else if (arg.equals("-notrace")) {
@@ -151,12 +207,27 @@ public class Main {
             arguments = sb.toString();
         }
 
+        if (snapshotInterval > 0 && (outFilename == null || quiet)) {
+            throw new IllegalArgumentException(
+                    "-snapshot-interval needs an output file, see -out");
+        }
+
+        if (sharing && durationThreshold >= 0) {
+            throw new IllegalArgumentException(
+                    "-share does not keep the call times needed by -durations and -threshold");
+        }
+
+        if (attachAddresses.size() > 1 && logFilename != null) {
+            throw new IllegalArgumentException(
+                    "-log can only be used when attaching to one VM");
+        }
+
         if (stdExcludes) {
             excludePatterns = addStandardExcludes(excludePatterns);
         }
 
         if (connectorType == null) {
-            if (attachAddress == null) {
+            if (attachAddresses.isEmpty()) {
                 connectorType = ConnectorType.LAUNCHING;
             } else {
                 connectorType = ConnectorType.SOCKET;
@@ -176,7 +247,7 @@ public class Main {
     private void traceProgram() throws IOException, ClassNotFoundException {
         if (readFilename != null) {
             readActivationList(readFilename);
-        } else if (attachAddress != null) {
+        } else if (!attachAddresses.isEmpty()) {
             attachProgram();
         } else {
             runProgram();
@@ -184,15 +255,38 @@ public class Main {
     }
 
     private void generateSequenceDiagram() throws IOException, FormatException {
+        stopSnapshots();
+        // If stopped with Ctrl-C, the activations are still being built, so
+        // stop tracing before they are read.
+        for (ProgramRunner runner : runners) {
+            runner.disconnect();
+        }
+        if (logFilename != null && readFilename == null) {
+            if (traceLog != null) {
+                // If stopped with Ctrl-C, the calls in progress are still
+                // buffered by the threads writing the log.
+                traceLog.close();
+            }
+            rootActivations =
+                    TraceLogReader.read(new File(logFilename),
+                            getStartFilter());
+        }
         if (saveFilename != null) {
-            saveActivationList(rootActivations, saveFilename);
+            synchronized (rootActivations) {
+                saveActivationList(rootActivations, saveFilename);
+            }
         }
         if (!quiet) {
-            ActivationList filteredActivations =
-                    filterActivations(rootActivations);
+            ActivationList filteredActivations;
+            synchronized (rootActivations) {
+                filteredActivations = filterActivations(rootActivations);
+            }
+            filteredActivations.setDurationThreshold(durationThreshold);
             Diagram diagram = formatter.format(filteredActivations);
             if (outFilename == null) {
                 System.out.println(diagram);
+            } else if (snapshotInterval > 0) {
+                saveDiagram(diagram, new File(outFilename));
             } else {
                 File file = new File(outFilename);
                 diagram.save(file);
@@ -200,24 +294,90 @@ public class Main {
         }
     }
 
+    /**
+     * Writes the diagram to a temporary file next to the output file, and
+     * then moves it in place, so that someone watching the output file never
+     * sees a half-written diagram.
+     */
+    private static void saveDiagram(Diagram diagram, File file)
+            throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tempFile = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            diagram.save(tempFile);
+            try {
+                Files.move(tempFile.toPath(), file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    private ActivationList takeSnapshot() throws IOException {
+        if (logFilename != null) {
+            // Only the root calls that have returned are appended to the log,
+            // so the calls in progress are left out.
+            if (traceLog != null) {
+                traceLog.flushReturned();
+            }
+            return TraceLogReader.read(new File(logFilename), getStartFilter());
+        }
+        synchronized (rootActivations) {
+            return rootActivations.snapshot();
+        }
+    }
+
+    private void startSnapshots() {
+        if (snapshotInterval > 0) {
+            snapshotThread = new SnapshotThread();
+            snapshotThread.start();
+        }
+    }
+
+    private synchronized void stopSnapshots() {
+        if (snapshotThread != null) {
+            snapshotThread.interrupt();
+            try {
+                snapshotThread.join();
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+            snapshotThread = null;
+        }
+    }
+
     private ActivationList filterActivations(ActivationList activationList) {
         ActivationList filteredActivations = activationList;
+        if (activationList.size() > 0 &&
+                activationList.get(0).getVMName() != null) {
+            // Traced in several VMs, so merge the calls from all of them.
+            filteredActivations = filteredActivations.sortByEntryTime();
+        }
+        ActivationPipeline pipeline = new ActivationPipeline();
         if (startMethod != null) {
-            filteredActivations =
-                    filteredActivations.find(new MethodFilter(startMethod));
+            pipeline.find(new MethodFilter(startMethod));
         }
-        for (String pattern : excludePatterns) {
-            ClassExclusionFilter classExclusionFilter =
-                    new ClassExclusionFilter(pattern);
-            filteredActivations =
-                    filteredActivations.filter(classExclusionFilter);
+        if (!excludePatterns.isEmpty()) {
+            pipeline.filter(new ClassExclusionFilter(excludePatterns));
         }
-        filteredActivations =
-                filteredActivations.filter(new ConstructorFilter(
-                        getClassLoader()));
-        filteredActivations = filteredActivations.collapseRepetitions();
+        pipeline.filter(new ConstructorFilter(getClassLoader()));
+        pipeline.collapseRepetitions();
+        if (sharing) {
+            // Identical call subtrees are shared, so that each distinct
+            // subtree is only filtered once.
+            return pipeline.apply(new CallDag(filteredActivations))
+                    .getRootActivations();
+        }
+        return pipeline.apply(filteredActivations);
+    }
 
-        return filteredActivations;
+    private ActivationList.Filter getStartFilter() {
+        return (startMethod == null ? null : new MethodFilter(startMethod));
     }
 
     private ClassLoader getClassLoader() {
@@ -246,10 +406,19 @@ public class Main {
 
     private void readActivationList(String filename) throws IOException,
             ClassNotFoundException {
-        ObjectInputStream in =
-                new ObjectInputStream(new FileInputStream(filename));
-        rootActivations = (ActivationList) in.readObject();
-        in.close();
+        File file = new File(filename);
+        if (AgentTraceReader.isAgentTrace(file)) {
+            rootActivations = AgentTraceReader.read(file);
+        } else if (JfrTraceReader.isRecording(file)) {
+            rootActivations = JfrTraceReader.read(file);
+        } else if (TraceLogReader.isTraceLog(file)) {
+            rootActivations = TraceLogReader.read(file, getStartFilter());
+        } else {
+            ObjectInputStream in =
+                    new ObjectInputStream(new FileInputStream(filename));
+            rootActivations = (ActivationList) in.readObject();
+            in.close();
+        }
     }
 
     private void saveActivationList(ActivationList activationList,
@@ -260,45 +429,126 @@ public class Main {
         out.close();
     }
 
-    private void attachProgram() {
-        ProgramRunner runner =
-                new ProgramRunner(rootActivations, attachAddress,
-                        includePatterns, excludePatterns, startMethod, trace);
-        runner.runProgram(connectorType);
+    private void attachProgram() throws IOException {
+        List<ProgramRunner> runners = new ArrayList<ProgramRunner>();
+        for (String attachAddress : attachAddresses) {
+            ProgramRunner runner =
+                    new ProgramRunner(rootActivations, attachAddress,
+                            includePatterns, excludePatterns, startMethod,
+                            trace);
+            if (attachAddresses.size() > 1) {
+                runner.setVMName(attachAddress);
+            }
+            runners.add(runner);
+        }
+        runTracing(runners);
     }
 
-    private void runProgram() {
+    private void runProgram() throws IOException {
         ProgramRunner runner =
                 new ProgramRunner(rootActivations, classname, arguments,
                         classpath, includePatterns, excludePatterns,
                         startMethod, trace);
-        runner.runProgram(connectorType);
+        runTracing(Collections.singletonList(runner));
+    }
+
+    private void runTracing(List<ProgramRunner> runners) throws IOException {
+        if (logFilename != null) {
+            traceLog = new TraceLogWriter(new File(logFilename));
+        }
+        this.runners = runners;
+        for (ProgramRunner runner : runners) {
+            runner.setSuspendPolicy(suspendPolicy);
+            runner.setSampling(numSkippedInvocations, captureInterval,
+                    captureQuota);
+            runner.setMaxConcurrentSessions(maxConcurrentSessions);
+            runner.setBoundaryMethods(boundaryPatterns);
+            runner.setTrackExceptions(trackExceptions);
+            runner.setOverheadBudget(maxEventsPerSecond, maxSuspendedPercent);
+            if (traceLog != null) {
+                runner.setTraceLog(traceLog);
+            }
+        }
+        startSnapshots();
+        if (runners.size() == 1) {
+            runners.get(0).runProgram(connectorType);
+        } else {
+            runInParallel(runners);
+        }
+        stopSnapshots();
+        if (traceLog != null) {
+            traceLog.close();
+        }
+    }
+
+    /**
+     * Traces several VMs at the same time, each with its own
+     * <code>EventThread</code>, and waits until all of them are done.
+     */
+    private void runInParallel(List<ProgramRunner> runners) {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final ProgramRunner runner : runners) {
+            Thread thread = new Thread("JSeq " + runner.getVMName()) {
+                public void run() {
+                    runner.runProgram(connectorType);
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException exc) {
+                // Ignore
+            }
+        }
     }
 
     public static String getUsage() {
         return "Usage: jseq [-options] <class> [args...]\n"
                 + "\t(to execute a class)\n"
-                + "    or jseq [-options] -attach <address>\n"
-                + "\t(to attach to a running VM at the specified address)\n"
+                + "    or jseq [-options] -attach <address>[,<address>...]\n"
+                + "\t(to attach to running VMs at the specified addresses, and\n"
+                + "\tmerge the calls traced in all of them into one diagram)\n"
                 + "    or jseq [-options] -read <filename>\n"
-                + "\t(to generate output from a previously saved run)\n"
+                + "\t(to generate output from a previously saved run, a trace log\n"
+                + "\twritten with -log, a trace written by the agent\n"
+                + "\t-javaagent:jseq.jar=out=<filename>, or a JFR recording\n"
+                + "\twith jdk.MethodTrace events)\n"
                 + "\n"
                 + "Options for running a program:\n"
                 + "\t[-classpath <path>]\tto set classpath\n"
                 + "\t[-cp <path>]\tsame as -classpath\n"
                 + "\t[-save <filename>]\tto save the program run in a file\n"
+                + "\t[-log <filename>]\tto write the program trace to a log file as it runs, instead of keeping it in memory\n"
                 + "\n"
                 + "Options for attaching to a program:\n"
                 + "\t[-connector {SOCKET,SHARED_MEMORY}]\tto choose JDI connector\n"
                 + "\n"
+                + "Options for tracing a program:\n"
+                + "\t[-suspend {ALL,THREAD}]\tto suspend all threads or only the event thread\n"
+                + "\t[-skip <n>]\tto not trace the first n invocations of the start method\n"
+                + "\t[-every <n>]\tto trace only every nth invocation of the start method\n"
+                + "\t[-quota <n>]\tto stop after tracing n invocations of the start method (0 for no limit)\n"
+                + "\t[-sessions <n>]\tto trace up to n invocations of the start method at the same time\n"
+                + "\t[-maxrate <n>]\tto cut down tracing when there are more than n events per second\n"
+                + "\t[-maxsuspended <percent>]\tto cut down tracing when the program is suspended more than this\n"
+                + "\t[-boundary <method pattern>]\tto trace calls to matching methods as single calls, with their elapsed time\n"
+                + "\t[-noexceptions]\tto not stop the program for exceptions, for programs that throw many\n"
+                + "\n"
                 + "Options for generating sequence diagrams:\n"
                 + "\t[-out <filename>]\tto save diagram in a file\n"
                 + "\t[-format {text,png,sdedit,svg,argouml}]\tto specify format of output\n"
                 + "\t[-quiet]\tto not generate any output\n"
+                + "\t[-snapshot-interval <seconds>]\tto regularly replace the -out file with a diagram of the calls traced so far\n"
                 + "\t[-start <methodname>]\tto specify start method in diagram\n"
                 + "\t[-include <class regexp>]\tto include only some classes in diagram\n"
                 + "\t[-exclude <class regexp>]\tto exclude some classes from diagram\n"
                 + "\t[-nostdexcludes]\tto not exclude java.*, javax.*, etc\n"
+                + "\t[-durations]\tto show the time spent in each call (text and svg)\n"
+                + "\t[-threshold <ms>]\tto show times and flag calls taking at least this long\n"
+                + "\t[-share]\tto store identical call subtrees once, for very repetitive traces (no times)\n"
                 + "\n" + "Other options:\n"
                 + "\t[-notrace]\tto turn off tracing of method entries, etc.\n"
                 + "\t[-version]\tto print version information and exit";
@@ -308,6 +558,39 @@ public class Main {
         return PROGRAM_NAME + " " + PROGRAM_VERSION;
     }
 
+    /**
+     * A <code>SnapshotThread</code> regularly replaces the output file with a
+     * diagram of the method calls that have been traced so far, while the
+     * program is still being traced. Only calls that have returned are shown,
+     * so tracing never has to be paused to take a snapshot.
+     */
+    private class SnapshotThread extends Thread {
+        public SnapshotThread() {
+            super("JSeq snapshots");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    Thread.sleep(snapshotInterval);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    ActivationList snapshot = takeSnapshot();
+                    snapshot = filterActivations(snapshot);
+                    snapshot.setDurationThreshold(durationThreshold);
+                    saveDiagram(formatter.format(snapshot), new File(
+                            outFilename));
+                } catch (Exception e) {
+                    System.err.println("Failed to write snapshot: " + e);
+                }
+            }
+        }
+    }
+
     private static class ProgramRunner {
         private ActivationList rootActivations;
         private String classname;
@@ -321,7 +604,19 @@ public class Main {
         private Thread outThread;
         private List<String> includes;
         private List<String> excludes;
-        private EventThread eventThread;
+        private EventThread.SuspendPolicy suspendPolicy =
+                EventThread.SuspendPolicy.ALL;
+        private int numSkippedInvocations = 0;
+        private int captureInterval = 1;
+        private int captureQuota = 1;
+        private int maxConcurrentSessions = 1;
+        private List<String> boundaryMethods = new ArrayList<String>();
+        private boolean trackExceptions = true;
+        private TraceLogWriter traceLog = null;
+        private String vmName = null;
+        private int maxEventsPerSecond = 0;
+        private int maxSuspendedPercent = 0;
+        private volatile EventThread eventThread;
 
         public ProgramRunner(ActivationList rootActivations,
                 String attachAddress, List<String> includes,
@@ -352,6 +647,47 @@ public class Main {
             }
         }
 
+        public void setSuspendPolicy(EventThread.SuspendPolicy suspendPolicy) {
+            this.suspendPolicy = suspendPolicy;
+        }
+
+        public void setSampling(int numSkippedInvocations,
+                int captureInterval, int captureQuota) {
+            this.numSkippedInvocations = numSkippedInvocations;
+            this.captureInterval = captureInterval;
+            this.captureQuota = captureQuota;
+        }
+
+        public void setMaxConcurrentSessions(int maxConcurrentSessions) {
+            this.maxConcurrentSessions = maxConcurrentSessions;
+        }
+
+        public void setBoundaryMethods(List<String> boundaryMethods) {
+            this.boundaryMethods = boundaryMethods;
+        }
+
+        public void setTrackExceptions(boolean trackExceptions) {
+            this.trackExceptions = trackExceptions;
+        }
+
+        public void setTraceLog(TraceLogWriter traceLog) {
+            this.traceLog = traceLog;
+        }
+
+        public void setVMName(String vmName) {
+            this.vmName = vmName;
+        }
+
+        public String getVMName() {
+            return vmName;
+        }
+
+        public void setOverheadBudget(int maxEventsPerSecond,
+                int maxSuspendedPercent) {
+            this.maxEventsPerSecond = maxEventsPerSecond;
+            this.maxSuspendedPercent = maxSuspendedPercent;
+        }
+
         public void runProgram(ConnectorType connectorType) {
             if (attachAddress == null) {
                 vm = launchTarget(connectorType, classname + " " + arguments);
@@ -359,10 +695,20 @@ public class Main {
             } else {
                 vm = attachTarget(connectorType, attachAddress);
             }
-            List<String> emptyStringList = new ArrayList<String>();
             eventThread =
                     new EventThread(vm, rootActivations, includes, excludes,
-                            emptyStringList, false, trace);
+                            boundaryMethods, false, trace);
+            eventThread.setSuspendPolicy(suspendPolicy);
+            eventThread.setSampling(numSkippedInvocations, captureInterval,
+                    captureQuota);
+            eventThread.setMaxConcurrentSessions(maxConcurrentSessions);
+            eventThread.setTrackExceptions(trackExceptions);
+            if (traceLog != null) {
+                eventThread.setTraceLog(traceLog);
+            }
+            eventThread.setVMName(vmName);
+            eventThread.setOverheadBudget(maxEventsPerSecond,
+                    maxSuspendedPercent);
             eventThread.setEventRequests(startMethod);
             eventThread.start();
             vm.resume();
@@ -378,6 +724,18 @@ public class Main {
             }
         }
 
+        /**
+         * Stops tracing the VM, if it is still being traced, and waits until
+         * all the <code>Activation</code>s built so far have been added to
+         * the list of root activations.
+         */
+        public void disconnect() {
+            EventThread eventThread = this.eventThread;
+            if (eventThread != null) {
+                eventThread.disconnect();
+            }
+        }
+
         private VirtualMachine attachTarget(ConnectorType connectorType,
                 String attachAddress) {
             AttachingConnector connector =
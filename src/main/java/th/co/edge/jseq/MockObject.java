@@ -29,6 +29,7 @@ package th.co.edge.jseq;
 public class MockObject implements Comparable<MockObject> {
     private final String name;
     private final int column;
+    private final String group;
 
     /**
      * Creates a new <code>MockObject</code> with a given name and column in
@@ -41,8 +42,28 @@ public class MockObject implements Comparable<MockObject> {
      *            the column number of this life-line
      */
     public MockObject(String name, int column) {
+        this(name, column, null);
+    }
+
+    /**
+     * Creates a new <code>MockObject</code> with a given name and column in
+     * the diagram, belonging to a group of life-lines.
+     *
+     * @param name
+     *            the name that will be displayed at the top of the life-line
+     *
+     * @param column
+     *            the column number of this life-line
+     *
+     * @param group
+     *            the name of the group of life-lines, such as the virtual
+     *            machine, that this life-line belongs to, or
+     *            <code>null</code>
+     */
+    public MockObject(String name, int column, String group) {
         this.name = name;
         this.column = column;
+        this.group = group;
     }
 
     /**
@@ -64,6 +85,17 @@ public class MockObject implements Comparable<MockObject> {
         return column;
     }
 
+    /**
+     * Returns the name of the group of life-lines that this
+     * <code>MockObject</code> belongs to.
+     *
+     * @return the group of this <code>MockObject</code>, or <code>null</code>
+     *         if it does not belong to a group
+     */
+    public String getGroup() {
+        return group;
+    }
+
     /**
      * Returns a string representation of this <code>MockObject</code>,
      * mainly useful for logging.
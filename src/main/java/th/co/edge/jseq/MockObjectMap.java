@@ -24,9 +24,11 @@ package th.co.edge.jseq;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A <code>MockObjectMap</code> is a mapping from names to
@@ -48,7 +50,7 @@ public class MockObjectMap {
      */
     public void add(MockObjectMap otherObjectMap) {
         for (MockObject object : otherObjectMap.listView()) {
-            getInstance(object.getName());
+            getInstance(object.getName(), object.getGroup());
         }
     }
 
@@ -72,11 +74,49 @@ public class MockObjectMap {
         return objectMap;
     }
 
-    private static void addAll(Activation activation, MockObjectMap objectMap) {
-        objectMap.getInstance(activation.getClassName());
-        for (Activation nestedActivation : activation.getNestedActivations()) {
-            addAll(nestedActivation, objectMap);
+    /**
+     * Returns a new <code>MockObjectMap</code> where the method calls
+     * represented by the given root <code>Activation</code>s and their nested
+     * activations have been added as <code>MockObject</code>s. The
+     * <code>MockObject</code>s of each virtual machine get adjacent columns,
+     * with the virtual machines in the order they first occur in the list.
+     *
+     * @param activationList
+     *            the root <code>Activation</code>s whose method calls and
+     *            nested method calls to add to this map
+     *
+     * @return a new <code>MockObjectMap</code> containing all method calls
+     *         from <code>activationList</code>
+     */
+    public static MockObjectMap addAll(ActivationList activationList) {
+        Set<String> vmNames = new LinkedHashSet<String>();
+        for (Activation activation : activationList) {
+            vmNames.add(activation.getVMName());
         }
+        MockObjectMap objectMap = new MockObjectMap();
+        for (String vmName : vmNames) {
+            for (Activation activation : activationList) {
+                if (vmName == null ? activation.getVMName() == null : vmName
+                        .equals(activation.getVMName())) {
+                    addAll(activation, objectMap);
+                }
+            }
+        }
+        return objectMap;
+    }
+
+    private static void addAll(Activation activation,
+            final MockObjectMap objectMap) {
+        activation.accept(new ActivationVisitor() {
+            public boolean visitEnter(Activation activation) {
+                objectMap.getInstance(activation.getLifelineName(), activation
+                        .getVMName());
+                return true;
+            }
+
+            public void visitLeave(Activation activation) {
+            }
+        });
     }
 
     /**
@@ -87,15 +127,17 @@ public class MockObjectMap {
      *
      * @param name
      *            the name of the <code>MockObject</code> to look up
+     * @param group
+     *            the group of a newly created <code>MockObject</code>
      *
      * @return the <code>MockObject</code> associated with <code>name</code>,
      *         or a newly created <code>MockObject</code> (this method never
      *         returns <code>null</code>
      */
-    private MockObject getInstance(String name) {
+    private MockObject getInstance(String name, String group) {
         MockObject object = objectMap.get(name);
         if (object == null) {
-            object = new MockObject(name, nextColumn++);
+            object = new MockObject(name, nextColumn++, group);
             objectMap.put(name, object);
         }
         return object;
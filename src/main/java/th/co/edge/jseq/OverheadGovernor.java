@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.jdi.Method;
+
+/**
+ * An <code>OverheadGovernor</code> measures the overhead that tracing puts on
+ * the traced VM, and decides when tracing must be cut down to stay within a
+ * budget. The overhead is measured once a second as the number of events per
+ * second, and the share of the time that the traced VM was suspended while
+ * the events were handled.
+ *
+ * <p>
+ * Each time the budget is exceeded, the governor moves one step down a
+ * ladder of degradation levels, see <code>Level</code>.
+ */
+class OverheadGovernor {
+    private static final long WINDOW_NANOS = 1000000000L;
+    private static final int MAX_EXCLUSION_ROUNDS = 3;
+    private static final int MAX_EXCLUDED_PER_ROUND = 5;
+
+    private final int maxEventsPerSecond;
+    private final int maxSuspendedPercent;
+
+    private Level level = Level.TRACE;
+    private int numExclusionRounds = 0;
+
+    private final long startTime;
+    private long windowStart;
+    private long windowEvents = 0;
+    private long windowSuspendedNanos = 0;
+    private Map<String, int[]> windowClassCounts = new HashMap<String, int[]>();
+
+    private final Map<Method, int[]> callCounts = new HashMap<Method, int[]>();
+
+    private long lastEventsPerSecond = 0;
+    private int lastSuspendedPercent = 0;
+
+    /**
+     * Creates a new <code>OverheadGovernor</code> with the given budget.
+     *
+     * @param maxEventsPerSecond
+     *            the maximum number of events per second, or 0 for no limit
+     * @param maxSuspendedPercent
+     *            the maximum percentage of the time that the traced VM may be
+     *            suspended, or 0 for no limit
+     */
+    public OverheadGovernor(int maxEventsPerSecond, int maxSuspendedPercent) {
+        this.maxEventsPerSecond = maxEventsPerSecond;
+        this.maxSuspendedPercent = maxSuspendedPercent;
+        this.startTime = System.nanoTime();
+        this.windowStart = startTime;
+    }
+
+    /**
+     * Returns <code>true</code> if this governor has a budget to enforce.
+     *
+     * @return <code>true</code> if there is a limit on the event rate or the
+     *         suspended time
+     */
+    public boolean isEnabled() {
+        return maxEventsPerSecond > 0 || maxSuspendedPercent > 0;
+    }
+
+    /**
+     * Returns the current degradation level.
+     *
+     * @return the current level
+     */
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Counts a method entry in a class, to find the classes generating the
+     * most events.
+     *
+     * @param className
+     *            the name of the class declaring the entered method
+     */
+    public void methodEntered(String className) {
+        int[] count = windowClassCounts.get(className);
+        if (count == null) {
+            count = new int[1];
+            windowClassCounts.put(className, count);
+        }
+        count[0]++;
+    }
+
+    /**
+     * Counts a call to a method, when the level is <code>COUNT</code>.
+     *
+     * @param method
+     *            the method that was called
+     */
+    public void callCounted(Method method) {
+        int[] count = callCounts.get(method);
+        if (count == null) {
+            count = new int[1];
+            callCounts.put(method, count);
+        }
+        count[0]++;
+    }
+
+    /**
+     * Returns a note listing the methods most often called while calls were
+     * only counted, or <code>null</code> if no calls were counted.
+     *
+     * @param maxMethods
+     *            the maximum number of methods to list
+     *
+     * @return a note with the call counts, or <code>null</code>
+     */
+    public String getCallCountsNote(int maxMethods) {
+        if (callCounts.isEmpty()) {
+            return null;
+        }
+        List<Map.Entry<Method, int[]>> entries = sortByCount(callCounts);
+        StringBuffer note = new StringBuffer("Calls counted while tracing was degraded:");
+        for (int i = 0; i < entries.size() && i < maxMethods; i++) {
+            Method method = entries.get(i).getKey();
+            note.append(i == 0 ? " " : ", ");
+            note.append(DetachedMethod.getDeclaringTypeName(method));
+            note.append('.').append(method.name());
+            note.append(' ').append(entries.get(i).getValue()[0]);
+        }
+        if (entries.size() > maxMethods) {
+            note.append(", ...");
+        }
+        return note.toString();
+    }
+
+    /**
+     * Records that an event set was handled, and returns <code>true</code> if
+     * this ended a measuring window in which the budget was exceeded. In that
+     * case, the caller should call <code>degrade</code>.
+     *
+     * @param numEvents
+     *            the number of events in the event set
+     * @param suspendedNanos
+     *            the time, in nanoseconds, that the traced VM was suspended
+     *            while the event set was handled
+     *
+     * @return <code>true</code> if the budget has been exceeded
+     */
+    public boolean eventSetHandled(int numEvents, long suspendedNanos) {
+        return eventSetHandled(numEvents, suspendedNanos, System.nanoTime());
+    }
+
+    boolean eventSetHandled(int numEvents, long suspendedNanos, long now) {
+        windowEvents += numEvents;
+        windowSuspendedNanos += suspendedNanos;
+        long windowLength = now - windowStart;
+        if (windowLength < WINDOW_NANOS) {
+            return false;
+        }
+        lastEventsPerSecond = windowEvents * 1000000000L / windowLength;
+        lastSuspendedPercent =
+                (int) (windowSuspendedNanos * 100 / windowLength);
+        // Counting calls still generates one event per call, but without
+        // suspending the traced VM, so only the suspended time is limited.
+        boolean tooManyEvents =
+                maxEventsPerSecond > 0 && level != Level.COUNT &&
+                        lastEventsPerSecond > maxEventsPerSecond;
+        boolean suspendedTooLong =
+                maxSuspendedPercent > 0 &&
+                        lastSuspendedPercent > maxSuspendedPercent;
+        if (!(tooManyEvents || suspendedTooLong) || level == Level.PAUSED) {
+            startWindow(now);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Moves one step down the ladder of degradation levels, and returns a
+     * note describing why and what was done. If the new level is
+     * <code>EXCLUDE</code>, the classes to exclude are added to
+     * <code>excludedClasses</code>.
+     *
+     * @param excludedClasses
+     *            a list to which the names of classes to exclude from tracing
+     *            are added
+     *
+     * @return a note describing the degradation
+     */
+    public String degrade(List<String> excludedClasses) {
+        String reason =
+                "Tracing overhead " + lastEventsPerSecond + " events/s, " +
+                        lastSuspendedPercent + "% suspended after " +
+                        ((windowStart - startTime) / 1000000000L) +
+                        " s exceeded budget " + describeBudget();
+        String action;
+        List<String> noisiest = getNoisiestClasses();
+        if (level.compareTo(Level.EXCLUDE) <= 0 &&
+                numExclusionRounds < MAX_EXCLUSION_ROUNDS && !noisiest.isEmpty()) {
+            level = Level.EXCLUDE;
+            numExclusionRounds++;
+            excludedClasses.addAll(noisiest);
+            action = "excluded " + noisiest;
+        } else if (level.compareTo(Level.COUNT) < 0) {
+            level = Level.COUNT;
+            action = "counting calls only";
+        } else {
+            level = Level.PAUSED;
+            action = "tracing paused";
+        }
+        startWindow(System.nanoTime());
+        return reason + ": " + action;
+    }
+
+    private String describeBudget() {
+        String budget = "";
+        if (maxEventsPerSecond > 0) {
+            budget += maxEventsPerSecond + " events/s";
+        }
+        if (maxSuspendedPercent > 0) {
+            budget += (budget.length() > 0 ? ", " : "") + maxSuspendedPercent +
+                    "% suspended";
+        }
+        return budget;
+    }
+
+    /**
+     * Returns the classes that together generated at least half of the method
+     * entries in the current window, noisiest first.
+     */
+    private List<String> getNoisiestClasses() {
+        List<Map.Entry<String, int[]>> entries = sortByCount(windowClassCounts);
+        long total = 0;
+        for (Map.Entry<String, int[]> entry : entries) {
+            total += entry.getValue()[0];
+        }
+        List<String> noisiest = new ArrayList<String>();
+        long sum = 0;
+        for (Map.Entry<String, int[]> entry : entries) {
+            if (sum * 2 >= total || noisiest.size() == MAX_EXCLUDED_PER_ROUND) {
+                break;
+            }
+            noisiest.add(entry.getKey());
+            sum += entry.getValue()[0];
+        }
+        return noisiest;
+    }
+
+    private static <K> List<Map.Entry<K, int[]>> sortByCount(
+            Map<K, int[]> counts) {
+        List<Map.Entry<K, int[]>> entries =
+                new ArrayList<Map.Entry<K, int[]>>(counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<K, int[]>>() {
+            public int compare(Map.Entry<K, int[]> e1, Map.Entry<K, int[]> e2) {
+                return e2.getValue()[0] - e1.getValue()[0];
+            }
+        });
+        return entries;
+    }
+
+    private void startWindow(long now) {
+        windowStart = now;
+        windowEvents = 0;
+        windowSuspendedNanos = 0;
+        windowClassCounts = new HashMap<String, int[]>();
+    }
+
+    /**
+     * The degradation levels of an <code>OverheadGovernor</code>, from full
+     * tracing to no tracing at all.
+     */
+    public static enum Level {
+        /**
+         * All method calls are traced.
+         */
+        TRACE,
+
+        /**
+         * The classes generating the most events have been excluded from
+         * tracing.
+         */
+        EXCLUDE,
+
+        /**
+         * Method calls are only counted, without suspending the traced VM.
+         * The number of events per second is not limited at this level.
+         */
+        COUNT,
+
+        /**
+         * Nothing is traced.
+         */
+        PAUSED
+    }
+}
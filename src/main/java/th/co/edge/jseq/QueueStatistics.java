@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+/**
+ * A <code>QueueStatistics</code> is a snapshot of how well the worker threads
+ * that build the <code>Activation</code>s keep up with the events received
+ * from a traced VM.
+ *
+ * @see EventThread#getQueueStatistics()
+ */
+public class QueueStatistics {
+    private final int numWorkers;
+    private final int capacity;
+    private final long numRecords;
+    private final long numStalls;
+    private final long maxBacklog;
+    private final long totalLagNanos;
+    private final long maxLagNanos;
+
+    /**
+     * Creates a new <code>QueueStatistics</code> snapshot.
+     *
+     * @param numWorkers
+     *            the number of worker threads
+     * @param capacity
+     *            the capacity of the queue of each worker thread
+     * @param numRecords
+     *            the number of records processed by the worker threads
+     * @param numStalls
+     *            the number of times a full queue delayed the traced VM
+     * @param maxBacklog
+     *            the largest number of records waiting in a queue
+     * @param totalLagNanos
+     *            the total time, in nanoseconds, that processed records spent
+     *            waiting in a queue
+     * @param maxLagNanos
+     *            the longest time, in nanoseconds, that a record spent waiting
+     *            in a queue
+     */
+    public QueueStatistics(int numWorkers, int capacity, long numRecords,
+            long numStalls, long maxBacklog, long totalLagNanos,
+            long maxLagNanos) {
+        this.numWorkers = numWorkers;
+        this.capacity = capacity;
+        this.numRecords = numRecords;
+        this.numStalls = numStalls;
+        this.maxBacklog = maxBacklog;
+        this.totalLagNanos = totalLagNanos;
+        this.maxLagNanos = maxLagNanos;
+    }
+
+    /**
+     * Returns the number of worker threads.
+     *
+     * @return the number of worker threads
+     */
+    public int getNumWorkers() {
+        return numWorkers;
+    }
+
+    /**
+     * Returns the number of records that fit in the queue of each worker
+     * thread.
+     *
+     * @return the capacity of each queue
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of records processed by the worker threads.
+     *
+     * @return the number of processed records
+     */
+    public long getNumRecords() {
+        return numRecords;
+    }
+
+    /**
+     * Returns the number of times the event thread had to wait for a worker
+     * thread because its queue was full, keeping the traced VM suspended.
+     *
+     * @return the number of stalls
+     */
+    public long getNumStalls() {
+        return numStalls;
+    }
+
+    /**
+     * Returns the largest number of records that have been waiting in a queue
+     * at the same time.
+     *
+     * @return the maximum backlog
+     */
+    public long getMaxBacklog() {
+        return maxBacklog;
+    }
+
+    /**
+     * Returns the average time, in nanoseconds, from when a record was queued
+     * until a worker thread started processing it.
+     *
+     * @return the mean queue lag in nanoseconds
+     */
+    public long getMeanLagNanos() {
+        return (numRecords == 0 ? 0 : totalLagNanos / numRecords);
+    }
+
+    /**
+     * Returns the longest time, in nanoseconds, from when a record was queued
+     * until a worker thread started processing it.
+     *
+     * @return the maximum queue lag in nanoseconds
+     */
+    public long getMaxLagNanos() {
+        return maxLagNanos;
+    }
+
+    @Override
+    public String toString() {
+        return numRecords + " records, " + numWorkers + " workers, " +
+                "max backlog " + maxBacklog + "/" + capacity + ", " +
+                numStalls + " stalls, " + "lag mean " +
+                (getMeanLagNanos() / 1000) + " us, max " +
+                (maxLagNanos / 1000) + " us";
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.jdi.ClassType;
+import com.sun.jdi.IncompatibleThreadStateException;
+import com.sun.jdi.Method;
+import com.sun.jdi.ObjectReference;
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.StackFrame;
+import com.sun.jdi.ThreadReference;
+
+/**
+ * A <code>RuntimeTypeResolver</code> finds the name of the class of the
+ * object that a traced method is called on, which is what is shown as the
+ * life-line in a sequence diagram.
+ *
+ * <p>
+ * Looking at the <code>this</code> object of the top stack frame costs
+ * several JDWP round trips, so it is avoided when the answer is already
+ * known: for static methods, and for methods declared in final classes, the
+ * declaring class is the runtime class. What is known about each declaring
+ * class is cached, and the number of avoided and performed frame lookups is
+ * counted.
+ */
+class RuntimeTypeResolver {
+    private final Map<ReferenceType, Boolean> exactTypes =
+            new HashMap<ReferenceType, Boolean>();
+    private long numFrameLookups = 0;
+    private long numFrameLookupsAvoided = 0;
+
+    /**
+     * Returns the name of the runtime class of the object that the given
+     * method, currently executing in the top stack frame of the given thread,
+     * was called on. For static methods, the name of the declaring class is
+     * returned.
+     *
+     * @param method
+     *            the <code>Method</code> executing in the top stack frame
+     * @param thread
+     *            the suspended thread executing <code>method</code>
+     *
+     * @return the name of the runtime class of <code>this</code> in the top
+     *         stack frame of <code>thread</code>
+     */
+    public String getClassName(Method method, ThreadReference thread) {
+        ReferenceType declaringType = method.declaringType();
+        if (method.isStatic() || isExactType(declaringType)) {
+            numFrameLookupsAvoided++;
+            return declaringType.name();
+        }
+        numFrameLookups++;
+        ReferenceType instanceType = getInstanceType(thread);
+        if (instanceType != null) {
+            return instanceType.name();
+        } else {
+            return declaringType.name();
+        }
+    }
+
+    /**
+     * Records that a class name was known without calling
+     * <code>getClassName</code>, for example because it was resolved when
+     * the method was entered and is reused when the method exits.
+     */
+    public void lookupAvoided() {
+        numFrameLookupsAvoided++;
+    }
+
+    /**
+     * Returns the number of times the stack frame had to be examined to find
+     * the runtime class.
+     *
+     * @return the number of frame lookups performed
+     */
+    public long getNumFrameLookups() {
+        return numFrameLookups;
+    }
+
+    /**
+     * Returns the number of times the runtime class was known without
+     * examining the stack frame.
+     *
+     * @return the number of frame lookups avoided
+     */
+    public long getNumFrameLookupsAvoided() {
+        return numFrameLookupsAvoided;
+    }
+
+    /**
+     * Returns <code>true</code> if objects whose methods are declared in the
+     * given type are always exactly of that type, that is, if it is a final
+     * class.
+     */
+    private boolean isExactType(ReferenceType type) {
+        Boolean exact = exactTypes.get(type);
+        if (exact == null) {
+            exact = Boolean.valueOf(type instanceof ClassType && type.isFinal());
+            exactTypes.put(type, exact);
+        }
+        return exact.booleanValue();
+    }
+
+    private ReferenceType getInstanceType(ThreadReference thread) {
+        if (thread == null) return null;
+        StackFrame frame = null;
+        try {
+            frame = thread.frame(0);
+        } catch (IncompatibleThreadStateException e) {
+        }
+        if (frame == null) return null;
+        ObjectReference thisObject = frame.thisObject();
+        if (thisObject == null) return null;
+        return thisObject.referenceType();
+    }
+}
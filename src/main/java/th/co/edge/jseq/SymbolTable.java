@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.jdi.Method;
+
+/**
+ * A <code>SymbolTable</code> interns the methods and class names seen while
+ * tracing a program, and numbers them in the order they are first seen.
+ *
+ * <p>
+ * A method is interned as a <code>DetachedMethod</code>, holding only its
+ * name, signature, modifiers and declaring class name. All
+ * <code>Activation</code>s of the same method share that one symbol, so the
+ * <code>Activation</code>s neither keep JDI mirrors of the traced virtual
+ * machine alive nor need it to be running, and they can be serialized. The
+ * numbers are used where the symbols are written, like in a trace log.
+ *
+ * <p>
+ * A <code>SymbolTable</code> is safe to use from several threads.
+ */
+public class SymbolTable {
+    // JDI mirrors and detached methods are kept apart, since they are never
+    // equal to each other.
+    private final Map<Method, Integer> mirrorIds =
+            new HashMap<Method, Integer>();
+    private final Map<DetachedMethod, Integer> methodIds =
+            new HashMap<DetachedMethod, Integer>();
+    private final List<DetachedMethod> methods = new ArrayList<DetachedMethod>();
+    private final Map<String, Integer> classIds =
+            new HashMap<String, Integer>();
+    private final List<String> classNames = new ArrayList<String>();
+
+    /**
+     * Returns the number of a method, interning it if it has not been seen
+     * before.
+     *
+     * @param method
+     *            the method, either a JDI mirror or a
+     *            <code>DetachedMethod</code>
+     *
+     * @return the number of <code>method</code>, starting at zero
+     */
+    public synchronized int getMethodId(Method method) {
+        if (method instanceof DetachedMethod) {
+            return getMethodId((DetachedMethod) method);
+        }
+        Integer id = mirrorIds.get(method);
+        if (id == null) {
+            id = Integer.valueOf(getMethodId(new DetachedMethod(DetachedMethod
+                    .getDeclaringTypeName(method), method.name(), method
+                    .signature(), method.modifiers())));
+            mirrorIds.put(method, id);
+        }
+        return id.intValue();
+    }
+
+    private int getMethodId(DetachedMethod method) {
+        Integer id = methodIds.get(method);
+        if (id == null) {
+            id = Integer.valueOf(methods.size());
+            methods.add(method);
+            methodIds.put(method, id);
+        }
+        return id.intValue();
+    }
+
+    /**
+     * Returns the shared symbol for a method, interning it if it has not
+     * been seen before.
+     *
+     * @param method
+     *            the method, either a JDI mirror or a
+     *            <code>DetachedMethod</code>
+     *
+     * @return the <code>DetachedMethod</code> representing
+     *         <code>method</code> in this table
+     */
+    public synchronized DetachedMethod intern(Method method) {
+        return methods.get(getMethodId(method));
+    }
+
+    /**
+     * Returns the method with a given number.
+     *
+     * @param id
+     *            the number of the method
+     *
+     * @return the method numbered <code>id</code>
+     *
+     * @throws IndexOutOfBoundsException
+     *             if there is no such method
+     */
+    public synchronized DetachedMethod getMethod(int id) {
+        return methods.get(id);
+    }
+
+    /**
+     * Returns the number of methods in this table.
+     *
+     * @return the number of methods interned so far
+     */
+    public synchronized int getNumMethods() {
+        return methods.size();
+    }
+
+    /**
+     * Returns the number of a class name, interning it if it has not been
+     * seen before.
+     *
+     * @param className
+     *            the fully qualified class name
+     *
+     * @return the number of <code>className</code>, starting at zero
+     */
+    public synchronized int getClassId(String className) {
+        Integer id = classIds.get(className);
+        if (id == null) {
+            id = Integer.valueOf(classNames.size());
+            classNames.add(className);
+            classIds.put(className, id);
+        }
+        return id.intValue();
+    }
+
+    /**
+     * Returns the shared instance of a class name, interning it if it has not
+     * been seen before.
+     *
+     * @param className
+     *            the fully qualified class name
+     *
+     * @return a string equal to <code>className</code>, the same for all
+     *         equal class names interned in this table
+     */
+    public synchronized String intern(String className) {
+        return classNames.get(getClassId(className));
+    }
+
+    /**
+     * Returns the class name with a given number.
+     *
+     * @param id
+     *            the number of the class name
+     *
+     * @return the class name numbered <code>id</code>
+     *
+     * @throws IndexOutOfBoundsException
+     *             if there is no such class name
+     */
+    public synchronized String getClassName(int id) {
+        return classNames.get(id);
+    }
+
+    /**
+     * Returns the number of class names in this table.
+     *
+     * @return the number of class names interned so far
+     */
+    public synchronized int getNumClassNames() {
+        return classNames.size();
+    }
+}
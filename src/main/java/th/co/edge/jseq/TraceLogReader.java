@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A <code>TraceLogReader</code> replays a log written by a
+ * <code>TraceLogWriter</code>, and rebuilds the <code>ActivationList</code>
+ * with the root activations of the traced program.
+ *
+ * <p>
+ * The calls are kept in a <code>TraceStore</code>, and the returned
+ * <code>ActivationList</code> is a read-only view of it, so that very long
+ * traces fit in memory.
+ *
+ * <p>
+ * The log is read as a stream, so a start filter can be used to only build
+ * the parts of the trace that are of interest, with memory use independent
+ * of the length of the log. The same log can be replayed any number of times
+ * with different filters, without running the program again.
+ *
+ * @see TraceLogWriter
+ */
+public class TraceLogReader {
+
+    /**
+     * This class only contains static methods, so we hide the constructor.
+     */
+    private TraceLogReader() {
+    }
+
+    /**
+     * Returns <code>true</code> if the given file looks like a log written by
+     * a <code>TraceLogWriter</code>.
+     *
+     * @param file
+     *            the file to check
+     *
+     * @return <code>true</code> if <code>file</code> is a trace log
+     *
+     * @throws IOException
+     *             if the file could not be read
+     */
+    public static boolean isTraceLog(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return file.length() >= TraceLogWriter.HEADER_SIZE &&
+                    in.readInt() == TraceLogWriter.MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a complete trace log.
+     *
+     * @param file
+     *            the log to read
+     *
+     * @return a read-only <code>ActivationList</code> with the root
+     *         activations found in the log
+     *
+     * @throws IOException
+     *             if the file could not be read or is not a trace log
+     */
+    public static ActivationList read(File file) throws IOException {
+        return read(file, null);
+    }
+
+    /**
+     * Reads a trace log, only building the activations accepted by a start
+     * filter and the activations nested in them. The result is the same as
+     * <code>read(file).find(startFilter)</code>, but the rest of the trace is
+     * never built.
+     *
+     * @param file
+     *            the log to read
+     * @param startFilter
+     *            the filter accepting the activations to use as root
+     *            activations, or <code>null</code> to read the whole log
+     *
+     * @return a read-only <code>ActivationList</code> with the root
+     *         activations found in the log
+     *
+     * @throws IOException
+     *             if the file could not be read or is not a trace log
+     *
+     * @see ActivationList#find(ActivationList.Filter)
+     */
+    public static ActivationList read(File file,
+            ActivationList.Filter startFilter) throws IOException {
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != TraceLogWriter.MAGIC) {
+                throw new IOException("Not a JSeq trace log");
+            }
+            int version = in.readInt();
+            if (version != TraceLogWriter.VERSION) {
+                throw new IOException("Unsupported trace log version: " +
+                        version);
+            }
+            long dataEnd = in.readLong();
+            Replay replay = new Replay(startFilter);
+            replay.read(in, dataEnd - TraceLogWriter.HEADER_SIZE);
+            return replay.rootActivations;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The state of one replay of a log.
+     */
+    private static class Replay {
+        private final ActivationList.Filter startFilter;
+        private final SymbolTable symbols = new SymbolTable();
+        private final TraceStore store = new TraceStore(symbols);
+        private final ActivationList rootActivations =
+                store.getRootActivations();
+        // The numbers of the methods and class names of the log in the
+        // symbol table of the store.
+        private final List<Integer> methodIds = new ArrayList<Integer>();
+        private final List<Integer> classIds = new ArrayList<Integer>();
+        private final Map<Long, ThreadReplay> threads =
+                new HashMap<Long, ThreadReplay>();
+        private long remaining;
+
+        public Replay(ActivationList.Filter startFilter) {
+            this.startFilter = startFilter;
+        }
+
+        public void read(DataInputStream in, long length) throws IOException {
+            remaining = length;
+            while (remaining > 0) {
+                int chunk = readByte(in);
+                switch (chunk) {
+                case TraceLogWriter.METHOD:
+                    methodIds.add(Integer.valueOf(symbols
+                            .getMethodId(new DetachedMethod(readString(in),
+                                    readString(in), readString(in),
+                                    (int) readVarint(in)))));
+                    break;
+                case TraceLogWriter.CLASS_NAME:
+                    classIds.add(Integer.valueOf(symbols
+                            .getClassId(readString(in))));
+                    break;
+                case TraceLogWriter.NOTE:
+                    rootActivations.addNote(readString(in));
+                    break;
+                case TraceLogWriter.THREAD_RECORDS:
+                    Long threadId = Long.valueOf(readVarint(in));
+                    ThreadReplay thread = threads.get(threadId);
+                    if (thread == null) {
+                        thread = new ThreadReplay();
+                        threads.put(threadId, thread);
+                    }
+                    long recordsLength = readVarint(in);
+                    if (recordsLength > remaining) {
+                        // The log was not closed, and the rest of the
+                        // records were never written.
+                        return;
+                    }
+                    long end = remaining - recordsLength;
+                    while (remaining > end) {
+                        if (thread.record(in)) {
+                            // The thread ended, so no more records for it.
+                            threads.remove(threadId);
+                        }
+                    }
+                    break;
+                default:
+                    throw new IOException("Corrupt trace log, unknown chunk " +
+                            chunk);
+                }
+            }
+        }
+
+        private int readByte(DataInputStream in) throws IOException {
+            remaining--;
+            return in.readUnsignedByte();
+        }
+
+        private long readVarint(DataInputStream in) throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte(in);
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Corrupt trace log, bad number");
+        }
+
+        private String readString(DataInputStream in) throws IOException {
+            byte[] utf8 = new byte[(int) readVarint(in)];
+            in.readFully(utf8);
+            remaining -= utf8.length;
+            return new String(utf8, "UTF-8");
+        }
+
+        /**
+         * The replay of the records of one thread.
+         */
+        private class ThreadReplay {
+            private int depth = 0;
+            private long lastTime = 0;
+            // The innermost call being stored, if any, and the depth of the
+            // root call it belongs to.
+            private int currentCall = TraceStore.NONE;
+            private int rootDepth = 0;
+
+            /**
+             * Replays the next record, and returns <code>true</code> if it
+             * was the end of the thread.
+             */
+            public boolean record(DataInputStream in) throws IOException {
+                int kind = readByte(in);
+                switch (kind) {
+                case TraceLogWriter.ENTRY:
+                    int methodId = methodIds.get((int) readVarint(in));
+                    int classId = classIds.get((int) readVarint(in));
+                    entry(methodId, classId, readTime(in));
+                    break;
+                case TraceLogWriter.EXIT:
+                    exit(readTime(in));
+                    break;
+                case TraceLogWriter.UNWIND:
+                    int newDepth = (int) readVarint(in);
+                    long time = readTime(in);
+                    while (depth > newDepth) {
+                        exit(time);
+                    }
+                    break;
+                case TraceLogWriter.THREAD_END:
+                    return true;
+                default:
+                    throw new IOException("Corrupt trace log, unknown record " +
+                            kind);
+                }
+                return false;
+            }
+
+            private long readTime(DataInputStream in) throws IOException {
+                long zigzag = readVarint(in);
+                lastTime += (zigzag >>> 1) ^ -(zigzag & 1);
+                return lastTime;
+            }
+
+            private void entry(int methodId, int classId, long time) {
+                depth++;
+                if (currentCall != TraceStore.NONE) {
+                    currentCall =
+                            store.add(currentCall, methodId, classId, time);
+                } else if (startFilter == null ? depth == 1 : startFilter
+                        .accept(new Activation(null, symbols
+                                .getClassName(classId), symbols
+                                .getMethod(methodId), 1))) {
+                    currentCall =
+                            store.add(TraceStore.NONE, methodId, classId,
+                                    time);
+                    rootDepth = depth;
+                }
+            }
+
+            private void exit(long time) {
+                if (depth == 0) {
+                    return;
+                }
+                if (currentCall != TraceStore.NONE) {
+                    store.setExitTime(currentCall, time);
+                    currentCall =
+                            (depth == rootDepth ? TraceStore.NONE : store
+                                    .getParent(currentCall));
+                }
+                depth--;
+            }
+        }
+    }
+}
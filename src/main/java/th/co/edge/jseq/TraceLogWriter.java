@@ -0,0 +1,473 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sun.jdi.Method;
+
+/**
+ * A <code>TraceLogWriter</code> writes a program trace to an append-only,
+ * memory-mapped log file while the program runs, so that the trace does not
+ * have to be kept in memory. The log is read back by
+ * <code>TraceLogReader</code>.
+ *
+ * <p>
+ * Each traced thread writes its records, method entries and exits and stack
+ * unwinds, to a buffer of its own, which is appended to the log as a chunk
+ * when it is full. The calls that have returned can be appended on request,
+ * see <code>flushReturned</code>, so that they can be read while the log is
+ * written, without appending a chunk each time a root call returns. Methods
+ * and class names are written to the log once, the first time they are used,
+ * and are then referred to by number. Numbers and times are written as
+ * variable length integers, so a record typically takes three to six bytes.
+ *
+ * <p>
+ * The file starts with a header holding the length of the data appended so
+ * far, which is updated when a whole chunk has been appended. If JSeq is
+ * stopped before the log is closed, everything up to the last appended chunk
+ * can still be read.
+ *
+ * @see TraceLogReader
+ */
+public class TraceLogWriter {
+    static final int MAGIC = 0x4a53514c; // "JSQL"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+
+    // The chunks of the log.
+    static final int METHOD = 1;
+    static final int CLASS_NAME = 2;
+    static final int THREAD_RECORDS = 3;
+    static final int NOTE = 4;
+
+    // The records of a thread.
+    static final int ENTRY = 1;
+    static final int EXIT = 2;
+    static final int UNWIND = 3;
+    static final int THREAD_END = 4;
+
+    private static final int REGION_SIZE = 16 << 20;
+    private static final int BUFFER_SIZE = 64 << 10;
+    // Buffers grow up to BUFFER_SIZE as needed, so that short-lived threads,
+    // such as virtual threads, only use a little memory.
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    private static final int MAX_RECORD_SIZE = 32;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private MappedByteBuffer region;
+    private long regionStart = HEADER_SIZE;
+    private long end = HEADER_SIZE;
+
+    private final SymbolTable symbols = new SymbolTable();
+    private int numMethodsWritten = 0;
+    private int numClassNamesWritten = 0;
+    private final Set<ThreadLog> threadLogs = new HashSet<ThreadLog>();
+    private final Buffer symbolBuffer = new Buffer(1024);
+
+    /**
+     * Creates a new <code>TraceLogWriter</code>, writing to the given file.
+     * The file is overwritten if it exists.
+     *
+     * @param file
+     *            the file to write the log to
+     *
+     * @throws IOException
+     *             if the file could not be created
+     */
+    public TraceLogWriter(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        this.channel = this.file.getChannel();
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putLong(8, end);
+        mapRegion(REGION_SIZE);
+    }
+
+    /**
+     * Returns a new <code>TraceSink</code> writing the records of a traced
+     * thread to this log.
+     *
+     * @param threadId
+     *            the unique id of the traced thread
+     *
+     * @return a <code>TraceSink</code> for the thread
+     */
+    synchronized TraceSink threadLog(long threadId) {
+        ThreadLog threadLog = new ThreadLog(threadId);
+        threadLogs.add(threadLog);
+        return threadLog;
+    }
+
+    private synchronized void removeThreadLog(ThreadLog threadLog) {
+        threadLogs.remove(threadLog);
+    }
+
+    /**
+     * Adds a note to the log, to be added to the
+     * <code>ActivationList</code> read back from the log.
+     *
+     * @param note
+     *            the note to add
+     *
+     * @see ActivationList#addNote(String)
+     */
+    public synchronized void addNote(String note) {
+        symbolBuffer.reset();
+        symbolBuffer.writeByte(NOTE);
+        symbolBuffer.writeString(note);
+        append(symbolBuffer);
+        commit();
+    }
+
+    /**
+     * Appends the records buffered by the traced threads to the log, so that
+     * the calls in progress can be read, for example when JSeq is stopped
+     * with Ctrl-C. Unlike <code>close</code>, this may be called while
+     * records are being written. Records that have not yet been passed to
+     * the log, such as events still queued for the worker threads, are left
+     * out.
+     */
+    public void flush() {
+        List<ThreadLog> logs;
+        synchronized (this) {
+            logs = new ArrayList<ThreadLog>(threadLogs);
+        }
+        // Not holding the lock on the log, since each thread log locks
+        // itself first, and then the log when it appends its records.
+        for (ThreadLog threadLog : logs) {
+            threadLog.flush();
+        }
+    }
+
+    /**
+     * Appends the records of the root calls that have returned, but are
+     * still buffered by the traced threads, to the log, so that they can be
+     * read while the log is written, for example when taking a snapshot. The
+     * records of the calls still in progress are left in the buffers. This
+     * may be called while records are being written.
+     */
+    public void flushReturned() {
+        List<ThreadLog> logs;
+        synchronized (this) {
+            logs = new ArrayList<ThreadLog>(threadLogs);
+        }
+        for (ThreadLog threadLog : logs) {
+            threadLog.flushReturned();
+        }
+    }
+
+    /**
+     * Appends the records still buffered to the log, and closes it. This must
+     * only be called when no more records are being written. Closing a log
+     * that is already closed has no effect.
+     *
+     * @throws IOException
+     *             if the log could not be closed
+     */
+    public void close() throws IOException {
+        flush();
+        synchronized (this) {
+            if (region == null) {
+                return;
+            }
+            threadLogs.clear();
+            region = null;
+            try {
+                channel.truncate(end);
+            } catch (IOException e) {
+                // Some platforms cannot truncate a mapped file. The reader
+                // only reads up to the length in the header anyway.
+            }
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the number of bytes written to the log so far, including the
+     * header.
+     *
+     * @return the length of the log
+     */
+    public synchronized long getLength() {
+        return end;
+    }
+
+    private synchronized int methodId(Method method) {
+        int id = symbols.getMethodId(method);
+        // The symbols are numbered in the order they are first seen, so a
+        // new symbol is always the next one to write.
+        while (numMethodsWritten <= id) {
+            DetachedMethod symbol = symbols.getMethod(numMethodsWritten++);
+            symbolBuffer.reset();
+            symbolBuffer.writeByte(METHOD);
+            symbolBuffer.writeString(symbol.getDeclaringTypeName());
+            symbolBuffer.writeString(symbol.name());
+            symbolBuffer.writeString(symbol.signature());
+            symbolBuffer.writeVarint(symbol.modifiers());
+            append(symbolBuffer);
+            commit();
+        }
+        return id;
+    }
+
+    private synchronized int classId(String className) {
+        int id = symbols.getClassId(className);
+        while (numClassNamesWritten <= id) {
+            symbolBuffer.reset();
+            symbolBuffer.writeByte(CLASS_NAME);
+            symbolBuffer.writeString(symbols
+                    .getClassName(numClassNamesWritten++));
+            append(symbolBuffer);
+            commit();
+        }
+        return id;
+    }
+
+    private synchronized void appendThreadRecords(long threadId,
+            Buffer records, int length) {
+        symbolBuffer.reset();
+        symbolBuffer.writeByte(THREAD_RECORDS);
+        symbolBuffer.writeVarint(threadId);
+        symbolBuffer.writeVarint(length);
+        append(symbolBuffer, symbolBuffer.length());
+        append(records, length);
+        commit();
+    }
+
+    private void append(Buffer buffer) {
+        append(buffer, buffer.length());
+    }
+
+    /**
+     * Appends the first bytes in a buffer to the log. They are not seen by
+     * readers until they are committed.
+     */
+    private void append(Buffer buffer, int length) {
+        if (region.remaining() < length) {
+            regionStart = end;
+            mapRegion(Math.max(REGION_SIZE, length));
+        }
+        region.put(buffer.bytes(), 0, length);
+        end += length;
+    }
+
+    /**
+     * Updates the length of the log in the header, after a whole chunk has
+     * been appended, so that a reader never sees part of a chunk.
+     */
+    private void commit() {
+        header.putLong(8, end);
+    }
+
+    private void mapRegion(int size) {
+        try {
+            region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart,
+                    size);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not extend trace log: " +
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * The records of one traced thread, buffered until the buffer is full.
+     * The ids of the methods and classes already used by the thread are
+     * cached, so that the log only has to be locked when the buffer is
+     * appended, or a new method or class is used. The thread log itself is
+     * locked by each record, which is cheap since only one worker thread
+     * writes to it, so that it can be flushed from another thread.
+     */
+    private class ThreadLog implements TraceSink {
+        private final long threadId;
+        private final Buffer buffer = new Buffer(INITIAL_BUFFER_SIZE);
+        private final Map<Method, Integer> localMethodIds =
+                new HashMap<Method, Integer>();
+        private final Map<String, Integer> localClassIds =
+                new HashMap<String, Integer>();
+        private long lastTime = 0;
+        private int depth = 0;
+        // The length of the buffered records when a root call last returned.
+        private int returnedLength = 0;
+
+        public ThreadLog(long threadId) {
+            this.threadId = threadId;
+        }
+
+        public synchronized void entry(String className, Method method,
+                int depth, Activation root, long time) {
+            Integer methodId = localMethodIds.get(method);
+            if (methodId == null) {
+                methodId = Integer.valueOf(methodId(method));
+                localMethodIds.put(method, methodId);
+            }
+            Integer classId = localClassIds.get(className);
+            if (classId == null) {
+                classId = Integer.valueOf(classId(className));
+                localClassIds.put(className, classId);
+            }
+            buffer.writeByte(ENTRY);
+            buffer.writeVarint(methodId.intValue());
+            buffer.writeVarint(classId.intValue());
+            writeTime(time);
+            this.depth = depth;
+        }
+
+        public synchronized void exit(long time) {
+            buffer.writeByte(EXIT);
+            writeTime(time);
+            depth--;
+            markIfReturned();
+        }
+
+        public synchronized void unwind(int depth, long time) {
+            buffer.writeByte(UNWIND);
+            buffer.writeVarint(depth);
+            writeTime(time);
+            this.depth = depth;
+            markIfReturned();
+        }
+
+        public synchronized void threadEnd() {
+            buffer.writeByte(THREAD_END);
+            flush();
+            removeThreadLog(this);
+        }
+
+        private void writeTime(long time) {
+            // Zig-zag encoded, since nanosecond times may be negative.
+            long delta = time - lastTime;
+            buffer.writeVarint((delta << 1) ^ (delta >> 63));
+            lastTime = time;
+            if (buffer.length() > BUFFER_SIZE - MAX_RECORD_SIZE) {
+                flush();
+            }
+        }
+
+        private void markIfReturned() {
+            if (depth <= 0) {
+                returnedLength = buffer.length();
+            }
+        }
+
+        private synchronized void flushReturned() {
+            if (returnedLength > 0) {
+                appendThreadRecords(threadId, buffer, returnedLength);
+                buffer.discard(returnedLength);
+                returnedLength = 0;
+            }
+        }
+
+        private synchronized void flush() {
+            if (buffer.length() > 0) {
+                appendThreadRecords(threadId, buffer, buffer.length());
+                buffer.reset();
+                returnedLength = 0;
+            }
+        }
+    }
+
+    /**
+     * A growable byte buffer with variable length integer encoding.
+     */
+    private static class Buffer {
+        private byte[] bytes;
+        private int length = 0;
+
+        public Buffer(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        public void writeByte(int b) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) b;
+        }
+
+        public void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7fL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        public void writeString(String s) {
+            byte[] utf8;
+            try {
+                utf8 = s.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+            writeVarint(utf8.length);
+            ensureCapacity(utf8.length);
+            System.arraycopy(utf8, 0, bytes, length, utf8.length);
+            length += utf8.length;
+        }
+
+        public byte[] bytes() {
+            return bytes;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public void reset() {
+            length = 0;
+        }
+
+        /**
+         * Removes the given number of bytes from the start of the buffer.
+         */
+        public void discard(int n) {
+            System.arraycopy(bytes, n, bytes, 0, length - n);
+            length -= n;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > bytes.length) {
+                byte[] newBytes = new byte[Math.max(bytes.length * 2,
+                        length + extra)];
+                System.arraycopy(bytes, 0, newBytes, 0, length);
+                bytes = newBytes;
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import com.sun.jdi.Method;
+
+/**
+ * A <code>TraceSink</code> receives the trace records of one traced thread,
+ * in the order the calls were made. It is only ever used by one worker thread
+ * of an <code>EventPipeline</code>, so it needs no synchronization.
+ *
+ * @see ActivationBuilder
+ * @see TraceLogWriter
+ */
+interface TraceSink {
+
+    /**
+     * Records a call to a traced method.
+     *
+     * @param className
+     *            the name of the class of the object the method was called on
+     * @param method
+     *            the method that was called
+     * @param depth
+     *            the depth of the call among the traced calls of this thread
+     * @param root
+     *            the already created root <code>Activation</code> if this is
+     *            a call at depth one, otherwise <code>null</code>
+     * @param time
+     *            the time of the call, in nanoseconds
+     */
+    void entry(String className, Method method, int depth, Activation root,
+            long time);
+
+    /**
+     * Records that the current method call returned.
+     *
+     * @param time
+     *            the time of the return, in nanoseconds
+     */
+    void exit(long time);
+
+    /**
+     * Records that an exception unwound the stack, so that the current method
+     * call is now the one at the given depth.
+     *
+     * @param depth
+     *            the depth of the method call that caught the exception
+     * @param time
+     *            the time the exception was thrown, in nanoseconds
+     */
+    void unwind(int depth, long time);
+
+    /**
+     * Records that the traced thread ended.
+     */
+    void threadEnd();
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+/**
+ * A <code>TraceStore</code> holds the method calls of a program trace in a
+ * few arrays of primitive values, one element per call, instead of as one
+ * <code>Activation</code> object per call. A call is identified by its index
+ * in the arrays, and knows its parent call, its first nested call and the
+ * next call made by the same parent. The method and class name of a call are
+ * numbers in a <code>SymbolTable</code>.
+ *
+ * <p>
+ * A stored call takes less than a quarter of the memory of an
+ * <code>Activation</code> with its own <code>ActivationList</code> and
+ * linked list nodes, so a lot longer traces fit in the same heap. The calls
+ * are read through the <code>ActivationList</code> returned by
+ * <code>getRootActivations</code>, so that filters and formatters work
+ * unchanged. Its <code>Activation</code>s are created as they are read, and
+ * are not kept by the store, so they can be garbage collected as soon as the
+ * reader is done with them.
+ *
+ * <p>
+ * Calls can only be added, not changed, apart from setting the exit time.
+ * A <code>TraceStore</code> is not safe to use from several threads.
+ */
+public class TraceStore {
+    /**
+     * The index used for "no call", e.g., as the parent of a root call.
+     */
+    public static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    // The exit time of a call that has not returned.
+    private static final long UNTIMED = Long.MIN_VALUE;
+
+    private final SymbolTable symbols;
+    private int size = 0;
+    private int[] parents;
+    private int[] firstChildren;
+    private int[] lastChildren;
+    private int[] nextSiblings;
+    private int[] methodIds;
+    private int[] classIds;
+    private long[] entryTimes;
+    private long[] exitTimes;
+    private int[] roots;
+    private int numRoots = 0;
+
+    /**
+     * Creates a new, empty <code>TraceStore</code>.
+     *
+     * @param symbols
+     *            the <code>SymbolTable</code> that the method and class name
+     *            numbers of the calls refer to
+     */
+    public TraceStore(SymbolTable symbols) {
+        this.symbols = symbols;
+        parents = new int[INITIAL_CAPACITY];
+        firstChildren = new int[INITIAL_CAPACITY];
+        lastChildren = new int[INITIAL_CAPACITY];
+        nextSiblings = new int[INITIAL_CAPACITY];
+        methodIds = new int[INITIAL_CAPACITY];
+        classIds = new int[INITIAL_CAPACITY];
+        entryTimes = new long[INITIAL_CAPACITY];
+        exitTimes = new long[INITIAL_CAPACITY];
+        roots = new int[16];
+    }
+
+    /**
+     * Returns the <code>SymbolTable</code> that the method and class name
+     * numbers of the calls refer to.
+     *
+     * @return the symbol table of this store
+     */
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    /**
+     * Adds a call, as the last call made by its parent.
+     *
+     * @param parent
+     *            the index of the call that made this call, or
+     *            <code>NONE</code> if this is a root call
+     * @param methodId
+     *            the number of the method that was called in the symbol table
+     * @param classId
+     *            the number of the name of the class that the method was
+     *            called on in the symbol table
+     * @param entryTime
+     *            the time of the call, in nanoseconds
+     *
+     * @return the index of the new call
+     */
+    public int add(int parent, int methodId, int classId, long entryTime) {
+        if (size == parents.length) {
+            grow();
+        }
+        int call = size++;
+        parents[call] = parent;
+        firstChildren[call] = NONE;
+        lastChildren[call] = NONE;
+        nextSiblings[call] = NONE;
+        methodIds[call] = methodId;
+        classIds[call] = classId;
+        entryTimes[call] = entryTime;
+        exitTimes[call] = UNTIMED;
+        if (parent == NONE) {
+            if (numRoots == roots.length) {
+                roots = Arrays.copyOf(roots, numRoots * 2);
+            }
+            roots[numRoots++] = call;
+        } else if (firstChildren[parent] == NONE) {
+            firstChildren[parent] = call;
+            lastChildren[parent] = call;
+        } else {
+            nextSiblings[lastChildren[parent]] = call;
+            lastChildren[parent] = call;
+        }
+        return call;
+    }
+
+    private void grow() {
+        int capacity = parents.length * 2;
+        parents = Arrays.copyOf(parents, capacity);
+        firstChildren = Arrays.copyOf(firstChildren, capacity);
+        lastChildren = Arrays.copyOf(lastChildren, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        methodIds = Arrays.copyOf(methodIds, capacity);
+        classIds = Arrays.copyOf(classIds, capacity);
+        entryTimes = Arrays.copyOf(entryTimes, capacity);
+        exitTimes = Arrays.copyOf(exitTimes, capacity);
+    }
+
+    /**
+     * Sets the time when a call returned, or was unwound by an exception.
+     *
+     * @param call
+     *            the index of the call
+     * @param exitTime
+     *            the exit time of the call, in nanoseconds
+     */
+    public void setExitTime(int call, long exitTime) {
+        exitTimes[call] = exitTime;
+    }
+
+    /**
+     * Returns the parent of a call.
+     *
+     * @param call
+     *            the index of the call
+     *
+     * @return the index of the call that made <code>call</code>, or
+     *         <code>NONE</code> if it is a root call
+     */
+    public int getParent(int call) {
+        return parents[call];
+    }
+
+    /**
+     * Returns the number of calls in this store.
+     *
+     * @return the number of calls added so far
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of root calls in this store.
+     *
+     * @return the number of root calls added so far
+     */
+    public int getNumRoots() {
+        return numRoots;
+    }
+
+    /**
+     * Returns a read-only <code>ActivationList</code> with the root calls in
+     * this store, in the order they were added. The list, and the nested
+     * <code>ActivationList</code>s of its <code>Activation</code>s, show the
+     * calls that are in this store when they are read, and throw an
+     * <code>UnsupportedOperationException</code> if changed.
+     *
+     * <p>
+     * A new <code>Activation</code> is created each time a call is read, so
+     * reading the same call twice gives two equal, but not identical,
+     * <code>Activation</code>s. To change the <code>Activation</code>s, or to
+     * read them many times, make a copy of the list with
+     * <code>ActivationList.copy</code>.
+     *
+     * @return an <code>ActivationList</code> with the root calls in this
+     *         store
+     */
+    public ActivationList getRootActivations() {
+        return new ActivationList(new RootList());
+    }
+
+    private Activation activation(int call, Activation parent, int frameCount) {
+        Activation activation =
+                new Activation(null, symbols.getClassName(classIds[call]),
+                        symbols.getMethod(methodIds[call]), frameCount);
+        activation.setParent(parent);
+        activation.setEntryTime(entryTimes[call]);
+        if (exitTimes[call] != UNTIMED) {
+            activation.setExitTime(exitTimes[call]);
+        }
+        activation.setNestedActivations(new ActivationList(new ChildList(
+                call, activation)));
+        return activation;
+    }
+
+    //
+    // Nested top-level classes
+    //
+
+    /**
+     * A read-only list of <code>Activation</code>s created from the calls of
+     * a <code>TraceStore</code>. When serialized, it is replaced with a
+     * plain list of the <code>Activation</code>s.
+     */
+    private abstract class CallList extends AbstractList<Activation>
+            implements java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+
+        protected Object writeReplace() {
+            return new LinkedList<Activation>(this);
+        }
+    }
+
+    /**
+     * The root calls of a <code>TraceStore</code>.
+     */
+    private class RootList extends CallList {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Activation get(int index) {
+            if (index < 0 || index >= numRoots) {
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+            return activation(roots[index], null, 1);
+        }
+
+        @Override
+        public int size() {
+            return numRoots;
+        }
+    }
+
+    /**
+     * The nested calls of a call in a <code>TraceStore</code>, found by
+     * following the next sibling links from the first nested call.
+     */
+    private class ChildList extends CallList {
+        private static final long serialVersionUID = 1L;
+
+        private final int parentCall;
+        private final Activation parent;
+        // The last call found by get, to make reading in order fast.
+        private int cachedIndex = 0;
+        private int cachedCall = NONE;
+
+        public ChildList(int parentCall, Activation parent) {
+            this.parentCall = parentCall;
+            this.parent = parent;
+        }
+
+        @Override
+        public Activation get(int index) {
+            if (index < 0) {
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+            int i = 0;
+            int call = firstChildren[parentCall];
+            if (cachedCall != NONE && cachedIndex <= index) {
+                i = cachedIndex;
+                call = cachedCall;
+            }
+            while (call != NONE && i < index) {
+                call = nextSiblings[call];
+                i++;
+            }
+            if (call == NONE) {
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+            cachedIndex = index;
+            cachedCall = call;
+            return activation(call, parent, parent.getFrameCount() + 1);
+        }
+
+        @Override
+        public int size() {
+            int n = 0;
+            for (int call = firstChildren[parentCall]; call != NONE; call =
+                    nextSiblings[call]) {
+                n++;
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return firstChildren[parentCall] == NONE;
+        }
+
+        @Override
+        public Iterator<Activation> iterator() {
+            return new Iterator<Activation>() {
+                private int next = firstChildren[parentCall];
+
+                public boolean hasNext() {
+                    return next != NONE;
+                }
+
+                public Activation next() {
+                    if (next == NONE) {
+                        throw new NoSuchElementException();
+                    }
+                    Activation activation =
+                            activation(next, parent,
+                                    parent.getFrameCount() + 1);
+                    next = nextSiblings[next];
+                    return activation;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq.agent;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import th.co.edge.jseq.Activation;
+import th.co.edge.jseq.ActivationList;
+import th.co.edge.jseq.DetachedMethod;
+
+/**
+ * An <code>AgentTraceReader</code> reads a trace written by the JSeq
+ * instrumentation agent, and rebuilds the <code>ActivationList</code> with
+ * the root activations of the traced program, one or more per thread.
+ *
+ * <p>
+ * The trace is a sequence of chunks, each one a method, a class name, or a
+ * number of events recorded by one thread. The events of a thread may be
+ * spread over many chunks, so the calls in progress in each thread are kept
+ * between chunks. If the traced program was killed while a chunk was being
+ * written, the trace is read up to the last complete chunk.
+ *
+ * @see TraceAgent
+ */
+public class AgentTraceReader {
+
+    /**
+     * This class only contains static methods, so we hide the constructor.
+     */
+    private AgentTraceReader() {
+    }
+
+    /**
+     * Returns <code>true</code> if the given file looks like a trace written
+     * by the JSeq instrumentation agent.
+     *
+     * @param file
+     *            the file to check
+     *
+     * @return <code>true</code> if <code>file</code> is an agent trace
+     *
+     * @throws IOException
+     *             if the file could not be read
+     */
+    public static boolean isAgentTrace(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return file.length() >= 4 && in.readInt() == Probe.MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads an agent trace from a file.
+     *
+     * @param file
+     *            the file to read
+     *
+     * @return an <code>ActivationList</code> with the root activations found
+     *         in the trace
+     *
+     * @throws IOException
+     *             if the file could not be read or is not an agent trace
+     */
+    public static ActivationList read(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads an agent trace from a stream.
+     *
+     * @param stream
+     *            the stream to read
+     *
+     * @return an <code>ActivationList</code> with the root activations found
+     *         in the trace
+     *
+     * @throws IOException
+     *             if the stream could not be read or is not an agent trace
+     */
+    public static ActivationList read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != Probe.MAGIC) {
+            throw new IOException("Not a JSeq agent trace");
+        }
+        int version = in.readInt();
+        if (version != Probe.VERSION) {
+            throw new IOException("Unsupported agent trace version: " +
+                    version);
+        }
+        List<DetachedMethod> methods = new ArrayList<DetachedMethod>();
+        List<String> classNames = new ArrayList<String>();
+        Map<Integer, Activation> currentActivations =
+                new HashMap<Integer, Activation>();
+        ActivationList rootActivations = new ActivationList();
+        try {
+            while (true) {
+                int kind = in.readInt();
+                switch (kind) {
+                case Probe.METHOD:
+                    String className = in.readUTF();
+                    String methodName = in.readUTF();
+                    String descriptor = in.readUTF();
+                    int modifiers = in.readInt();
+                    methods.add(new DetachedMethod(className, methodName,
+                            descriptor, modifiers));
+                    break;
+                case Probe.CLASS_NAME:
+                    classNames.add(in.readUTF());
+                    break;
+                case Probe.THREAD_EVENTS:
+                    int threadId = in.readInt();
+                    in.readUTF(); // The thread name is currently not used.
+                    int[] events = new int[in.readInt()];
+                    for (int i = 0; i < events.length; i++) {
+                        events[i] = in.readInt();
+                    }
+                    Activation currentActivation =
+                            addActivations(events, methods, classNames,
+                                    currentActivations.get(threadId),
+                                    rootActivations);
+                    currentActivations.put(threadId, currentActivation);
+                    break;
+                default:
+                    throw new IOException("Unknown agent trace chunk: " +
+                            kind);
+                }
+            }
+        } catch (EOFException e) {
+            // The end of the trace, or of the last complete chunk.
+        }
+        return rootActivations;
+    }
+
+    /**
+     * Replays a chunk of events recorded for one thread, starting in the
+     * given activation, and returns the activation in progress at the end of
+     * the chunk. An exit is matched against the closest enclosing activation
+     * of the same method, so an activation whose exit was never recorded, for
+     * example a constructor that threw an exception before the super-class
+     * constructor returned, is closed together with its caller.
+     */
+    private static Activation addActivations(int[] events,
+            List<DetachedMethod> methods, List<String> classNames,
+            Activation currentActivation, ActivationList rootActivations) {
+        int i = 0;
+        while (i < events.length) {
+            int event = events[i++];
+            if (event > 0) {
+                DetachedMethod method = methods.get(event - 1);
+                int classId = events[i++];
+                String className =
+                        (classId == Probe.NO_CLASS ? method
+                                .getDeclaringTypeName() : classNames
+                                .get(classId));
+                Activation activation =
+                        new Activation(currentActivation, className, method,
+                                -1);
+                if (currentActivation == null) {
+                    rootActivations.add(activation);
+                }
+                currentActivation = activation;
+            } else {
+                DetachedMethod method = methods.get(-event - 1);
+                Activation exited = currentActivation;
+                while (exited != null && !exited.getMethod().equals(method)) {
+                    exited = exited.getParent();
+                }
+                if (exited != null) {
+                    currentActivation = exited.getParent();
+                }
+            }
+        }
+        return currentActivation;
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq.agent;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The <code>Probe</code> class is called from the entry and exit probes that
+ * the <code>ProbeTransformer</code> weaves into traced classes. It records
+ * method entries and exits in a buffer local to each thread, so that no
+ * locking between threads is needed while the traced program runs.
+ *
+ * <p>
+ * The buffers have a fixed size. When a buffer is full, its events are
+ * appended to the trace as a chunk, together with the methods and classes
+ * registered since the previous chunk, and the buffer is reused. The buffer
+ * of a thread that has died is appended and released the next time a new
+ * thread starts recording, or when the trace is closed. The trace format is
+ * read by <code>AgentTraceReader</code>.
+ *
+ * <p>
+ * This class is loaded into the traced virtual machine, so it must not depend
+ * on JDI or on any other part of JSeq. Nothing is ever thrown from a probe
+ * into the traced program: if the trace cannot be written, a message is
+ * printed and later events are dropped.
+ */
+public final class Probe {
+    static final int MAGIC = 0x4a534551; // "JSEQ"
+    static final int VERSION = 2;
+    static final int NO_CLASS = -1;
+
+    static final int METHOD = 1;
+    static final int CLASS_NAME = 2;
+    static final int THREAD_EVENTS = 3;
+
+    static final int BUFFER_CAPACITY = 16384;
+
+    private static final List<String[]> methods = new ArrayList<String[]>();
+    private static final List<Integer> methodModifiers =
+            new ArrayList<Integer>();
+    private static final List<String> classNames = new ArrayList<String>();
+    private static final List<ThreadBuffer> buffers =
+            new ArrayList<ThreadBuffer>();
+
+    private static final Object writeLock = new Object();
+    private static DataOutputStream out = null;
+    private static int numMethodsWritten = 0;
+    private static int numClassNamesWritten = 0;
+    private static int nextThreadId = 0;
+
+    private static final ThreadLocal<ThreadBuffer> threadBuffer =
+            new ThreadLocal<ThreadBuffer>() {
+                @Override
+                protected ThreadBuffer initialValue() {
+                    synchronized (buffers) {
+                        releaseDeadThreads();
+                        ThreadBuffer buffer =
+                                new ThreadBuffer(nextThreadId++,
+                                        Thread.currentThread());
+                        buffers.add(buffer);
+                        return buffer;
+                    }
+                }
+            };
+
+    private static final ClassValue<Integer> classIds =
+            new ClassValue<Integer>() {
+                @Override
+                protected Integer computeValue(Class<?> type) {
+                    return registerClass(type.getName());
+                }
+            };
+
+    /**
+     * This class only contains static methods, so we hide the constructor.
+     */
+    private Probe() {
+    }
+
+    /**
+     * Registers a method that probes will be woven into, and returns the id
+     * used by the probes to refer to the method.
+     *
+     * @param className
+     *            the fully qualified name of the declaring class
+     * @param methodName
+     *            the name of the method
+     * @param descriptor
+     *            the method descriptor, e.g., "(I)V"
+     * @param access
+     *            the access flags of the method
+     *
+     * @return the id of the registered method
+     */
+    public static int registerMethod(String className, String methodName,
+            String descriptor, int access) {
+        synchronized (methods) {
+            methods.add(new String[] { className, methodName, descriptor });
+            methodModifiers.add(access);
+            return methods.size() - 1;
+        }
+    }
+
+    private static int registerClass(String className) {
+        synchronized (classNames) {
+            classNames.add(className);
+            return classNames.size() - 1;
+        }
+    }
+
+    /**
+     * Records entry to a static method or a constructor.
+     *
+     * @param methodId
+     *            the id of the method being entered
+     */
+    public static void enter(int methodId) {
+        threadBuffer.get().add(methodId + 1, NO_CLASS);
+    }
+
+    /**
+     * Records entry to an instance method, remembering the runtime class of
+     * the object the method is called on.
+     *
+     * @param methodId
+     *            the id of the method being entered
+     * @param self
+     *            the object the method is called on
+     */
+    public static void enter(int methodId, Object self) {
+        threadBuffer.get().add(methodId + 1, classIds.get(self.getClass()));
+    }
+
+    /**
+     * Records exit from a method, either by returning or by throwing an
+     * exception.
+     *
+     * @param methodId
+     *            the id of the method being exited
+     */
+    public static void exit(int methodId) {
+        threadBuffer.get().add(-(methodId + 1));
+    }
+
+    /**
+     * Starts writing the trace to the given stream. Full buffers are appended
+     * to the stream from now on, until <code>close</code> is called.
+     *
+     * @param stream
+     *            the stream to write to
+     *
+     * @throws IOException
+     *             if writing failed
+     */
+    static void open(DataOutputStream stream) throws IOException {
+        synchronized (writeLock) {
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            out = stream;
+            numMethodsWritten = 0;
+            numClassNamesWritten = 0;
+        }
+    }
+
+    /**
+     * Appends the events still buffered by all threads to the trace, and
+     * flushes the stream given to <code>open</code>. No more events are
+     * written after this. The stream itself is not closed.
+     *
+     * @throws IOException
+     *             if writing failed
+     */
+    static void close() throws IOException {
+        synchronized (buffers) {
+            for (ThreadBuffer buffer : buffers) {
+                buffer.spill();
+            }
+            releaseDeadThreads();
+        }
+        synchronized (writeLock) {
+            if (out != null) {
+                DataOutputStream stream = out;
+                out = null;
+                stream.flush();
+            }
+        }
+    }
+
+    /**
+     * Forgets all registered methods and recorded events. Class ids are kept,
+     * since they are cached per class. Only used for testing.
+     */
+    static void reset() {
+        synchronized (methods) {
+            methods.clear();
+            methodModifiers.clear();
+        }
+        synchronized (buffers) {
+            for (ThreadBuffer buffer : buffers) {
+                buffer.clear();
+            }
+            releaseDeadThreads();
+        }
+        synchronized (writeLock) {
+            out = null;
+        }
+    }
+
+    /**
+     * Returns the number of threads that currently have a buffer. Only used
+     * for testing.
+     */
+    static int getNumThreadBuffers() {
+        synchronized (buffers) {
+            return buffers.size();
+        }
+    }
+
+    /**
+     * Appends the buffers of threads that have died to the trace and
+     * releases them. The caller must hold the lock on <code>buffers</code>.
+     */
+    private static void releaseDeadThreads() {
+        Iterator<ThreadBuffer> it = buffers.iterator();
+        while (it.hasNext()) {
+            ThreadBuffer buffer = it.next();
+            if (!buffer.isThreadAlive()) {
+                buffer.spill();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Appends a chunk with the events of one thread to the trace, preceded by
+     * the methods and classes registered since the last chunk, so that the
+     * trace can be read from beginning to end. Returns <code>false</code> if
+     * the trace has not been opened, or could not be written.
+     */
+    private static boolean writeEvents(int threadId, String threadName,
+            int[] events, int size) {
+        synchronized (writeLock) {
+            if (out == null) {
+                return false;
+            }
+            try {
+                writeRegistrations();
+                out.writeInt(THREAD_EVENTS);
+                out.writeInt(threadId);
+                out.writeUTF(threadName);
+                out.writeInt(size);
+                for (int i = 0; i < size; i++) {
+                    out.writeInt(events[i]);
+                }
+                return true;
+            } catch (IOException e) {
+                System.err.println("JSeq: Failed to write trace, " +
+                        "no more calls are recorded: " + e);
+                out = null;
+                return false;
+            }
+        }
+    }
+
+    private static void writeRegistrations() throws IOException {
+        synchronized (methods) {
+            for (; numMethodsWritten < methods.size(); numMethodsWritten++) {
+                String[] method = methods.get(numMethodsWritten);
+                out.writeInt(METHOD);
+                out.writeUTF(method[0]);
+                out.writeUTF(method[1]);
+                out.writeUTF(method[2]);
+                out.writeInt(methodModifiers.get(numMethodsWritten));
+            }
+        }
+        synchronized (classNames) {
+            for (; numClassNamesWritten < classNames.size();
+                    numClassNamesWritten++) {
+                out.writeInt(CLASS_NAME);
+                out.writeUTF(classNames.get(numClassNamesWritten));
+            }
+        }
+    }
+
+    //
+    // Nested top-level classes
+    //
+
+    /**
+     * A fixed-size array of recorded events for one thread. Entries are
+     * written as the method id plus one, followed by the runtime class id,
+     * and exits as the negated method id minus one. An entry is never split
+     * between two chunks.
+     */
+    private static class ThreadBuffer {
+        private final int threadId;
+        private final String threadName;
+        private final WeakReference<Thread> thread;
+        private final int[] events = new int[BUFFER_CAPACITY];
+        private int size = 0;
+        private boolean spilling = false;
+
+        public ThreadBuffer(int threadId, Thread thread) {
+            this.threadId = threadId;
+            this.threadName = thread.getName();
+            this.thread = new WeakReference<Thread>(thread);
+        }
+
+        public synchronized void add(int event) {
+            if (ensureCapacity(1)) {
+                events[size++] = event;
+            }
+        }
+
+        public synchronized void add(int event, int classId) {
+            if (ensureCapacity(2)) {
+                events[size++] = event;
+                events[size++] = classId;
+            }
+        }
+
+        /**
+         * Makes room for the given number of events, and returns
+         * <code>true</code> if they can be recorded. Events are dropped while
+         * the buffer is being written, since the stream may call a traced
+         * method.
+         */
+        private boolean ensureCapacity(int extra) {
+            if (spilling) {
+                return false;
+            }
+            if (size + extra > events.length) {
+                spill();
+            }
+            return true;
+        }
+
+        /**
+         * Appends the buffered events to the trace, or drops them if the
+         * trace has not been opened or could not be written.
+         */
+        public synchronized void spill() {
+            if (size == 0 || spilling) {
+                return;
+            }
+            spilling = true;
+            try {
+                writeEvents(threadId, threadName, events, size);
+            } finally {
+                spilling = false;
+                size = 0;
+            }
+        }
+
+        public synchronized void clear() {
+            size = 0;
+        }
+
+        public boolean isThreadAlive() {
+            Thread t = thread.get();
+            return t != null && t.isAlive();
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.List;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import th.co.edge.jseq.util.PatternMatcher;
+
+/**
+ * A <code>ProbeTransformer</code> weaves calls to <code>Probe</code> into
+ * every concrete method of the classes that should be traced: one call at the
+ * start of the method, one before each return, and one in a catch-all handler
+ * that records the exit and rethrows when the method completes by throwing
+ * an exception.
+ *
+ * <p>
+ * In a constructor, the catch-all handler only covers the code after the call
+ * to the super-class constructor, or to another constructor of the same
+ * class: the verifier does not accept a handler that covers the call itself.
+ * If a constructor throws before that call returns, the missing exit is
+ * recovered when the trace is read, see <code>AgentTraceReader</code>.
+ */
+public class ProbeTransformer implements ClassFileTransformer {
+    private static final String PROBE_CLASS =
+            Probe.class.getName().replace('.', '/');
+    private static final String AGENT_PACKAGE =
+            ProbeTransformer.class.getPackage().getName().replace('.', '/') +
+                    "/";
+    private static final String ASM_PACKAGE = "org/objectweb/asm/";
+
+    private final PatternMatcher includes;
+    private final PatternMatcher excludes;
+
+    /**
+     * Creates a new <code>ProbeTransformer</code> that instruments classes
+     * selected by the given include and exclude patterns. A pattern is a class
+     * name that may contain the wild-cards "*" and "?", see
+     * <code>PatternMatcher</code>.
+     *
+     * @param includes
+     *            the class name patterns to instrument, or an empty list to
+     *            instrument all classes not excluded
+     * @param excludes
+     *            the class name patterns not to instrument
+     */
+    public ProbeTransformer(List<String> includes, List<String> excludes) {
+        this.includes = new PatternMatcher(includes);
+        this.excludes = new PatternMatcher(excludes);
+    }
+
+    /**
+     * Returns the instrumented class file if the given class should be traced,
+     * or <code>null</code> to leave it unchanged.
+     */
+    public byte[] transform(ClassLoader loader, String internalName,
+            Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+            byte[] classfileBuffer) {
+        if (!canSeeProbe(loader) || internalName == null ||
+                internalName.startsWith(AGENT_PACKAGE) ||
+                internalName.startsWith(ASM_PACKAGE)) {
+            return null;
+        }
+        String className = internalName.replace('/', '.');
+        if (!shouldTrace(className)) {
+            return null;
+        }
+        try {
+            return instrument(className, classfileBuffer);
+        } catch (RuntimeException e) {
+            System.err.println("JSeq: Failed to instrument " + className +
+                    ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if classes loaded by the given class loader
+     * can call <code>Probe</code>, which is loaded by the system class
+     * loader. This is not the case for the bootstrap class loader or any of
+     * the other parents of the system class loader.
+     */
+    private static boolean canSeeProbe(ClassLoader loader) {
+        if (loader == null) {
+            return false;
+        }
+        ClassLoader parent = ClassLoader.getSystemClassLoader().getParent();
+        for (; parent != null; parent = parent.getParent()) {
+            if (parent == loader) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean shouldTrace(String className) {
+        return (includes.isEmpty() || includes.matches(className)) &&
+                !excludes.matches(className);
+    }
+
+    private byte[] instrument(String className, byte[] classfileBuffer) {
+        ClassReader reader = new ClassReader(classfileBuffer);
+        ClassNode classNode = new ClassNode();
+        reader.accept(classNode, ClassReader.EXPAND_FRAMES);
+        boolean needsFrames = (classNode.version & 0xFFFF) >= Opcodes.V1_6;
+        for (MethodNode method : classNode.methods) {
+            int access = method.access;
+            if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) == 0) {
+                int methodId =
+                        Probe.registerMethod(className, method.name,
+                                method.desc, method.access);
+                instrument(method, methodId, needsFrames);
+            }
+        }
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        classNode.accept(writer);
+        return writer.toByteArray();
+    }
+
+    private void instrument(MethodNode method, int methodId,
+            boolean needsFrames) {
+        boolean isConstructor = method.name.equals("<init>");
+        boolean isStatic = (method.access & Opcodes.ACC_STATIC) != 0;
+
+        for (AbstractInsnNode insn : method.instructions.toArray()) {
+            int opcode = insn.getOpcode();
+            if (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) {
+                method.instructions.insertBefore(insn, exitProbe(methodId));
+            }
+        }
+
+        InsnList entry = new InsnList();
+        entry.add(pushInt(methodId));
+        if (isStatic || isConstructor) {
+            entry.add(new MethodInsnNode(Opcodes.INVOKESTATIC, PROBE_CLASS,
+                    "enter", "(I)V", false));
+        } else {
+            entry.add(new VarInsnNode(Opcodes.ALOAD, 0));
+            entry.add(new MethodInsnNode(Opcodes.INVOKESTATIC, PROBE_CLASS,
+                    "enter", "(ILjava/lang/Object;)V", false));
+        }
+
+        AbstractInsnNode initialized =
+                (isConstructor ? findConstructorCall(method) : null);
+        if (!isConstructor || initialized != null) {
+            LabelNode start = new LabelNode();
+            LabelNode end = new LabelNode();
+            LabelNode handler = new LabelNode();
+            if (isConstructor) {
+                method.instructions.insert(initialized, start);
+            } else {
+                entry.add(start);
+            }
+            method.instructions.add(end);
+            method.instructions.add(handler);
+            if (needsFrames) {
+                method.instructions.add(new FrameNode(Opcodes.F_NEW, 0,
+                        new Object[0], 1,
+                        new Object[] { "java/lang/Throwable" }));
+            }
+            method.instructions.add(exitProbe(methodId));
+            method.instructions.add(new InsnNode(Opcodes.ATHROW));
+            // Added last, so that all existing handlers take precedence.
+            method.tryCatchBlocks.add(new TryCatchBlockNode(start, end,
+                    handler, null));
+        }
+        method.instructions.insert(entry);
+    }
+
+    /**
+     * Returns the call to the super-class constructor, or to another
+     * constructor of the same class, in the given constructor, or
+     * <code>null</code> if there is none. This is the first call to a
+     * constructor that does not initialize an object created by a
+     * <code>new</code> instruction earlier in the constructor, for example
+     * an argument to the call.
+     */
+    private AbstractInsnNode findConstructorCall(MethodNode constructor) {
+        int numNewObjects = 0;
+        for (AbstractInsnNode insn : constructor.instructions.toArray()) {
+            int opcode = insn.getOpcode();
+            if (opcode == Opcodes.NEW) {
+                numNewObjects++;
+            } else if (opcode == Opcodes.INVOKESPECIAL &&
+                    ((MethodInsnNode) insn).name.equals("<init>")) {
+                if (numNewObjects == 0) {
+                    return insn;
+                }
+                numNewObjects--;
+            }
+        }
+        return null;
+    }
+
+    private InsnList exitProbe(int methodId) {
+        InsnList exit = new InsnList();
+        exit.add(pushInt(methodId));
+        exit.add(new MethodInsnNode(Opcodes.INVOKESTATIC, PROBE_CLASS, "exit",
+                "(I)V", false));
+        return exit;
+    }
+
+    private AbstractInsnNode pushInt(int value) {
+        AbstractInsnNode insn;
+        if (value <= 5) {
+            insn = new InsnNode(Opcodes.ICONST_0 + value);
+        } else if (value <= Byte.MAX_VALUE) {
+            insn = new IntInsnNode(Opcodes.BIPUSH, value);
+        } else if (value <= Short.MAX_VALUE) {
+            insn = new IntInsnNode(Opcodes.SIPUSH, value);
+        } else {
+            insn = new LdcInsnNode(Integer.valueOf(value));
+        }
+        return insn;
+    }
+}
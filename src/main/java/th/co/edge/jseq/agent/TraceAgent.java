@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq.agent;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A Java agent that traces a program from inside its own virtual machine,
+ * as an alternative to tracing it with JDI. Probes are woven into the
+ * classes selected by the include and exclude patterns when they are loaded,
+ * and the recorded trace is written to a file, a chunk at a time while the
+ * program runs and the rest when the virtual machine exits.
+ * The file can then be turned into a sequence diagram using
+ * <code>jseq -read &lt;filename&gt;</code>.
+ *
+ * <p>
+ * The agent is started by adding an option like the following to the
+ * command line of the program to trace:
+ *
+ * <pre>
+ *   -javaagent:jseq.jar=out=trace.jseq,include=foo.*,exclude=foo.Bar
+ * </pre>
+ *
+ * <p>
+ * The following agent options are recognized, separated by commas:
+ * <ul>
+ * <li><code>out=&lt;filename&gt;</code>: the file to write the trace to,
+ * by default <code>jseq.trace</code></li>
+ * <li><code>include=&lt;class pattern&gt;</code>: a class to trace, may be
+ * given several times</li>
+ * <li><code>exclude=&lt;class pattern&gt;</code>: a class not to trace, may
+ * be given several times</li>
+ * <li><code>nostdexcludes</code>: do not exclude <code>java.*</code>,
+ * <code>javax.*</code>, etc.</li>
+ * </ul>
+ */
+public class TraceAgent {
+    private static final String DEFAULT_OUT_FILENAME = "jseq.trace";
+    private static final String[] STANDARD_EXCLUDES =
+            { "java.*", "javax.*", "sun.*", "com.sun.*", "jdk.*", "junit.*" };
+
+    /**
+     * This class only contains static methods, so we hide the constructor.
+     */
+    private TraceAgent() {
+    }
+
+    /**
+     * Called by the virtual machine before the main method of the traced
+     * program.
+     *
+     * @param agentArgs
+     *            the agent options, see the class documentation
+     * @param inst
+     *            the <code>Instrumentation</code> instance used to register
+     *            the <code>ProbeTransformer</code>
+     */
+    public static void premain(String agentArgs, Instrumentation inst) {
+        String outFilename = DEFAULT_OUT_FILENAME;
+        List<String> includes = new LinkedList<String>();
+        List<String> excludes = new LinkedList<String>();
+        boolean stdExcludes = true;
+        if (agentArgs != null && agentArgs.length() > 0) {
+            for (String option : agentArgs.split(",")) {
+                if (option.startsWith("out=")) {
+                    outFilename = option.substring("out=".length());
+                } else if (option.startsWith("include=")) {
+                    includes.add(option.substring("include=".length()));
+                } else if (option.startsWith("exclude=")) {
+                    excludes.add(option.substring("exclude=".length()));
+                } else if (option.equals("nostdexcludes")) {
+                    stdExcludes = false;
+                } else {
+                    throw new IllegalArgumentException(
+                            "Illegal JSeq agent option: " + option);
+                }
+            }
+        }
+        if (stdExcludes) {
+            for (String standardExclude : STANDARD_EXCLUDES) {
+                excludes.add(standardExclude);
+            }
+        }
+        DataOutputStream out;
+        try {
+            out =
+                    new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(outFilename)));
+            Probe.open(out);
+        } catch (IOException e) {
+            System.err.println("JSeq: Failed to write trace to " +
+                    outFilename + ", not tracing: " + e);
+            return;
+        }
+        // The trace is opened before the transformer is added, so that the
+        // classes used to write it are never woven.
+        inst.addTransformer(new ProbeTransformer(includes, excludes));
+        Runtime.getRuntime().addShutdownHook(
+                new TraceWriter(outFilename, out));
+    }
+
+    private static class TraceWriter extends Thread {
+        private final String filename;
+        private final DataOutputStream out;
+
+        public TraceWriter(String filename, DataOutputStream out) {
+            super("jseq-trace-writer");
+            this.filename = filename;
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Probe.close();
+            } catch (IOException e) {
+                System.err.println("JSeq: Failed to write trace to " +
+                        filename + ": " + e);
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    System.err.println(e);
+                }
+            }
+        }
+    }
+}
@@ -22,7 +22,9 @@
 
 package th.co.edge.jseq.argouml.util;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -40,6 +42,7 @@ import ru.novosoft.uml.foundation.data_types.MVisibilityKind;
 import ru.novosoft.uml.model_management.MModel;
 
 import th.co.edge.jseq.Activation;
+import th.co.edge.jseq.ActivationVisitor;
 import th.co.edge.jseq.argouml.SequenceDiagram;
 import th.co.edge.jseq.argouml.UUID;
 
@@ -117,18 +120,64 @@ public class MModelUtil {
             return diagram;
         }
 
+        /**
+         * Adds the call represented by an activation, and recursively its
+         * nested calls. ArgoUML sequence diagrams have no loop fragments, so
+         * the calls in the body of a loop get the iteration prefix
+         * "*[n] " instead.
+         */
         private void fillSequenceDiagram(Activation activation) {
-            MObject receiver = addObject(activation.getClassName(), "");
-            Activation parent = activation.getParent();
-            if (parent != null) {
-                MObject sender = addObject(parent.getClassName(), "");
-                addCall(sender, receiver, activation.getMethod().name());
-            }
-            for (Activation nestedActivation : activation
-                    .getNestedActivations()) {
-                fillSequenceDiagram(nestedActivation);
-            }
-            getDiagram().deactivate(receiver);
+            activation.accept(new ActivationVisitor() {
+                // For each activation being visited, the receiver of its
+                // call, and the number of calls left in the body of the loop
+                // being added among its nested activations.
+                private List<MObject> receivers = new ArrayList<MObject>();
+                private List<Integer> numCallsLeftInLoop =
+                        new ArrayList<Integer>();
+
+                public boolean visitEnter(Activation activation) {
+                    String prefix = "";
+                    if (!receivers.isEmpty()) {
+                        int top = receivers.size() - 1;
+                        if (numCallsLeftInLoop.get(top).intValue() == 0 &&
+                                activation.getLoopLength() > 0) {
+                            numCallsLeftInLoop.set(top, Integer
+                                    .valueOf(activation.getLoopLength()));
+                        }
+                        if (numCallsLeftInLoop.get(top).intValue() > 0) {
+                            prefix =
+                                    "*[" + activation.getNumLoopIterations() +
+                                            "] ";
+                        }
+                    }
+                    MObject receiver =
+                            addObject(activation.getLifelineName(), "");
+                    Activation parent = activation.getParent();
+                    if (parent != null) {
+                        MObject sender =
+                                addObject(parent.getLifelineName(), "");
+                        addCall(sender, receiver, prefix +
+                                activation.getMethod().name());
+                    }
+                    receivers.add(receiver);
+                    numCallsLeftInLoop.add(Integer.valueOf(0));
+                    return true;
+                }
+
+                public void visitLeave(Activation activation) {
+                    int top = receivers.size() - 1;
+                    getDiagram().deactivate(receivers.remove(top));
+                    numCallsLeftInLoop.remove(top);
+                    if (top > 0) {
+                        int numCallsLeft =
+                                numCallsLeftInLoop.get(top - 1).intValue();
+                        if (numCallsLeft > 0) {
+                            numCallsLeftInLoop.set(top - 1, Integer
+                                    .valueOf(numCallsLeft - 1));
+                        }
+                    }
+                }
+            });
         }
 
         private MObject addObject(String className, String name) {
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq.jfr;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+import th.co.edge.jseq.Activation;
+import th.co.edge.jseq.ActivationList;
+import th.co.edge.jseq.DetachedMethod;
+
+/**
+ * A <code>JfrTraceReader</code> rebuilds an <code>ActivationList</code> from
+ * the method trace events in a Java Flight Recorder recording. This makes it
+ * possible to record a program with JFR, using its class and method filters,
+ * and to generate the sequence diagram later, on another machine.
+ *
+ * <p>
+ * Each method trace event is written when a traced method returns, and holds
+ * the method, the thread, the start time and the duration of the call. Since
+ * the events of a thread are not necessarily written in call order, the
+ * activations are rebuilt from the time intervals: a call is nested in the
+ * closest call on the same thread whose interval contains it.
+ */
+public class JfrTraceReader {
+    /**
+     * The name of the JFR event type holding method traces.
+     */
+    public static final String METHOD_TRACE_EVENT = "jdk.MethodTrace";
+
+    private static final int MAGIC = 0x464c5200; // "FLR\0"
+
+    /**
+     * This class only contains static methods, so we hide the constructor.
+     */
+    private JfrTraceReader() {
+    }
+
+    /**
+     * Returns <code>true</code> if the given file looks like a JFR
+     * recording.
+     *
+     * @param file
+     *            the file to check
+     *
+     * @return <code>true</code> if <code>file</code> is a JFR recording
+     *
+     * @throws IOException
+     *             if the file could not be read
+     */
+    public static boolean isRecording(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return file.length() >= 4 && in.readInt() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads all method trace events from a JFR recording, and returns the
+     * root activations for all threads.
+     *
+     * @param file
+     *            the JFR recording to read
+     *
+     * @return an <code>ActivationList</code> with the root activations found
+     *         in the recording
+     *
+     * @throws IOException
+     *             if the recording could not be read
+     */
+    public static ActivationList read(File file) throws IOException {
+        Map<Long, List<MethodCall>> callsPerThread =
+                new LinkedHashMap<Long, List<MethodCall>>();
+        Map<String, DetachedMethod> methods =
+                new HashMap<String, DetachedMethod>();
+        RecordingFile recording = new RecordingFile(file.toPath());
+        try {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                if (!event.getEventType().getName().equals(METHOD_TRACE_EVENT)) {
+                    continue;
+                }
+                RecordedMethod recordedMethod = event.getValue("method");
+                RecordedThread thread = event.getThread();
+                if (recordedMethod == null || thread == null) {
+                    continue;
+                }
+                String key =
+                        recordedMethod.getType().getName() + "." +
+                                recordedMethod.getName() +
+                                recordedMethod.getDescriptor();
+                DetachedMethod method = methods.get(key);
+                if (method == null) {
+                    method = toDetachedMethod(recordedMethod);
+                    methods.put(key, method);
+                }
+                List<MethodCall> calls =
+                        callsPerThread.get(thread.getJavaThreadId());
+                if (calls == null) {
+                    calls = new ArrayList<MethodCall>();
+                    callsPerThread.put(thread.getJavaThreadId(), calls);
+                }
+                calls.add(new MethodCall(method, toNanos(event.getStartTime()),
+                        toNanos(event.getEndTime())));
+            }
+        } finally {
+            recording.close();
+        }
+        ActivationList rootActivations = new ActivationList();
+        for (List<MethodCall> calls : callsPerThread.values()) {
+            rootActivations.addAll(buildActivations(calls));
+        }
+        return rootActivations;
+    }
+
+    private static DetachedMethod toDetachedMethod(RecordedMethod method) {
+        return new DetachedMethod(method.getType().getName(), method
+                .getName(), method.getDescriptor(), method.getModifiers());
+    }
+
+    private static long toNanos(Instant instant) {
+        return Duration.between(Instant.EPOCH, instant).toNanos();
+    }
+
+    /**
+     * Nests the method calls of one thread according to their time intervals,
+     * and returns the calls that are not nested in any other call.
+     *
+     * @param calls
+     *            the method calls of one thread, in any order
+     *
+     * @return the root activations for the thread
+     */
+    static ActivationList buildActivations(List<MethodCall> calls) {
+        List<MethodCall> sortedCalls = new ArrayList<MethodCall>(calls);
+        // Callers first: earliest start, and for equal start the longest call.
+        Collections.sort(sortedCalls, new Comparator<MethodCall>() {
+            public int compare(MethodCall call1, MethodCall call2) {
+                int result = compareLongs(call1.startTime, call2.startTime);
+                if (result == 0) {
+                    result = compareLongs(call2.endTime, call1.endTime);
+                }
+                return result;
+            }
+        });
+
+        ActivationList rootActivations = new ActivationList();
+        LinkedList<MethodCall> openCalls = new LinkedList<MethodCall>();
+        LinkedList<Activation> openActivations = new LinkedList<Activation>();
+        for (MethodCall call : sortedCalls) {
+            while (!openCalls.isEmpty() &&
+                    openCalls.getLast().endTime <= call.startTime) {
+                openCalls.removeLast();
+                openActivations.removeLast();
+            }
+            Activation parent =
+                    (openActivations.isEmpty() ? null : openActivations
+                            .getLast());
+            Activation activation =
+                    new Activation(parent, call.method.getDeclaringTypeName(),
+                            call.method, -1);
+            activation.setEntryTime(call.startTime);
+            activation.setExitTime(call.endTime);
+            if (parent == null) {
+                rootActivations.add(activation);
+            }
+            openCalls.addLast(call);
+            openActivations.addLast(activation);
+        }
+        return rootActivations;
+    }
+
+    private static int compareLongs(long l1, long l2) {
+        return (l1 < l2 ? -1 : (l1 == l2 ? 0 : 1));
+    }
+
+    //
+    // Nested top-level classes
+    //
+
+    /**
+     * One call to a traced method, as found in the recording.
+     */
+    static class MethodCall {
+        private final DetachedMethod method;
+        private final long startTime;
+        private final long endTime;
+
+        MethodCall(DetachedMethod method, long startTime, long endTime) {
+            this.method = method;
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+    }
+}
@@ -31,7 +31,10 @@ import java.util.List;
 
 import th.co.edge.jseq.Activation;
 import th.co.edge.jseq.ActivationList;
+import th.co.edge.jseq.ActivationVisitor;
 import th.co.edge.jseq.Diagram;
+import th.co.edge.jseq.MockObject;
+import th.co.edge.jseq.MockObjectMap;
 
 /**
  * An <code>SdeditTextDiagram</code> is a <code>Diagram</code> that can be
@@ -92,69 +95,155 @@ public class SdeditTextDiagram implements Diagram {
      * @see #save(File)
      */
     void writeDiagram(Writer writer) throws IOException {
-        writeActorsAndObjectNames(writer);
+        // Calls in several virtual machines that belong together are shown
+        // with the same actor, and the life-lines of each virtual machine
+        // next to each other.
+        List<ActivationList> groups = activationList.groupConcurrentCalls();
+        writeNotes(writer);
+        writeActorsAndObjectNames(groups, writer);
         writer.write(NEW_LINE);
 
         int index = 1;
-        for (Activation activation : activationList) {
-            writeActivation(activation, index, writer);
-            writer.write(NEW_LINE);
+        for (ActivationList group : groups) {
+            for (int i = 0; i < group.size(); i++) {
+                Activation activation = group.get(i);
+                writeActivation(activation, index, writer);
+                if (!isCalledLater(activation, group, i, index)) {
+                    writer.write(getObjectName(activation, index) + ":stop");
+                }
+                writer.write(NEW_LINE);
+            }
             index++;
         }
     }
 
-    private void writeActorsAndObjectNames(Writer writer) throws IOException {
-        int index = 1;
-        for (Activation activation : activationList) {
-            writer.write("Actor" + index + ":Actor");
-            writer.write(NEW_LINE);
-            writeObjectNames(activation, writer, index, new ArrayList<String>());
-            index++;
+    private boolean isCalledLater(Activation activation, ActivationList group,
+            int position, int index) {
+        String objectName = getObjectName(activation, index);
+        for (int i = position + 1; i < group.size(); i++) {
+            if (getObjectName(group.get(i), index).equals(objectName)) {
+                return true;
+            }
         }
+        return false;
     }
 
-    private void writeObjectNames(Activation activation, Writer writer,
-            int index, List<String> objectNames) throws IOException {
-        String objectName = getObjectName(activation, index);
-        if (!objectNames.contains(objectName)) {
-            objectNames.add(objectName);
-            writer.write(objectName);
-            writer.write(":");
-            writer.write(getClassName(activation));
-            writer.write("[a]");
+    private void writeNotes(Writer writer) throws IOException {
+        for (String note : activationList.getNotes()) {
+            writer.write("# Note: ");
+            writer.write(note);
             writer.write(NEW_LINE);
         }
-        for (Activation nestedActivation : activation.getNestedActivations()) {
-            writeObjectNames(nestedActivation, writer, index, objectNames);
+    }
+
+    private void writeActorsAndObjectNames(List<ActivationList> groups,
+            Writer writer) throws IOException {
+        int index = 1;
+        for (ActivationList group : groups) {
+            writer.write("Actor" + index + ":Actor");
+            writer.write(NEW_LINE);
+            List<String> objectNames = new ArrayList<String>();
+            for (MockObject object : MockObjectMap.addAll(group).listView()) {
+                String objectName =
+                        getObjectName(object.getGroup(), object.getName(),
+                                index);
+                if (!objectNames.contains(objectName)) {
+                    objectNames.add(objectName);
+                    writer.write(objectName);
+                    writer.write(":");
+                    writer.write(getClassName(object.getName()));
+                    writer.write("[a]");
+                    writer.write(NEW_LINE);
+                }
+            }
+            index++;
         }
     }
 
     private void writeActivation(Activation activation, int index, Writer writer)
             throws IOException {
-        writer.write("Actor" + index);
-        writer.write(":");
-        writer.write(getObjectName(activation, index));
-        writer.write(".");
-        writer.write(getMethodName(activation));
-        writer.write(NEW_LINE);
-        for (Activation nestedActivation : activation.getNestedActivations()) {
-            writeActivation(nestedActivation, index, 1, writer);
+        ActivationWriter activationWriter = new ActivationWriter(index, writer);
+        activation.accept(activationWriter);
+        if (activationWriter.exception != null) {
+            throw activationWriter.exception;
         }
-        writer.write(getObjectName(activation, index) + ":stop");
     }
 
-    private void writeActivation(Activation activation, int index,
-            int nestingLevel, Writer writer) throws IOException {
-        indent(writer, nestingLevel);
-        writer.write(getObjectName(activation.getParent(), index));
-        writer.write(":");
-        writer.write(getObjectName(activation, index));
-        writer.write(".");
-        writer.write(getMethodName(activation));
-        writer.write(NEW_LINE);
+    /**
+     * Writes an activation and its nested activations, with the calls that
+     * make up the body of a loop in a loop fragment. Since an
+     * <code>ActivationVisitor</code> cannot throw an
+     * <code>IOException</code>, the first one is kept, and nothing more is
+     * written.
+     */
+    private class ActivationWriter implements ActivationVisitor {
+        private final int index;
+        private final Writer writer;
+        // For each activation being visited, the number of calls left in the
+        // loop fragment being written among its nested activations.
+        private final List<Integer> numCallsLeftInLoop =
+                new ArrayList<Integer>();
+        private IOException exception;
 
-        for (Activation nestedActivation : activation.getNestedActivations()) {
-            writeActivation(nestedActivation, index, nestingLevel + 1, writer);
+        public ActivationWriter(int index, Writer writer) {
+            this.index = index;
+            this.writer = writer;
+        }
+
+        public boolean visitEnter(Activation activation) {
+            if (exception != null) {
+                return false;
+            }
+            try {
+                int nestingLevel = numCallsLeftInLoop.size();
+                if (nestingLevel == 0) {
+                    writer.write("Actor" + index);
+                } else {
+                    int top = nestingLevel - 1;
+                    if (numCallsLeftInLoop.get(top).intValue() == 0 &&
+                            activation.getLoopLength() > 0) {
+                        numCallsLeftInLoop.set(top, Integer.valueOf(activation
+                                .getLoopLength()));
+                        indent(writer, nestingLevel);
+                        writer.write("[c:loop " +
+                                activation.getNumLoopIterations() + "]");
+                        writer.write(NEW_LINE);
+                    }
+                    indent(writer, nestingLevel);
+                    writer.write(getObjectName(activation.getParent(), index));
+                }
+                writer.write(":");
+                writer.write(getObjectName(activation, index));
+                writer.write(".");
+                writer.write(getMethodName(activation));
+                writer.write(NEW_LINE);
+            } catch (IOException e) {
+                exception = e;
+                return false;
+            }
+            numCallsLeftInLoop.add(Integer.valueOf(0));
+            return true;
+        }
+
+        public void visitLeave(Activation activation) {
+            numCallsLeftInLoop.remove(numCallsLeftInLoop.size() - 1);
+            int top = numCallsLeftInLoop.size() - 1;
+            if (exception != null || top < 0) {
+                return;
+            }
+            int numCallsLeft = numCallsLeftInLoop.get(top).intValue();
+            if (numCallsLeft > 0) {
+                numCallsLeftInLoop.set(top, Integer.valueOf(--numCallsLeft));
+                if (numCallsLeft == 0) {
+                    try {
+                        indent(writer, top + 1);
+                        writer.write("[/c]");
+                        writer.write(NEW_LINE);
+                    } catch (IOException e) {
+                        exception = e;
+                    }
+                }
+            }
         }
     }
 
@@ -165,11 +254,22 @@ public class SdeditTextDiagram implements Diagram {
     }
 
     private String getObjectName(Activation activation, int index) {
-        return getClassName(activation).toLowerCase() + index;
+        return getObjectName(activation.getVMName(), activation
+                .getLifelineName(), index);
+    }
+
+    private String getObjectName(String vmName, String lifelineName, int index) {
+        String objectName = getClassName(lifelineName).toLowerCase() + index;
+        if (vmName != null) {
+            objectName = vmName.replaceAll("\\W", "_") + "_" + objectName;
+        }
+        return objectName;
     }
 
-    private String getClassName(Activation activation) {
-        String qualifiedClassName = activation.getClassName();
+    private String getClassName(String lifelineName) {
+        // The name of the virtual machine, if any, ends with a slash.
+        String qualifiedClassName =
+                lifelineName.substring(lifelineName.lastIndexOf('/') + 1);
         int lastDot = qualifiedClassName.lastIndexOf('.');
         String result = qualifiedClassName.substring(lastDot + 1);
         if (result.contains("$")) {
@@ -22,6 +22,9 @@
 
 package th.co.edge.jseq.svg;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -33,6 +36,7 @@ import org.w3c.dom.Element;
 
 import th.co.edge.jseq.Activation;
 import th.co.edge.jseq.ActivationList;
+import th.co.edge.jseq.ActivationVisitor;
 import th.co.edge.jseq.Diagram;
 import th.co.edge.jseq.MockObject;
 import th.co.edge.jseq.MockObjectMap;
@@ -70,10 +74,14 @@ public class SVGGenerator {
     private static final int ACTIVATION_BOX_TOP_MARGIN = 15;
     private static final int ACTIVATION_BOX_BOTTOM_MARGIN = 10;
     private static final int METHOD_NAME_BOTTOM_MARGIN = 5;
+    private static final int GROUP_MARGIN = 5;
+    private static final int LOOP_LABEL_WIDTH = 90;
+    private static final int LOOP_LABEL_HEIGHT = 18;
 
     private DocumentBuilder builder;
 
     private MockObjectMap objectMap;
+    private long durationThreshold;
     private int startRow;
     private int row;
     private int maxX;
@@ -130,10 +138,14 @@ public class SVGGenerator {
         Element root = doc.getDocumentElement();
         root.setAttribute("xmlns", SVG_NAMESPACE);
         this.startRow = 0;
-        for (Activation activation : activationList) {
-            fillSVGDocument(doc, activation);
+        this.durationThreshold = activationList.getDurationThreshold();
+        // Calls in several virtual machines that belong together are shown
+        // in one diagram.
+        for (ActivationList group : activationList.groupConcurrentCalls()) {
+            fillSVGDocument(doc, group);
             this.startRow += row + NUM_ROWS_BETWEEN_DIAGRAMS;
         }
+        addNotes(doc, activationList);
         root.setAttributeNS(null, "width", Integer.toString(maxX +
                 EXTRA_DIAGRAM_WIDTH));
         root.setAttributeNS(null, "height", Integer.toString(maxY +
@@ -141,13 +153,40 @@ public class SVGGenerator {
         return doc;
     }
 
-    private void fillSVGDocument(Document doc, Activation activation) {
-        this.objectMap = MockObjectMap.addAll(activation);
+    private void fillSVGDocument(Document doc, ActivationList group) {
+        this.objectMap = MockObjectMap.addAll(group);
         this.row = 0;
         createGroups(doc);
         addHeaders(doc);
-        addCalls(doc, activation);
+        for (Activation activation : group) {
+            if (row > 0) {
+                row++;
+            }
+            addCalls(doc, activation);
+        }
         addLifelines(doc);
+        addVMGroups(doc);
+    }
+
+    private void addNotes(Document doc, ActivationList activationList) {
+        if (activationList.getNotes().isEmpty()) {
+            return;
+        }
+        Element groupNotes = doc.createElementNS(SVG_NAMESPACE, "g");
+        groupNotes.setAttributeNS(null, "id", "Notes");
+        int y = maxY + ROW_HEIGHT;
+        for (String note : activationList.getNotes()) {
+            Element text = doc.createElementNS(SVG_NAMESPACE, "text");
+            text.setAttributeNS(null, "x", Integer.toString(HEADER_LEFT_MARGIN));
+            text.setAttributeNS(null, "y", Integer.toString(y));
+            text.setAttributeNS(null, "fill", "red");
+            text.appendChild(doc.createTextNode(XMLUtil.makeXMLSafe("Note: " +
+                    note)));
+            groupNotes.appendChild(text);
+            y += ROW_HEIGHT;
+        }
+        doc.getDocumentElement().appendChild(groupNotes);
+        maxY = y;
     }
 
     private void createGroups(Document doc) {
@@ -172,6 +211,7 @@ public class SVGGenerator {
         int column = 0;
         for (MockObject object : objectMap.listView()) {
             String name = object.getName();
+            name = name.substring(name.lastIndexOf("/") + 1);
             if (name.lastIndexOf(".") >= 0) {
                 name = name.substring(name.lastIndexOf(".") + 1);
             }
@@ -198,35 +238,217 @@ public class SVGGenerator {
         return headerY;
     }
 
+    /**
+     * Frames the life-lines of each virtual machine, if the calls were traced
+     * in several, and labels them with the name of the virtual machine.
+     */
+    private void addVMGroups(Document doc) {
+        List<MockObject> objects = objectMap.listView();
+        int first = 0;
+        while (first < objects.size()) {
+            String vmName = objects.get(first).getGroup();
+            int last = first;
+            while (last + 1 < objects.size() &&
+                    vmName != null &&
+                    vmName.equals(objects.get(last + 1).getGroup())) {
+                last++;
+            }
+            if (vmName != null) {
+                int x =
+                        LIFE_LINE_LEFT_MARGIN - COLUMN_WIDTH / 2 +
+                                first * COLUMN_WIDTH + GROUP_MARGIN;
+                int y =
+                        HEADER_TOP_MARGIN - 5 * HEADER_VERTICAL_SHIFT / 2 +
+                                startRow * ROW_HEIGHT;
+                int width = (last - first + 1) * COLUMN_WIDTH - 2 * GROUP_MARGIN;
+                int height =
+                        LIFE_LINE_EXTRA_HEIGHT + (row + startRow) * ROW_HEIGHT -
+                                y + GROUP_MARGIN;
+                Element rect = doc.createElementNS(SVG_NAMESPACE, "rect");
+                rect.setAttributeNS(null, "fill", "none");
+                rect.setAttributeNS(null, "stroke", "lightgray");
+                rect.setAttributeNS(null, "x", Integer.toString(x));
+                rect.setAttributeNS(null, "y", Integer.toString(y));
+                rect.setAttributeNS(null, "width", Integer.toString(width));
+                rect.setAttributeNS(null, "height", Integer.toString(height));
+                groupLifeLines.appendChild(rect);
+                Element text = doc.createElementNS(SVG_NAMESPACE, "text");
+                text.setAttributeNS(null, "x", Integer.toString(x +
+                        GROUP_MARGIN));
+                text.setAttributeNS(null, "y", Integer.toString(y +
+                        HEADER_VERTICAL_SHIFT - GROUP_MARGIN));
+                text.setAttributeNS(null, "font-weight", "bold");
+                text.appendChild(doc.createTextNode(XMLUtil
+                        .makeXMLSafe(vmName)));
+                groupHeaders.appendChild(text);
+            }
+            first = last + 1;
+        }
+    }
+
     private void addCalls(Document doc, Activation activation) {
-        int firstRow = row;
-        addCall(doc, activation);
-        for (Activation nestedActivation : activation.getNestedActivations()) {
-            addCalls(doc, nestedActivation);
+        activation.accept(new CallsVisitor(doc));
+    }
+
+    private int getColumn(Activation activation) {
+        return objectMap.get(activation.getLifelineName()).getColumn();
+    }
+
+    /**
+     * Adds the calls of an activation and its nested activations, and frames
+     * the calls that make up the body of a loop.
+     */
+    private class CallsVisitor implements ActivationVisitor {
+        private final Document doc;
+        private final List<CallFrame> frames = new ArrayList<CallFrame>();
+
+        public CallsVisitor(Document doc) {
+            this.doc = doc;
+        }
+
+        public boolean visitEnter(Activation activation) {
+            if (!frames.isEmpty()) {
+                CallFrame parentFrame = frames.get(frames.size() - 1);
+                if (parentFrame.loop == null &&
+                        activation.getLoopLength() > 0) {
+                    parentFrame.loop = activation;
+                    parentFrame.loopRow = row;
+                    parentFrame.numCallsLeft = activation.getLoopLength();
+                    int column = getColumn(parentFrame.activation);
+                    parentFrame.loopColumns = new int[] { column, column };
+                    row++;
+                }
+            }
+            frames.add(new CallFrame(activation, row, getColumn(activation)));
+            addCall(doc, activation);
+            return true;
+        }
+
+        public void visitLeave(Activation activation) {
+            CallFrame frame = frames.remove(frames.size() - 1);
+            addActivationBox(doc, activation, frame.firstRow, row);
+            if (frames.isEmpty()) {
+                return;
+            }
+            CallFrame parentFrame = frames.get(frames.size() - 1);
+            addColumns(parentFrame.columns, frame.columns);
+            if (parentFrame.loop != null) {
+                addColumns(parentFrame.loopColumns, frame.columns);
+                if (--parentFrame.numCallsLeft == 0) {
+                    addLoopFrame(doc, parentFrame.loop, parentFrame.loopRow,
+                            parentFrame.loopColumns);
+                    parentFrame.loop = null;
+                    row++;
+                }
+            }
+        }
+
+        /**
+         * Widens a range of columns to include another range.
+         */
+        private void addColumns(int[] columns, int[] otherColumns) {
+            columns[0] = Math.min(columns[0], otherColumns[0]);
+            columns[1] = Math.max(columns[1], otherColumns[1]);
         }
-        int lastRow = row;
-        addActivationBox(doc, activation, firstRow, lastRow);
+    }
+
+    /**
+     * The state of an activation whose nested activations are being added.
+     */
+    private static class CallFrame {
+        private final Activation activation;
+        private final int firstRow;
+        // The columns of the life-lines of the activation and the nested
+        // activations added so far.
+        private final int[] columns;
+        // The loop being drawn among the nested activations, if any, the row
+        // of its label, the number of calls left in its body, and the
+        // columns it spans.
+        private Activation loop;
+        private int loopRow;
+        private int numCallsLeft;
+        private int[] loopColumns;
+
+        public CallFrame(Activation activation, int firstRow, int column) {
+            this.activation = activation;
+            this.firstRow = firstRow;
+            this.columns = new int[] { column, column };
+        }
+    }
+
+    /**
+     * Frames the calls from a given row up to the current row as a UML loop
+     * fragment, labeled with the number of iterations.
+     */
+    private void addLoopFrame(Document doc, Activation loop, int loopRow,
+            int[] columns) {
+        int x =
+                LIFE_LINE_LEFT_MARGIN - COLUMN_WIDTH / 2 + columns[0] *
+                        COLUMN_WIDTH + 2 * GROUP_MARGIN;
+        int y =
+                ARROW_VERTICAL_MARGIN + (loopRow + startRow) * ROW_HEIGHT -
+                        ROW_HEIGHT / 2;
+        int width =
+                (columns[1] - columns[0] + 1) * COLUMN_WIDTH - 4 * GROUP_MARGIN;
+        int height = (row - loopRow) * ROW_HEIGHT;
+        Element rect = doc.createElementNS(SVG_NAMESPACE, "rect");
+        rect.setAttributeNS(null, "fill", "none");
+        rect.setAttributeNS(null, "stroke", "gray");
+        rect.setAttributeNS(null, "x", Integer.toString(x));
+        rect.setAttributeNS(null, "y", Integer.toString(y));
+        rect.setAttributeNS(null, "width", Integer.toString(width));
+        rect.setAttributeNS(null, "height", Integer.toString(height));
+        groupCalls.appendChild(rect);
+        Element label = doc.createElementNS(SVG_NAMESPACE, "polyline");
+        label.setAttributeNS(null, "fill", "none");
+        label.setAttributeNS(null, "stroke", "gray");
+        label.setAttributeNS(null, "points", x + "," +
+                (y + LOOP_LABEL_HEIGHT) + "," +
+                (x + LOOP_LABEL_WIDTH - GROUP_MARGIN) + "," +
+                (y + LOOP_LABEL_HEIGHT) + "," + (x + LOOP_LABEL_WIDTH) + "," +
+                (y + LOOP_LABEL_HEIGHT - GROUP_MARGIN) + "," +
+                (x + LOOP_LABEL_WIDTH) + "," + y);
+        groupCalls.appendChild(label);
+        Element text = doc.createElementNS(SVG_NAMESPACE, "text");
+        text.setAttributeNS(null, "x", Integer.toString(x + GROUP_MARGIN));
+        text.setAttributeNS(null, "y", Integer.toString(y +
+                LOOP_LABEL_HEIGHT - GROUP_MARGIN));
+        text.appendChild(doc.createTextNode("loop [" +
+                loop.getNumLoopIterations() + "]"));
+        groupCalls.appendChild(text);
     }
 
     private void addCall(Document doc, Activation activation) {
         MockObject sender = null;
         if (activation.getParent() != null) {
-            sender = objectMap.get(activation.getParent().getClassName());
+            sender = objectMap.get(activation.getParent().getLifelineName());
         }
-        MockObject receiver = objectMap.get(activation.getClassName());
+        MockObject receiver = objectMap.get(activation.getLifelineName());
         String methodName = activation.getMethod().name();
         if (activation.getNumRepetitions() > 1) {
             methodName =
                     "*[" + activation.getNumRepetitions() + "] " + methodName;
         }
+        String color = "black";
+        String times = null;
+        if (durationThreshold >= 0 && activation.isTimed()) {
+            methodName +=
+                    " " + Activation.formatTime(activation.getTotalTime());
+            times = activation.getTimesDescription();
+            if (durationThreshold > 0 &&
+                    activation.exceeds(durationThreshold)) {
+                color = "red";
+            }
+        }
         if (sender == receiver) {
-            addSelfArrow(doc, sender, methodName);
+            addSelfArrow(doc, sender, methodName, color, times);
         } else {
-            addArrow(doc, sender, receiver, methodName);
+            addArrow(doc, sender, receiver, methodName, color, times);
         }
     }
 
-    private void addSelfArrow(Document doc, MockObject sender, String methodName) {
+    private void addSelfArrow(Document doc, MockObject sender,
+            String methodName, String color, String times) {
         int x1 =
                 LIFE_LINE_LEFT_MARGIN + ACTIVATION_BOX_WIDTH / 2 +
                         sender.getColumn() * COLUMN_WIDTH;
@@ -242,18 +464,18 @@ public class SVGGenerator {
                         "," + x4 + "," + y4;
         Element line = doc.createElementNS(SVG_NAMESPACE, "polyline");
         line.setAttributeNS(null, "fill", "none");
-        line.setAttributeNS(null, "stroke", "black");
+        line.setAttributeNS(null, "stroke", color);
         line.setAttributeNS(null, "points", points);
         groupCalls.appendChild(line);
 
-        addMethodName(doc, methodName, x1, y1, x2, y2);
-        addArrowHead(doc, x3, y3, x4, y4);
+        addMethodName(doc, methodName, x1, y1, x2, y2, color, times);
+        addArrowHead(doc, x3, y3, x4, y4, color);
 
         row += 2;
     }
 
     private void addArrow(Document doc, MockObject sender, MockObject receiver,
-            String methodName) {
+            String methodName, String color, String times) {
         int x1 =
                 (sender == null ? INDENT_FIRST_ARROW : LIFE_LINE_LEFT_MARGIN +
                         ACTIVATION_BOX_WIDTH / 2 + sender.getColumn() *
@@ -268,21 +490,21 @@ public class SVGGenerator {
             x2 += ACTIVATION_BOX_WIDTH;
         }
         Element line = doc.createElementNS(SVG_NAMESPACE, "line");
-        line.setAttributeNS(null, "stroke", "black");
+        line.setAttributeNS(null, "stroke", color);
         line.setAttributeNS(null, "x1", Integer.toString(x1));
         line.setAttributeNS(null, "y1", Integer.toString(y1));
         line.setAttributeNS(null, "x2", Integer.toString(x2));
         line.setAttributeNS(null, "y2", Integer.toString(y2));
         groupCalls.appendChild(line);
 
-        addMethodName(doc, methodName, x1, y1, x2, y2);
-        addArrowHead(doc, x1, y1, x2, y2);
+        addMethodName(doc, methodName, x1, y1, x2, y2, color, times);
+        addArrowHead(doc, x1, y1, x2, y2, color);
 
         row++;
     }
 
     private void addMethodName(Document doc, String methodName, int x1, int y1,
-            int x2, int y2) {
+            int x2, int y2, String color, String times) {
         Element text = doc.createElementNS(SVG_NAMESPACE, "text");
         int x;
         if (x1 < x2) {
@@ -293,14 +515,22 @@ public class SVGGenerator {
         int y = y1 - METHOD_NAME_BOTTOM_MARGIN;
         text.setAttributeNS(null, "x", Integer.toString(x));
         text.setAttributeNS(null, "y", Integer.toString(y));
+        if (times != null) {
+            text.setAttributeNS(null, "fill", color);
+            // Shown as a tool tip by most SVG viewers.
+            Element title = doc.createElementNS(SVG_NAMESPACE, "title");
+            title.appendChild(doc.createTextNode(XMLUtil.makeXMLSafe(times)));
+            text.appendChild(title);
+        }
         text.appendChild(doc.createTextNode(XMLUtil.makeXMLSafe(methodName)));
         groupCalls.appendChild(text);
     }
 
-    private void addArrowHead(Document doc, int x1, int y1, int x2, int y2) {
+    private void addArrowHead(Document doc, int x1, int y1, int x2, int y2,
+            String color) {
         Element line = doc.createElementNS(SVG_NAMESPACE, "polyline");
         line.setAttributeNS(null, "fill", "none");
-        line.setAttributeNS(null, "stroke", "black");
+        line.setAttributeNS(null, "stroke", color);
         String points;
         if (x1 < x2) {
             points =
@@ -323,9 +553,9 @@ public class SVGGenerator {
             int firstRow, int lastRow) {
         MockObject sender = null;
         if (activation.getParent() != null) {
-            sender = objectMap.get(activation.getParent().getClassName());
+            sender = objectMap.get(activation.getParent().getLifelineName());
         }
-        MockObject receiver = objectMap.get(activation.getClassName());
+        MockObject receiver = objectMap.get(activation.getLifelineName());
         if (sender != receiver) {
             int x =
                     LIFE_LINE_LEFT_MARGIN - ACTIVATION_BOX_WIDTH / 2 +
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A <code>LongHashMap</code> is a map from <code>long</code> keys to
+ * objects, such as from the unique IDs of threads to the state kept for each
+ * thread. The keys are kept in a plain array, using open addressing, so no
+ * objects are allocated per entry and a lookup does not box the key.
+ *
+ * <p>
+ * The map grows as entries are added and shrinks again as they are removed,
+ * so the memory used follows the number of entries currently in the map, not
+ * the number of entries ever added. This matters when the keys are threads
+ * that come and go, possibly in the hundreds of thousands.
+ *
+ * <p>
+ * A <code>LongHashMap</code> is not safe to use from several threads.
+ *
+ * @param <V>
+ *            the type of the values in the map
+ */
+public class LongHashMap<V> implements Iterable<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int size = 0;
+
+    /**
+     * Creates a new, empty <code>LongHashMap</code>.
+     */
+    public LongHashMap() {
+        keys = new long[MIN_CAPACITY];
+        values = new Object[MIN_CAPACITY];
+    }
+
+    /**
+     * Returns the value for a key.
+     *
+     * @param key
+     *            the key to look up
+     *
+     * @return the value for <code>key</code>, or <code>null</code> if there
+     *         is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int mask = keys.length - 1;
+        for (int i = index(key, mask); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the value for a key, replacing any earlier value.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the new value for <code>key</code>, which must not be
+     *            <code>null</code>
+     */
+    public void put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        int mask = keys.length - 1;
+        int i = index(key, mask);
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        // Keep the table at most half full, so that probe sequences are
+        // short.
+        if (size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+    }
+
+    /**
+     * Removes the value for a key.
+     *
+     * @param key
+     *            the key whose value to remove
+     *
+     * @return the removed value, or <code>null</code> if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int mask = keys.length - 1;
+        int i = index(key, mask);
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        V value = (V) values[i];
+        if (value == null) {
+            return null;
+        }
+        // Move later entries of the same probe sequence back into the hole,
+        // so that lookups need no markers for removed entries.
+        int hole = i;
+        for (int j = (hole + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = index(keys[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        values[hole] = null;
+        size--;
+        if (size * 8 < keys.length && keys.length > MIN_CAPACITY) {
+            resize(keys.length / 2);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the number of entries in this map.
+     *
+     * @return the number of entries in this map
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns an iterator over the values in this map, in no particular
+     * order. The map must not be changed while the iterator is used.
+     *
+     * @return an iterator over the values in this map
+     */
+    public Iterator<V> iterator() {
+        return new Iterator<V>() {
+            private int next = advance(0);
+
+            public boolean hasNext() {
+                return next < values.length;
+            }
+
+            @SuppressWarnings("unchecked")
+            public V next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                V value = (V) values[next];
+                next = advance(next + 1);
+                return value;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private int advance(int i) {
+                while (i < values.length && values[i] == null) {
+                    i++;
+                }
+                return i;
+            }
+        };
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int j = index(oldKeys[i], mask);
+                while (values[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private static int index(long key, int mask) {
+        // Thread IDs and the like are sequential, so spread them out.
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A <code>PatternMatcher</code> matches names against a set of wild-card
+ * patterns, all at once. A pattern may contain any number of the wild-cards
+ * "*", matching any sequence of characters, including none, and "?", matching
+ * exactly one character. All other characters match themselves.
+ *
+ * <p>
+ * For example, "foo.Bar.*" matches all methods in the class
+ * <code>foo.Bar</code>, "*.get*" matches all methods with names starting with
+ * "get", and "foo.*Test.setUp" matches the <code>setUp</code> method in all
+ * test classes in the <code>foo</code> package and its sub-packages.
+ *
+ * <p>
+ * The patterns are compiled into a deterministic automaton, which is built
+ * lazily as names are matched, so the time to match a name depends only on
+ * the length of the name and not on the number of patterns. Matching does not
+ * allocate any memory once the automaton states needed for a name have been
+ * built.
+ *
+ * <p>
+ * A <code>PatternMatcher</code> is safe to use from several threads.
+ */
+public class PatternMatcher {
+    private static final int NUM_FAST_CHARS = 128;
+
+    private final char[][] patterns;
+    private final State initialState;
+    private final Map<StateKey, State> states = new HashMap<StateKey, State>();
+
+    /**
+     * Creates a new <code>PatternMatcher</code> that matches names against
+     * the given patterns.
+     *
+     * @param patterns
+     *            the patterns to match names against, possibly containing the
+     *            wild-cards "*" and "?"
+     */
+    public PatternMatcher(Collection<String> patterns) {
+        this.patterns = new char[patterns.size()][];
+        int i = 0;
+        for (String pattern : patterns) {
+            this.patterns[i++] = pattern.toCharArray();
+        }
+        List<Integer> positions = new ArrayList<Integer>();
+        for (int p = 0; p < this.patterns.length; p++) {
+            addClosure(positions, p, 0);
+        }
+        synchronized (states) {
+            this.initialState = state(positions);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if there are no patterns, in which case no
+     * name matches.
+     *
+     * @return <code>true</code> if this <code>PatternMatcher</code> has no
+     *         patterns
+     */
+    public boolean isEmpty() {
+        return patterns.length == 0;
+    }
+
+    /**
+     * Returns <code>true</code> if the given name matches at least one of the
+     * patterns.
+     *
+     * @param name
+     *            the name to match
+     *
+     * @return <code>true</code> if <code>name</code> matches any pattern
+     */
+    public boolean matches(String name) {
+        State state = run(initialState, name);
+        return state.accepting;
+    }
+
+    /**
+     * Returns <code>true</code> if the fully qualified method name
+     * <code>className + "." + methodName</code> matches at least one of the
+     * patterns, without creating the fully qualified name.
+     *
+     * @param className
+     *            the name of the class the method belongs to
+     * @param methodName
+     *            the name of the method
+     *
+     * @return <code>true</code> if the qualified method name matches any
+     *         pattern
+     */
+    public boolean matches(String className, String methodName) {
+        State state = run(initialState, className);
+        if (state.isDecided()) {
+            return state.accepting;
+        }
+        state = state.next('.');
+        return run(state, methodName).accepting;
+    }
+
+    /**
+     * Returns <code>true</code> if the given pattern contains a wild-card
+     * that JDI class filters cannot handle, that is, anything but a single
+     * "*" at the start or at the end of the pattern.
+     *
+     * @param pattern
+     *            the pattern to check
+     *
+     * @return <code>true</code> if <code>pattern</code> cannot be used as a
+     *         JDI class filter
+     */
+    public static boolean isComplex(String pattern) {
+        if (pattern.equals("*")) {
+            return false;
+        }
+        int start = (pattern.startsWith("*") ? 1 : 0);
+        int end = (pattern.endsWith("*") ? pattern.length() - 1 : pattern
+                .length());
+        if (start == 1 && end < pattern.length()) {
+            return true;
+        }
+        for (int i = start; i < end; i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the part of the given pattern before the first wild-card.
+     *
+     * @param pattern
+     *            the pattern
+     *
+     * @return the literal prefix of <code>pattern</code>
+     */
+    public static String literalPrefix(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?') {
+                return pattern.substring(0, i);
+            }
+        }
+        return pattern;
+    }
+
+    private static State run(State state, String s) {
+        int length = s.length();
+        for (int i = 0; i < length && !state.isDecided(); i++) {
+            state = state.next(s.charAt(i));
+        }
+        return state;
+    }
+
+    /**
+     * Adds the given pattern position to the list of positions, followed by
+     * the positions after any "*" wild-cards, which may match nothing.
+     */
+    private void addClosure(List<Integer> positions, int p, int i) {
+        char[] pattern = patterns[p];
+        while (true) {
+            positions.add(Integer.valueOf(encode(p, i)));
+            if (i < pattern.length && pattern[i] == '*') {
+                i++;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private static int encode(int pattern, int index) {
+        return (pattern << 16) | index;
+    }
+
+    /**
+     * Returns the state for the given set of pattern positions, creating it if
+     * needed. Must be called holding the lock on <code>states</code>.
+     */
+    private State state(List<Integer> positionList) {
+        int[] positions = new int[positionList.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = positionList.get(i).intValue();
+        }
+        Arrays.sort(positions);
+        int n = 0;
+        for (int i = 0; i < positions.length; i++) {
+            if (n == 0 || positions[n - 1] != positions[i]) {
+                positions[n++] = positions[i];
+            }
+        }
+        positions = Arrays.copyOf(positions, n);
+        StateKey key = new StateKey(positions);
+        State state = states.get(key);
+        if (state == null) {
+            state = new State(positions);
+            states.put(key, state);
+        }
+        return state;
+    }
+
+    /**
+     * A state of the automaton: the set of pattern positions that the
+     * characters seen so far may have reached.
+     */
+    private class State {
+        private final int[] positions;
+        private final boolean accepting;
+        private final boolean dead;
+        private final boolean acceptsAll;
+        private final State[] fastTransitions = new State[NUM_FAST_CHARS];
+        private final Map<Character, State> slowTransitions =
+                new HashMap<Character, State>();
+
+        State(int[] positions) {
+            this.positions = positions;
+            boolean accepting = false;
+            boolean acceptsAll = false;
+            for (int position : positions) {
+                char[] pattern = patterns[position >>> 16];
+                int i = position & 0xFFFF;
+                if (i == pattern.length) {
+                    accepting = true;
+                } else if (pattern[i] == '*' && onlyStarsFrom(pattern, i)) {
+                    acceptsAll = true;
+                }
+            }
+            this.accepting = accepting;
+            this.acceptsAll = acceptsAll;
+            this.dead = (positions.length == 0);
+        }
+
+        /**
+         * Returns <code>true</code> if the outcome no longer depends on the
+         * rest of the name, either because nothing can match or because
+         * everything matches.
+         */
+        boolean isDecided() {
+            return dead || acceptsAll;
+        }
+
+        State next(char c) {
+            if (c < NUM_FAST_CHARS) {
+                State next = fastTransitions[c];
+                if (next != null) {
+                    return next;
+                }
+            }
+            synchronized (states) {
+                if (c < NUM_FAST_CHARS) {
+                    if (fastTransitions[c] == null) {
+                        fastTransitions[c] = computeNext(c);
+                    }
+                    return fastTransitions[c];
+                }
+                Character key = Character.valueOf(c);
+                State next = slowTransitions.get(key);
+                if (next == null) {
+                    next = computeNext(c);
+                    slowTransitions.put(key, next);
+                }
+                return next;
+            }
+        }
+
+        private State computeNext(char c) {
+            List<Integer> nextPositions = new ArrayList<Integer>();
+            for (int position : positions) {
+                int p = position >>> 16;
+                char[] pattern = patterns[p];
+                int i = position & 0xFFFF;
+                if (i == pattern.length) {
+                    continue;
+                }
+                char pc = pattern[i];
+                if (pc == '*') {
+                    addClosure(nextPositions, p, i);
+                } else if (pc == '?' || pc == c) {
+                    addClosure(nextPositions, p, i + 1);
+                }
+            }
+            return state(nextPositions);
+        }
+    }
+
+    private static boolean onlyStarsFrom(char[] pattern, int i) {
+        for (; i < pattern.length; i++) {
+            if (pattern[i] != '*') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class StateKey {
+        private final int[] positions;
+        private final int hashCode;
+
+        StateKey(int[] positions) {
+            this.positions = positions;
+            this.hashCode = Arrays.hashCode(positions);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof StateKey &&
+                    Arrays.equals(positions, ((StateKey) obj).positions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
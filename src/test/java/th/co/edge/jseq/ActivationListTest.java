@@ -22,6 +22,8 @@
 
 package th.co.edge.jseq;
 
+import java.util.List;
+
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -67,6 +69,60 @@ public class ActivationListTest extends TestCase {
         assertEquals(list, copy);
     }
 
+    public void testAccept() {
+        ActivationList list = buildActivationList();
+        final StringBuffer s = new StringBuffer();
+        list.accept(new ActivationVisitor() {
+            public boolean visitEnter(Activation activation) {
+                s.append("<" + activation.getMethod().name());
+                return !activation.getMethod().name().equals("<init>");
+            }
+
+            public void visitLeave(Activation activation) {
+                s.append(">");
+            }
+        });
+        assertEquals("<testWithdrawal<<init><bar><baz>>", s.toString());
+    }
+
+    public void testDeepActivations() throws Throwable {
+        runWithSmallStack(new Runnable() {
+            public void run() {
+                ActivationList list = buildDeepActivationList(DEEP);
+                ActivationList copy = list.copy();
+                assertEquals(list, copy);
+                assertEquals(list.hashCode(), copy.hashCode());
+                assertEquals(list.toString(), copy.toString());
+
+                ActivationList filteredList =
+                        list.filter(new ClassExclusionFilter("Lexer.*"));
+                assertEquals(DEEP, getDepth(filteredList));
+                ActivationList foundList =
+                        list.find(new MethodFilter("Lexer.next"));
+                assertEquals(2, foundList.size());
+
+                ActivationList collapsedList = list.collapseRepetitions();
+                assertEquals(DEEP + 1, getDepth(collapsedList));
+                assertEquals(collapsedList, new CallDag(list)
+                        .collapseRepetitions().getRootActivations());
+
+                assertEquals(2, MockObjectMap.addAll(list).listView().size());
+            }
+        });
+    }
+
+    public void testNotes() {
+        ActivationList list = buildActivationList();
+        assertTrue(list.getNotes().isEmpty());
+        list.addNote("a note");
+        assertEquals(1, list.filter(new ClassExclusionFilter("Bar.*"))
+                .getNotes().size());
+        assertEquals(1, list.find(new MethodFilter("Foo.<init>")).getNotes()
+                .size());
+        assertEquals("a note", list.collapseRepetitions().getNotes().get(0));
+        assertEquals(list, list.copy());
+    }
+
     public void testCollapseRepetitions() {
         ActivationList list = buildActivationList();
         // Bar.<init> + 5 calls to Bar.frotz = 6 calls
@@ -80,10 +136,226 @@ public class ActivationListTest extends TestCase {
         assertEquals(2, numCallsByFooInit);
     }
 
+    public void testCollapseManyRepetitions() {
+        // 100000 calls alternating between two runs of leaf calls and a
+        // run of calls with one nested call each.
+        Activation root =
+                new Activation(null, "Foo", new TestMethodImpl("main"), 1);
+        for (int i = 0; i < 10000; i++) {
+            for (int j = 0; j < 5; j++) {
+                new Activation(root, "Foo", new TestMethodImpl("leaf"), 2);
+            }
+            for (int j = 0; j < 5; j++) {
+                Activation call =
+                        new Activation(root, "Foo", new TestMethodImpl(
+                                "call"), 2);
+                new Activation(call, "Bar", new TestMethodImpl("leaf"), 3);
+            }
+        }
+        ActivationList list = new ActivationList();
+        list.add(root);
+        ActivationList noRepetitions = list.collapseRepetitions();
+        ActivationList calls = noRepetitions.get(0).getNestedActivations();
+        // The 20000 runs are one loop of two calls.
+        assertEquals(2, calls.size());
+        assertEquals(2, calls.get(0).getLoopLength());
+        assertEquals(10000, calls.get(0).getNumLoopIterations());
+        assertEquals(0, calls.get(1).getLoopLength());
+        assertEquals(10000, calls.get(1).getNumLoopIterations());
+        assertEquals(5, calls.get(1).getNumRepetitions());
+        assertEquals(1, calls.get(1).getNumCalls());
+        assertSame(calls.get(1), calls.get(1).getNestedActivations().get(0)
+                .getParent());
+        assertEquals(100000, list.get(0).getNumCalls());
+    }
+
+    public void testCollapseLoops() {
+        // a b c b c b c a b c d, with b called twice the second time
+        Activation root =
+                new Activation(null, "Foo", new TestMethodImpl("main"), 1);
+        String[] names = { "a", "b", "c", "b", "c", "b", "c", "a", "b", "b",
+                "c", "d" };
+        long time = 0;
+        for (String name : names) {
+            Activation call =
+                    new Activation(root, "Foo", new TestMethodImpl(name), 2);
+            call.setEntryTime(time);
+            time += 10;
+            call.setExitTime(time);
+        }
+        ActivationList list = new ActivationList();
+        list.add(root);
+        ActivationList calls =
+                list.collapseRepetitions().get(0).getNestedActivations();
+        // a [b c] x3 a b(x2) c d
+        assertEquals(7, calls.size());
+        Activation b = calls.get(1);
+        assertEquals(2, b.getLoopLength());
+        assertEquals(3, b.getNumLoopIterations());
+        assertEquals(30, b.getTotalTime());
+        assertEquals(10, b.getAverageTime());
+        assertEquals(3, calls.get(2).getNumLoopIterations());
+        assertEquals(0, calls.get(3).getLoopLength());
+        assertEquals(2, calls.get(4).getNumRepetitions());
+        assertEquals(0, calls.get(4).getLoopLength());
+        assertEquals("Foo.main\n" + "    Foo.a\n"
+                + "    Foo.b (loop x 3, 2 calls)\n" + "    Foo.c\n"
+                + "    Foo.a\n" + "    Foo.b (x 2)\n" + "    Foo.c\n"
+                + "    Foo.d\n", list.collapseRepetitions().get(0)
+                .toString());
+    }
+
+    public void testCollapseRepetitionsTimes() {
+        ActivationList list = buildActivationList();
+        Activation fooInit = list.get(0).getNestedActivations().get(0);
+        // Bar.<init> takes 0, and the calls to Bar.frotz 10, 20, ..., 50.
+        long time = 0;
+        int i = 0;
+        for (Activation call : fooInit.getNestedActivations()) {
+            call.setEntryTime(time);
+            time += 10 * i++;
+            call.setExitTime(time);
+        }
+        fooInit.setEntryTime(0);
+        fooInit.setExitTime(200);
+
+        ActivationList noRepetitions = list.collapseRepetitions();
+        Activation frotz =
+                noRepetitions.get(0).getNestedActivations().get(0)
+                        .getNestedActivations().get(1);
+        assertEquals(5, frotz.getNumRepetitions());
+        assertEquals(10, frotz.getMinTime());
+        assertEquals(30, frotz.getAverageTime());
+        assertEquals(50, frotz.getMaxTime());
+        assertEquals(150, frotz.getTotalTime());
+        Activation collapsedFooInit =
+                noRepetitions.get(0).getNestedActivations().get(0);
+        assertEquals(50, collapsedFooInit.getSelfTime());
+    }
+
+    public void testDurationThreshold() {
+        ActivationList list = buildActivationList();
+        Activation root = list.get(0);
+        root.setEntryTime(0);
+        root.setExitTime(2000000);
+        String plain = list.toString();
+        list.addNote("a note");
+        list.setDurationThreshold(1000000);
+        ActivationList collapsed = list.collapseRepetitions();
+        assertEquals(1000000, collapsed.getDurationThreshold());
+        assertTrue(collapsed.toString().startsWith(
+                "[Scenarios.testWithdrawal [2.000 ms, self 2.000 ms] (slow)\n"));
+        list.setDurationThreshold(-1);
+        assertEquals(plain, list.toString());
+    }
+
     //
     // Utiltity methods
     //
 
+    public void testGroupConcurrentCalls() {
+        ActivationList list = new ActivationList();
+        list.add(buildRoot("gateway", "Gateway", 0, 100));
+        list.add(buildRoot("worker", "Worker", 20, 80));
+        list.add(buildRoot("worker", "Worker", 150, 160));
+        list.add(buildRoot("gateway", "Gateway", 140, 200));
+        list.add(buildRoot(null, "Local", 170, 180));
+
+        ActivationList sorted = list.sortByEntryTime();
+        assertEquals(140, sorted.get(2).getEntryTime());
+        List<ActivationList> groups = sorted.groupConcurrentCalls();
+        assertEquals(3, groups.size());
+        assertEquals(2, groups.get(0).size());
+        assertEquals(2, groups.get(1).size());
+        assertEquals("gateway", groups.get(1).get(0).getVMName());
+        assertEquals(1, groups.get(2).size());
+
+        Activation call = groups.get(0).get(1).getNestedActivations().get(0);
+        assertEquals("worker", call.getVMName());
+        assertEquals("worker/Helper", call.getLifelineName());
+        assertFalse(list.get(0).equals(list.get(1).copy(null)));
+        assertEquals("worker", list.filter(new ActivationList.Filter() {
+            public boolean accept(Activation activation) {
+                return true;
+            }
+        }).get(1).getNestedActivations().get(0).getVMName());
+    }
+
+    private static Activation buildRoot(String vmName, String className,
+            long entryTime, long exitTime) {
+        Activation root =
+                new Activation(null, className, new TestMethodImpl("handle"),
+                        1);
+        root.setVMName(vmName);
+        new Activation(root, "Helper", new TestMethodImpl("help"), 2);
+        root.setEntryTime(entryTime);
+        root.setExitTime(exitTime);
+        return root;
+    }
+
+    /**
+     * The depth of the activations built by
+     * <code>buildDeepActivationList</code> in the tests, much deeper than the
+     * activations could be walked by recursion with the stack given by
+     * <code>runWithSmallStack</code>.
+     */
+    public static final int DEEP = 3000;
+
+    /**
+     * Creates a test activation list with a chain of <code>depth</code>
+     * nested calls to <code>Parser.parse</code>, the last of which calls
+     * <code>Lexer.next</code> twice.
+     */
+    public static ActivationList buildDeepActivationList(int depth) {
+        Activation root =
+                new Activation(null, "Parser", new TestMethodImpl("parse"), 1);
+        Activation activation = root;
+        for (int i = 1; i < depth; i++) {
+            activation =
+                    new Activation(activation, "Parser", new TestMethodImpl(
+                            "parse"), i + 1);
+        }
+        new Activation(activation, "Lexer", new TestMethodImpl("next"),
+                depth + 1);
+        new Activation(activation, "Lexer", new TestMethodImpl("next"),
+                depth + 1);
+        ActivationList list = new ActivationList();
+        list.add(root);
+        return list;
+    }
+
+    /**
+     * Runs a test in a thread with a stack of only 128 kB, and rethrows
+     * anything it throws.
+     */
+    public static void runWithSmallStack(final Runnable test)
+            throws Throwable {
+        final Throwable[] thrown = new Throwable[1];
+        Thread thread = new Thread(null, new Runnable() {
+            public void run() {
+                try {
+                    test.run();
+                } catch (Throwable t) {
+                    thrown[0] = t;
+                }
+            }
+        }, "small stack", 128 * 1024);
+        thread.start();
+        thread.join();
+        if (thrown[0] != null) {
+            throw thrown[0];
+        }
+    }
+
+    private static int getDepth(ActivationList list) {
+        int depth = 0;
+        while (list.size() > 0) {
+            list = list.get(0).getNestedActivations();
+            depth++;
+        }
+        return depth;
+    }
+
     /**
      * Creates a test activation list.
      * 
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class ActivationPipelineTest extends TestCase {
+    public ActivationPipelineTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(ActivationPipelineTest.class);
+        return suite;
+    }
+
+    //
+    // Test methods
+    //
+
+    public void testApplyToActivationList() {
+        ActivationList list = ActivationListTest.buildActivationList();
+        list.addNote("a note");
+        ActivationList expected =
+                list.find(new MethodFilter("Foo.<init>")).filter(
+                        new ClassExclusionFilter("Bar.*"))
+                        .collapseRepetitions();
+        ActivationList actual =
+                buildPipeline().collapseRepetitions().apply(list);
+        assertEquals(expected, actual);
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(list.getNotes(), actual.getNotes());
+        assertEquals(list, ActivationListTest.buildActivationList());
+    }
+
+    public void testApplyWithSeveralFilters() {
+        ActivationList list = ActivationListTest.buildActivationList();
+        ActivationList expected =
+                list.filter(new ClassExclusionFilter("Bar.*")).filter(
+                        new MethodFilter("*.frotz"));
+        ActivationList actual =
+                new ActivationPipeline().filter(
+                        new ClassExclusionFilter("Bar.*")).filter(
+                        new MethodFilter("*.frotz")).apply(list);
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    public void testApplyToCallDag() {
+        ActivationList list = ActivationListTest.buildActivationList();
+        ActivationList expected =
+                buildPipeline().collapseRepetitions().apply(list);
+        CallDag dag =
+                buildPipeline().collapseRepetitions().apply(new CallDag(list));
+        ActivationList actual = dag.getRootActivations();
+        assertEquals(expected, actual);
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    public void testEmptyPipelineCopies() {
+        ActivationList list = ActivationListTest.buildActivationList();
+        ActivationList copy = new ActivationPipeline().apply(list);
+        assertEquals(list, copy);
+        assertNotSame(list.get(0), copy.get(0));
+    }
+
+    public void testStepOrder() {
+        try {
+            buildPipeline().find(new MethodFilter("Foo.bar"));
+            fail("find after filter should throw IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        try {
+            buildPipeline().collapseRepetitions().filter(
+                    new MethodFilter("Foo.bar"));
+            fail("filter after collapseRepetitions should throw "
+                    + "IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    private static ActivationPipeline buildPipeline() {
+        return new ActivationPipeline().find(new MethodFilter("Foo.<init>"))
+                .filter(new ClassExclusionFilter("Bar.*"));
+    }
+}
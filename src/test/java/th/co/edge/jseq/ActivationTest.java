@@ -58,4 +58,25 @@ public class ActivationTest extends TestCase {
 
         assertEquals(child, parent.getNestedActivations().get(0));
     }
+
+    public void testHashCodeFollowsStructure() {
+        Activation a1 = new Activation(null, "Foo", new TestMethodImpl("m"), 1);
+        Activation a2 = new Activation(null, "Foo", new TestMethodImpl("m"), 1);
+        Activation child1 =
+                new Activation(a1, "Bar", new TestMethodImpl("n"), 2);
+        new Activation(a2, "Bar", new TestMethodImpl("n"), 2);
+        assertEquals(a1, a2);
+        assertEquals(a1.hashCode(), a2.hashCode());
+
+        // A call nested deeper in one of them must be noticed, even though
+        // both hash codes are already cached.
+        new Activation(child1, "Baz", new TestMethodImpl("o"), 3);
+        assertFalse(a1.equals(a2));
+        Activation copy = a1.copy(null);
+        assertEquals(a1, copy);
+        assertEquals(a1.hashCode(), copy.hashCode());
+
+        a2.setVMName("vm");
+        assertFalse(a2.equals(a1.copy(null)));
+    }
 }
@@ -38,7 +38,21 @@ public class AllTests extends TestCase {
         suite.addTest(ActivationListTest.suite());
         suite.addTest(MethodFilterTest.suite());
         suite.addTest(ClassExclusionFilterTest.suite());
+        suite.addTest(EventPipelineTest.suite());
+        suite.addTest(OverheadGovernorTest.suite());
+        suite.addTest(CaptureSessionsTest.suite());
+        suite.addTest(EventThreadTest.suite());
+        suite.addTest(TraceLogTest.suite());
+        suite.addTest(SymbolTableTest.suite());
+        suite.addTest(TraceStoreTest.suite());
+        suite.addTest(CallDagTest.suite());
+        suite.addTest(ActivationPipelineTest.suite());
         suite.addTest(th.co.edge.jseq.argouml.AllTests.suite());
+        suite.addTest(th.co.edge.jseq.agent.AgentTraceReaderTest.suite());
+        suite.addTest(th.co.edge.jseq.agent.ProbeTransformerTest.suite());
+        suite.addTest(th.co.edge.jseq.jfr.JfrTraceReaderTest.suite());
+        suite.addTest(th.co.edge.jseq.util.PatternMatcherTest.suite());
+        suite.addTest(th.co.edge.jseq.util.LongHashMapTest.suite());
 
         return suite;
     }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import java.util.Collections;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class CallDagTest extends TestCase {
+    private ActivationList list;
+
+    public CallDagTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(CallDagTest.class);
+        return suite;
+    }
+
+    /**
+     * Builds 100 calls to Service.handle, each calling Dao.load, which
+     * calls Cache.get and Mapper.map, three times in a row.
+     */
+    @Override
+    protected void setUp() {
+        list = new ActivationList();
+        Activation main =
+                new Activation(null, "Main", new TestMethodImpl("main"), 1);
+        for (int i = 0; i < 100; i++) {
+            Activation handle =
+                    new Activation(main, "Service",
+                            new TestMethodImpl("handle"), 2);
+            for (int j = 0; j < 3; j++) {
+                Activation load =
+                        new Activation(handle, "Dao",
+                                new TestMethodImpl("load"), 3);
+                new Activation(load, "Cache", new TestMethodImpl("get"), 4);
+                new Activation(load, "Mapper", new TestMethodImpl("map"), 4);
+            }
+        }
+        list.add(main);
+        list.addNote("a note");
+    }
+
+    //
+    // Test methods
+    //
+
+    public void testSharesSubtrees() {
+        CallDag dag = new CallDag(list);
+        // Cache.get, Mapper.map, Dao.load, Service.handle and Main.main
+        assertEquals(5, dag.getNumNodes());
+        ActivationList rootActivations = dag.getRootActivations();
+        assertEquals(list, rootActivations);
+        assertEquals(list.toString(), rootActivations.toString());
+        assertEquals(list.getNotes(), rootActivations.getNotes());
+        Activation load =
+                rootActivations.get(0).getNestedActivations().get(99)
+                        .getNestedActivations().get(2);
+        assertEquals(3, load.getFrameCount());
+        assertEquals("handle", load.getParent().getMethod().name());
+    }
+
+    public void testFind() {
+        ActivationList.Filter filter = new MethodFilter("Dao.load");
+        assertEquals(list.find(filter), new CallDag(list).find(filter)
+                .getRootActivations());
+    }
+
+    public void testFilter() {
+        ActivationList.Filter filter =
+                new ClassExclusionFilter(Collections.singletonList("Cache.*"));
+        CallDag dag = new CallDag(list);
+        CallDag filteredDag = dag.filter(filter);
+        assertEquals(list.filter(filter), filteredDag.getRootActivations());
+        // Dao.load and the callers get new nodes without Cache.get.
+        assertEquals(8, dag.getNumNodes());
+    }
+
+    public void testCollapseRepetitions() {
+        ActivationList collapsedList = list.collapseRepetitions();
+        ActivationList collapsedDag =
+                new CallDag(list).collapseRepetitions().getRootActivations();
+        assertEquals(collapsedList.toString(), collapsedDag.toString());
+        Activation handle = collapsedDag.get(0).getNestedActivations().get(0);
+        assertEquals(100, handle.getNumRepetitions());
+        assertEquals(3, handle.getNestedActivations().get(0)
+                .getNumRepetitions());
+    }
+
+    public void testCollapseLoops() {
+        Activation main =
+                new Activation(null, "Main", new TestMethodImpl("main"), 1);
+        for (int i = 0; i < 1000; i++) {
+            new Activation(main, "Reader", new TestMethodImpl("read"), 2);
+            new Activation(main, "Parser", new TestMethodImpl("parse"), 2);
+            new Activation(main, "Writer", new TestMethodImpl("write"), 2);
+            new Activation(main, "Writer", new TestMethodImpl("write"), 2);
+        }
+        new Activation(main, "Reader", new TestMethodImpl("close"), 2);
+        ActivationList loopList = new ActivationList();
+        loopList.add(main);
+        ActivationList collapsedList = loopList.collapseRepetitions();
+        ActivationList collapsedDag =
+                new CallDag(loopList).collapseRepetitions()
+                        .getRootActivations();
+        assertEquals(collapsedList.toString(), collapsedDag.toString());
+        Activation read = collapsedDag.get(0).getNestedActivations().get(0);
+        assertEquals(3, read.getLoopLength());
+        assertEquals(1000, read.getNumLoopIterations());
+        assertEquals(4, collapsedDag.get(0).getNumCalls());
+    }
+}
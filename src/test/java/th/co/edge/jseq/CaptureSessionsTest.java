@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class CaptureSessionsTest extends TestCase {
+    public CaptureSessionsTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(CaptureSessionsTest.class);
+        return suite;
+    }
+
+    //
+    // Test methods
+    //
+
+    public void testConcurrentSessions() {
+        CaptureSessions sessions = new CaptureSessions(2, 0);
+        assertTrue(sessions.tryStart());
+        assertFalse(sessions.isFull());
+        assertTrue(sessions.tryStart());
+        assertTrue(sessions.isFull());
+        assertFalse(sessions.tryStart());
+        sessions.finish();
+        assertTrue(sessions.tryStart());
+        assertEquals(3, sessions.getNumStarted());
+        assertEquals(2, sessions.getNumActive());
+        assertFalse(sessions.isDone());
+    }
+
+    public void testQuota() {
+        CaptureSessions sessions = new CaptureSessions(3, 2);
+        assertTrue(sessions.tryStart());
+        assertTrue(sessions.tryStart());
+        assertTrue(sessions.isQuotaReached());
+        assertFalse(sessions.tryStart());
+        sessions.finish();
+        assertFalse(sessions.isDone());
+        sessions.finish();
+        assertTrue(sessions.isDone());
+    }
+
+    public void testFinishWithoutSession() {
+        CaptureSessions sessions = new CaptureSessions(1, 1);
+        try {
+            sessions.finish();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+}
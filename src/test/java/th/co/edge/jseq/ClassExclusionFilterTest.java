@@ -22,6 +22,8 @@
 
 package th.co.edge.jseq;
 
+import java.util.Arrays;
+
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -70,6 +72,25 @@ public class ClassExclusionFilterTest extends TestCase {
                 .accept(foobarFrotz));
     }
 
+    public void testInnerWildcardMatch() {
+        ClassExclusionFilter filter = new ClassExclusionFilter("foo.*.Baz");
+        assertTrue("foo.bar.Baz should not be accepted", !filter
+                .accept(foobarBaz));
+        assertTrue("foo.bar.Frotz should be accepted", filter
+                .accept(foobarFrotz));
+    }
+
+    public void testSeveralPatterns() {
+        ClassExclusionFilter filter =
+                new ClassExclusionFilter(Arrays.asList("foo.bar.Frotz",
+                        "foo.baz.*"));
+        assertTrue("foo.bar.Baz should be accepted", filter.accept(foobarBaz));
+        assertTrue("foo.bar.Frotz should not be accepted", !filter
+                .accept(foobarFrotz));
+        assertTrue("foo.baz.Baz should not be accepted", !filter
+                .accept(foobazBaz));
+    }
+
     public void testEverythingMatch() {
         ClassExclusionFilter filter = new ClassExclusionFilter("*");
         assertTrue("foo.bar.Baz should not be accepted", !filter
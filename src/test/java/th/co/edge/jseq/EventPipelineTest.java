@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.sun.jdi.Method;
+
+public class EventPipelineTest extends TestCase {
+    private static final Method MAIN =
+            new DetachedMethod("Foo", "main", "([Ljava/lang/String;)V", 0x0009);
+    private static final Method BAR =
+            new DetachedMethod("Foo", "bar", "()V", 0x0001);
+    private static final Method BAZ =
+            new DetachedMethod("Foo", "baz", "()V", 0x0001);
+
+    public EventPipelineTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(EventPipelineTest.class);
+        return suite;
+    }
+
+    //
+    // Test methods
+    //
+
+    public void testBuildActivations() {
+        EventPipeline pipeline = new EventPipeline(2, 4);
+        pipeline.start();
+        ActivationBuilder builder1 = new ActivationBuilder("t1", false);
+        ActivationBuilder builder2 = new ActivationBuilder("t2", false);
+        EventRing ring1 = pipeline.ringFor(1);
+        EventRing ring2 = pipeline.ringFor(2);
+        assertNotSame(ring1, ring2);
+
+        Activation root1 = new Activation(null, "Foo", MAIN, 1);
+        Activation root2 = new Activation(null, "Foo", MAIN, 1);
+        for (int i = 0; i < 100; i++) {
+            entry(ring1, builder1, i == 0 ? root1 : null, BAR, i == 0 ? 1 : 2);
+            entry(ring2, builder2, i == 0 ? root2 : null, BAR, i == 0 ? 1 : 2);
+            if (i > 0) {
+                exit(ring1, builder1);
+                exit(ring2, builder2);
+            }
+        }
+        pipeline.shutdown();
+
+        assertEquals(99, root1.getNumCalls());
+        assertEquals(99, root2.getNumCalls());
+        QueueStatistics statistics = pipeline.getStatistics();
+        assertEquals(2, statistics.getNumWorkers());
+        assertEquals(4, statistics.getCapacity());
+        assertEquals(398, statistics.getNumRecords());
+        assertTrue(statistics.getMaxBacklog() <= 4);
+    }
+
+    public void testUnwind() {
+        EventPipeline pipeline = new EventPipeline(1, 16);
+        pipeline.start();
+        ActivationBuilder builder = new ActivationBuilder("t", false);
+        EventRing ring = pipeline.ringFor(1);
+
+        Activation root = new Activation(null, "Foo", MAIN, 1);
+        entry(ring, builder, root, MAIN, 1);
+        entry(ring, builder, null, BAR, 2);
+        entry(ring, builder, null, BAR, 3);
+        entry(ring, builder, null, BAR, 4);
+        EventRing.Record record = ring.claim();
+        record.kind = EventRing.Record.UNWIND;
+        record.sink = builder;
+        record.depth = 1;
+        ring.publish();
+        entry(ring, builder, null, BAZ, 2);
+        pipeline.shutdown();
+
+        assertEquals(2, root.getNumCalls());
+        assertEquals("baz", root.getNestedActivations().get(1).getMethod()
+                .name());
+    }
+
+    public void testTimes() {
+        EventPipeline pipeline = new EventPipeline(1, 16);
+        pipeline.start();
+        ActivationBuilder builder = new ActivationBuilder("t", false);
+        EventRing ring = pipeline.ringFor(1);
+
+        Activation root = new Activation(null, "Foo", MAIN, 1);
+        entry(ring, builder, root, MAIN, 1);
+        entry(ring, builder, null, BAR, 2);
+        exit(ring, builder);
+        entry(ring, builder, null, BAZ, 2);
+        pipeline.shutdown();
+
+        ActivationList calls = root.getNestedActivations();
+        assertTrue(calls.get(0).isTimed());
+        assertTrue(calls.get(0).getTotalTime() >= 0);
+        assertTrue(calls.get(1).getEntryTime() >= calls.get(0).getExitTime());
+        assertFalse(calls.get(1).isTimed());
+        assertEquals(-1, calls.get(1).getTotalTime());
+        assertFalse(root.isTimed());
+    }
+
+    public void testSnapshot() {
+        EventPipeline pipeline = new EventPipeline(1, 16);
+        pipeline.start();
+        ActivationBuilder builder = new ActivationBuilder("t", false);
+        EventRing ring = pipeline.ringFor(1);
+        ActivationList rootActivations = new ActivationList();
+
+        Activation root1 = new Activation(null, "Foo", MAIN, 1);
+        rootActivations.add(root1);
+        entry(ring, builder, root1, MAIN, 1);
+        entry(ring, builder, null, BAR, 2);
+        exit(ring, builder);
+        exit(ring, builder);
+        Activation root2 = new Activation(null, "Foo", MAIN, 1);
+        rootActivations.add(root2);
+        entry(ring, builder, root2, MAIN, 1);
+        entry(ring, builder, null, BAZ, 2);
+        pipeline.shutdown();
+
+        ActivationList snapshot = rootActivations.snapshot();
+        assertEquals(1, snapshot.size());
+        assertSame(root1, snapshot.get(0));
+        assertFalse(root2.isComplete());
+
+        builder.threadEnd();
+        assertTrue(root2.isComplete());
+        assertEquals(2, rootActivations.snapshot().size());
+    }
+
+    public void testIdleWorker() throws InterruptedException {
+        EventPipeline pipeline = new EventPipeline(1, 16);
+        pipeline.start();
+        ActivationBuilder builder = new ActivationBuilder("t", false);
+        EventRing ring = pipeline.ringFor(1);
+
+        // Long enough for the worker to wait as long as it ever does.
+        Thread.sleep(200);
+        Activation root = new Activation(null, "Foo", MAIN, 1);
+        entry(ring, builder, root, MAIN, 1);
+        entry(ring, builder, null, BAR, 2);
+        pipeline.drain();
+        assertEquals(1, root.getNumCalls());
+        pipeline.shutdown();
+    }
+
+    private void entry(EventRing ring, ActivationBuilder builder,
+            Activation root, Method method, int depth) {
+        EventRing.Record record = ring.claim();
+        record.kind = EventRing.Record.ENTRY;
+        record.sink = builder;
+        record.className = "Foo";
+        record.method = method;
+        record.depth = depth;
+        record.root = root;
+        ring.publish();
+    }
+
+    private void exit(EventRing ring, ActivationBuilder builder) {
+        EventRing.Record record = ring.claim();
+        record.kind = EventRing.Record.EXIT;
+        record.sink = builder;
+        ring.publish();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.jdi.Bootstrap;
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.connect.Connector;
+import com.sun.jdi.connect.LaunchingConnector;
+
+import th.co.edge.jseq.scenarios.BoundaryScenario;
+import th.co.edge.jseq.scenarios.RecursiveDescentScenario;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class EventThreadTest extends TestCase {
+    private static final String RECURSIVE_DESCENT =
+            RecursiveDescentScenario.class.getName();
+    private static final String BOUNDARY = BoundaryScenario.class.getName();
+
+    private static final String SCENARIOS = "th.co.edge.jseq.scenarios.";
+    private static final String PARSER = SCENARIOS + "Parser";
+
+    public EventThreadTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(EventThreadTest.class);
+        return suite;
+    }
+
+    //
+    // Test methods
+    //
+
+    public void testRecursiveCatch() throws Exception {
+        assertRecovered(trace(RECURSIVE_DESCENT, RECURSIVE_DESCENT + ".test",
+                null, EventThread.SuspendPolicy.ALL));
+    }
+
+    public void testRecursiveCatchSuspendingThread() throws Exception {
+        assertRecovered(trace(RECURSIVE_DESCENT, RECURSIVE_DESCENT + ".test",
+                null, EventThread.SuspendPolicy.THREAD));
+    }
+
+    /**
+     * Checks that the calls made by one thread are traced while another
+     * thread is inside a boundary call, with the event requests covering
+     * all threads.
+     */
+    public void testBoundaryInOtherThread() throws Exception {
+        ActivationList rootActivations =
+                trace(BOUNDARY, null, SCENARIOS + "Database.query",
+                        EventThread.SuspendPolicy.ALL);
+        ActivationList tests =
+                rootActivations.find(new MethodFilter(BOUNDARY + ".test"));
+        ActivationList runs =
+                rootActivations.find(new MethodFilter(SCENARIOS
+                        + "Worker.run"));
+        assertEquals(1, tests.size());
+        assertEquals(1, runs.size());
+        Activation test = tests.get(0);
+        // The constructors of Worker and Database, query and close.
+        assertEquals(4, test.getNumCalls());
+        Activation query = test.getNestedActivations().get(2);
+        assertEquals("query", query.getMethod().name());
+        assertEquals(0, query.getNumCalls());
+        assertEquals("close", test.getNestedActivations().get(3).getMethod()
+                .name());
+        Activation run = runs.get(0);
+        assertEquals(3, run.getNumCalls());
+        for (Activation step : run.getNestedActivations()) {
+            assertEquals("step", step.getMethod().name());
+            assertEquals(0, step.getNumCalls());
+        }
+    }
+
+    /**
+     * Checks that the calls made after the syntax error was caught are
+     * nested under the outermost <code>expression</code> call, which caught
+     * it, and not under the innermost one, which did not.
+     */
+    private void assertRecovered(ActivationList rootActivations) {
+        assertEquals(1, rootActivations.size());
+        Activation test = rootActivations.get(0);
+        assertEquals(RECURSIVE_DESCENT, test.getClassName());
+        assertEquals(3, test.getNumCalls());
+        Activation expression = test.getNestedActivations().get(1);
+        assertEquals("expression", expression.getMethod().name());
+        assertEquals(2, expression.getNumCalls());
+        Activation recover = expression.getNestedActivations().get(1);
+        assertEquals(PARSER, recover.getClassName());
+        assertEquals("recover", recover.getMethod().name());
+        assertEquals("done", test.getNestedActivations().get(2).getMethod()
+                .name());
+        Activation innermost = expression;
+        for (int i = 0; i < 2; i++) {
+            Activation primary =
+                    innermost.getNestedActivations().get(0)
+                            .getNestedActivations().get(i);
+            assertEquals("primary", primary.getMethod().name());
+            innermost = primary.getNestedActivations().get(0);
+            assertEquals("expression", innermost.getMethod().name());
+        }
+        Activation sum = innermost.getNestedActivations().get(0);
+        assertEquals(2, sum.getNumCalls());
+        assertEquals(0, sum.getNestedActivations().get(1).getNumCalls());
+    }
+
+    /**
+     * Traces a scenario in a new VM.
+     *
+     * @param scenario
+     *            the name of the scenario class to run
+     * @param startMethod
+     *            the method where tracing should start, or <code>null</code>
+     *            to trace the whole program
+     * @param boundaryMethod
+     *            a boundary method, or <code>null</code> if there is none
+     * @param suspendPolicy
+     *            the suspend policy of the event requests
+     */
+    private ActivationList trace(String scenario, String startMethod,
+            String boundaryMethod, EventThread.SuspendPolicy suspendPolicy)
+            throws Exception {
+        VirtualMachine vm = launch(scenario);
+        Process process = vm.process();
+        Thread errThread =
+                new StreamRedirectThread("error reader", process
+                        .getErrorStream(), System.err);
+        Thread outThread =
+                new StreamRedirectThread("output reader", process
+                        .getInputStream(), System.out);
+        errThread.start();
+        outThread.start();
+        ActivationList rootActivations = new ActivationList();
+        List<String> includes = Collections.singletonList(SCENARIOS + "*");
+        List<String> excludes = Collections.emptyList();
+        List<String> boundaryMethods =
+                (boundaryMethod == null ? excludes : Collections
+                        .singletonList(boundaryMethod));
+        EventThread eventThread =
+                new EventThread(vm, rootActivations, includes, excludes,
+                        boundaryMethods, false, false);
+        eventThread.setSuspendPolicy(suspendPolicy);
+        eventThread.setEventRequests(startMethod);
+        eventThread.start();
+        vm.resume();
+        eventThread.join();
+        errThread.join();
+        outThread.join();
+        return rootActivations;
+    }
+
+    private static VirtualMachine launch(String mainClass) throws Exception {
+        LaunchingConnector connector =
+                Bootstrap.virtualMachineManager().defaultConnector();
+        Map<String, Connector.Argument> arguments =
+                connector.defaultArguments();
+        arguments.get("main").setValue(mainClass);
+        arguments.get("options").setValue(
+                "-classpath " + System.getProperty("java.class.path"));
+        return connector.launch(arguments);
+    }
+}
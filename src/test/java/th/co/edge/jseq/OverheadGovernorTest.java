@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class OverheadGovernorTest extends TestCase {
+    public OverheadGovernorTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(OverheadGovernorTest.class);
+        return suite;
+    }
+
+    //
+    // Test methods
+    //
+
+    public void testDisabled() {
+        OverheadGovernor governor = new OverheadGovernor(0, 0);
+        assertFalse(governor.isEnabled());
+        assertFalse(governor.eventSetHandled(1, 1000));
+        assertEquals(OverheadGovernor.Level.TRACE, governor.getLevel());
+    }
+
+    public void testDegrade() {
+        OverheadGovernor governor = new OverheadGovernor(100, 0);
+        assertTrue(governor.isEnabled());
+        for (int i = 0; i < 10; i++) {
+            governor.methodEntered("Noisy");
+        }
+        governor.methodEntered("Quiet");
+        List<String> excludedClasses = new ArrayList<String>();
+        String note = governor.degrade(excludedClasses);
+        assertEquals(OverheadGovernor.Level.EXCLUDE, governor.getLevel());
+        assertEquals(1, excludedClasses.size());
+        assertEquals("Noisy", excludedClasses.get(0));
+        assertTrue(note, note.endsWith("excluded [Noisy]"));
+
+        // No method entries counted in the new window, so nothing to exclude.
+        governor.degrade(excludedClasses);
+        assertEquals(OverheadGovernor.Level.COUNT, governor.getLevel());
+        governor.degrade(excludedClasses);
+        assertEquals(OverheadGovernor.Level.PAUSED, governor.getLevel());
+        assertEquals(1, excludedClasses.size());
+    }
+
+    public void testRateBudgetAtCount() {
+        OverheadGovernor governor = new OverheadGovernor(100, 0);
+        List<String> excludedClasses = new ArrayList<String>();
+        governor.degrade(excludedClasses);
+        assertEquals(OverheadGovernor.Level.COUNT, governor.getLevel());
+
+        // Counting calls does not suspend the traced VM, so the event rate
+        // alone does not pause tracing.
+        long now = System.nanoTime() + 2000000000L;
+        assertFalse(governor.eventSetHandled(1000, 0, now));
+        assertFalse(governor.eventSetHandled(1000, 0, now + 2000000000L));
+        assertEquals(OverheadGovernor.Level.COUNT, governor.getLevel());
+    }
+
+    public void testSuspendedBudgetAtCount() {
+        OverheadGovernor governor = new OverheadGovernor(100, 10);
+        List<String> excludedClasses = new ArrayList<String>();
+        governor.degrade(excludedClasses);
+        assertEquals(OverheadGovernor.Level.COUNT, governor.getLevel());
+
+        long now = System.nanoTime() + 2000000000L;
+        assertFalse(governor.eventSetHandled(1000, 0, now));
+        assertTrue(governor.eventSetHandled(1, 1500000000L,
+                now + 2000000000L));
+        governor.degrade(excludedClasses);
+        assertEquals(OverheadGovernor.Level.PAUSED, governor.getLevel());
+    }
+
+    public void testCallCountsNote() {
+        OverheadGovernor governor = new OverheadGovernor(100, 0);
+        assertNull(governor.getCallCountsNote(10));
+        DetachedMethod bar = new DetachedMethod("Foo", "bar", "()V", 0x0001);
+        DetachedMethod baz = new DetachedMethod("Foo", "baz", "()V", 0x0001);
+        governor.callCounted(bar);
+        governor.callCounted(baz);
+        governor.callCounted(baz);
+        assertEquals("Calls counted while tracing was degraded: Foo.baz 2, ...",
+                governor.getCallCountsNote(1));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class SymbolTableTest extends TestCase {
+    public SymbolTableTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(SymbolTableTest.class);
+        return suite;
+    }
+
+    //
+    // Test methods
+    //
+
+    public void testInternMethod() {
+        SymbolTable symbols = new SymbolTable();
+        DetachedMethod foo =
+                symbols.intern(new DetachedMethod("Foo", "foo", "()V", 0));
+        DetachedMethod bar =
+                symbols.intern(new DetachedMethod("Foo", "bar", "()V", 0));
+        assertSame(foo, symbols.intern(new DetachedMethod("Foo", "foo", "()V",
+                0)));
+        assertNotSame(foo, bar);
+        assertEquals(0, symbols.getMethodId(foo));
+        assertEquals(1, symbols.getMethodId(bar));
+        assertSame(bar, symbols.getMethod(1));
+        assertEquals(2, symbols.getNumMethods());
+    }
+
+    public void testInternClassName() {
+        SymbolTable symbols = new SymbolTable();
+        String foo = symbols.intern(new String("Foo"));
+        assertSame(foo, symbols.intern(new String("Foo")));
+        assertEquals(1, symbols.getClassId("Bar"));
+        assertEquals("Bar", symbols.getClassName(1));
+        assertEquals(2, symbols.getNumClassNames());
+    }
+
+    public void testTypeNames() {
+        DetachedMethod method =
+                new DetachedMethod("Foo", "foo",
+                        "(I[[Ljava/lang/String;J)[Z", 0);
+        assertEquals(Arrays.asList("int", "java.lang.String[][]", "long"),
+                method.argumentTypeNames());
+        assertEquals("boolean[]", method.returnTypeName());
+    }
+
+    public void testSerializeActivations() throws Exception {
+        SymbolTable symbols = new SymbolTable();
+        DetachedMethod main =
+                symbols.intern(new DetachedMethod("Foo", "main",
+                        "([Ljava/lang/String;)V", 0x0009));
+        DetachedMethod bar =
+                symbols.intern(new DetachedMethod("Foo", "bar", "()V", 0));
+        Activation root =
+                new Activation(null, symbols.intern("Foo"), main, 1);
+        new Activation(root, symbols.intern("Foo"), bar, 2);
+        ActivationList activations = new ActivationList();
+        activations.add(root);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(activations);
+        out.close();
+        ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes
+                        .toByteArray()));
+        ActivationList read = (ActivationList) in.readObject();
+        in.close();
+
+        assertEquals(activations.toString(), read.toString());
+        Activation readRoot = read.get(0);
+        assertEquals(main, readRoot.getMethod());
+        assertEquals(bar, readRoot.getNestedActivations().get(0).getMethod());
+    }
+}
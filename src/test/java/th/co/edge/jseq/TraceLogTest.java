@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.sun.jdi.Method;
+
+public class TraceLogTest extends TestCase {
+    private static final Method MAIN =
+            new DetachedMethod("Foo", "main", "([Ljava/lang/String;)V", 0x0009);
+    private static final Method BAR =
+            new DetachedMethod("Foo", "bar", "()V", 0x0001);
+    private static final Method BAZ =
+            new DetachedMethod("Baz", "baz", "()V", 0x0001);
+
+    private File file;
+
+    public TraceLogTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(TraceLogTest.class);
+        return suite;
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("jseq", ".log");
+    }
+
+    @Override
+    protected void tearDown() {
+        file.delete();
+    }
+
+    //
+    // Test methods
+    //
+
+    public void testReplay() throws IOException {
+        TraceLogWriter writer = new TraceLogWriter(file);
+        TraceSink thread1 = writer.threadLog(1);
+        TraceSink thread2 = writer.threadLog(2);
+        thread1.entry("Foo", MAIN, 1, null, 100);
+        thread2.entry("Foo", MAIN, 1, null, -50);
+        thread1.entry("Foo", BAR, 2, null, 110);
+        thread1.entry("SubBaz", BAZ, 3, null, 120);
+        thread1.unwind(1, 150);
+        thread2.exit(-20);
+        writer.flushReturned();
+        thread1.entry("Foo", BAR, 2, null, 160);
+        thread1.exit(170);
+        writer.addNote("a note");
+        thread1.exit(200);
+        thread1.threadEnd();
+        writer.close();
+
+        assertTrue(TraceLogReader.isTraceLog(file));
+        assertEquals(file.length(), writer.getLength());
+        ActivationList list = TraceLogReader.read(file);
+        assertEquals(2, list.size());
+        assertEquals("a note", list.getNotes().get(0));
+
+        // Thread 2 returned from its root call before the returned calls
+        // were flushed, so it was logged first.
+        assertEquals(30, list.get(0).getTotalTime());
+        Activation root = list.get(1);
+        assertEquals(100, root.getTotalTime());
+        assertEquals(2, root.getNumCalls());
+        Activation firstBar = root.getNestedActivations().get(0);
+        assertEquals(40, firstBar.getTotalTime());
+        Activation baz = firstBar.getNestedActivations().get(0);
+        assertEquals("SubBaz", baz.getClassName());
+        assertEquals("Baz", ((DetachedMethod) baz.getMethod())
+                .getDeclaringTypeName());
+        assertEquals(3, baz.getFrameCount());
+    }
+
+    public void testStartFilter() throws IOException {
+        TraceLogWriter writer = new TraceLogWriter(file);
+        TraceSink thread = writer.threadLog(1);
+        thread.entry("Foo", MAIN, 1, null, 0);
+        // Enough calls to fill several buffers.
+        for (int i = 0; i < 100000; i++) {
+            thread.entry("Foo", BAR, 2, null, 10 * i);
+            if (i % 1000 == 0) {
+                thread.entry("Baz", BAZ, 3, null, 10 * i + 1);
+                thread.exit(10 * i + 2);
+            }
+            thread.exit(10 * i + 5);
+        }
+        thread.exit(1000000);
+        writer.close();
+
+        ActivationList whole = TraceLogReader.read(file);
+        assertEquals(1, whole.size());
+        assertEquals(100000, whole.get(0).getNumCalls());
+
+        ActivationList bazCalls =
+                TraceLogReader.read(file, new MethodFilter("Baz.baz"));
+        assertEquals(100, bazCalls.size());
+        assertEquals(1, bazCalls.get(0).getTotalTime());
+        assertEquals(1, bazCalls.get(0).getFrameCount());
+        assertEquals(whole.find(new MethodFilter("Baz.baz")), bazCalls);
+    }
+
+    public void testUnfinishedChunk() throws IOException {
+        TraceLogWriter writer = new TraceLogWriter(file);
+        TraceSink thread = writer.threadLog(1);
+        thread.entry("Foo", MAIN, 1, null, 0);
+        thread.exit(10);
+        writer.close();
+
+        // A chunk of records whose header was committed, but not the
+        // records, as when an older writer was stopped between the two.
+        RandomAccessFile log = new RandomAccessFile(file, "rw");
+        long end = log.length();
+        log.seek(end);
+        log.write(new byte[] { TraceLogWriter.THREAD_RECORDS, 1, 100 });
+        log.seek(8);
+        log.writeLong(end + 3);
+        log.close();
+
+        ActivationList list = TraceLogReader.read(file);
+        assertEquals(1, list.size());
+        assertEquals(10, list.get(0).getTotalTime());
+    }
+
+    public void testFlushReturned() throws IOException {
+        TraceLogWriter writer = new TraceLogWriter(file);
+        TraceSink thread = writer.threadLog(1);
+        thread.entry("Foo", MAIN, 1, null, 0);
+        thread.exit(10);
+        thread.entry("Foo", MAIN, 1, null, 20);
+        thread.entry("Foo", BAR, 2, null, 30);
+        // Returning from a root call does not append a chunk by itself.
+        assertEquals(0, TraceLogReader.read(file).size());
+
+        // Only the root call that has returned is appended.
+        writer.flushReturned();
+        ActivationList list = TraceLogReader.read(file);
+        assertEquals(1, list.size());
+        assertEquals(10, list.get(0).getTotalTime());
+        writer.flushReturned();
+        assertEquals(1, TraceLogReader.read(file).size());
+
+        thread.exit(40);
+        thread.exit(50);
+        writer.close();
+        list = TraceLogReader.read(file);
+        assertEquals(2, list.size());
+        assertEquals(30, list.get(1).getTotalTime());
+        assertEquals(1, list.get(1).getNumCalls());
+    }
+
+    public void testFlush() throws IOException {
+        TraceLogWriter writer = new TraceLogWriter(file);
+        TraceSink thread = writer.threadLog(1);
+        thread.entry("Foo", MAIN, 1, null, 0);
+        thread.entry("Foo", BAR, 2, null, 10);
+        thread.exit(20);
+        thread.entry("Baz", BAZ, 2, null, 30);
+        assertEquals(0, TraceLogReader.read(file).size());
+
+        // The calls in progress are read, as when JSeq is stopped.
+        writer.flush();
+        ActivationList list = TraceLogReader.read(file);
+        assertEquals(1, list.size());
+        assertEquals(2, list.get(0).getNumCalls());
+
+        thread.exit(40);
+        thread.exit(50);
+        writer.close();
+        list = TraceLogReader.read(file);
+        assertEquals(1, list.size());
+        assertEquals(50, list.get(0).getTotalTime());
+        assertEquals(2, list.get(0).getNumCalls());
+    }
+}
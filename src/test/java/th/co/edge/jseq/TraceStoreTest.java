@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class TraceStoreTest extends TestCase {
+    private SymbolTable symbols;
+    private TraceStore store;
+    private int main;
+    private int bar;
+    private int foo;
+
+    public TraceStoreTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(TraceStoreTest.class);
+        return suite;
+    }
+
+    @Override
+    protected void setUp() {
+        symbols = new SymbolTable();
+        store = new TraceStore(symbols);
+        main =
+                symbols.getMethodId(new DetachedMethod("Foo", "main",
+                        "([Ljava/lang/String;)V", 0x0009));
+        bar = symbols.getMethodId(new DetachedMethod("Foo", "bar", "()V", 0));
+        foo = symbols.getClassId("Foo");
+    }
+
+    //
+    // Test methods
+    //
+
+    public void testRootActivations() {
+        int root = store.add(TraceStore.NONE, main, foo, 100);
+        int first = store.add(root, bar, foo, 110);
+        store.setExitTime(first, 120);
+        store.add(first, bar, foo, 115);
+        int second = store.add(root, bar, foo, 130);
+        store.setExitTime(second, 150);
+        store.setExitTime(root, 200);
+        store.add(TraceStore.NONE, bar, foo, 300);
+        assertEquals(5, store.size());
+        assertEquals(2, store.getNumRoots());
+        assertEquals(root, store.getParent(second));
+
+        ActivationList roots = store.getRootActivations();
+        assertEquals(2, roots.size());
+        assertEquals("[Foo.main\n" + "    Foo.bar\n" + "        Foo.bar\n"
+                + "    Foo.bar\n" + ", Foo.bar\n" + "]", roots.toString());
+        Activation mainActivation = roots.get(0);
+        assertNull(mainActivation.getParent());
+        assertEquals(1, mainActivation.getFrameCount());
+        assertEquals(100, mainActivation.getTotalTime());
+        assertEquals(70, mainActivation.getSelfTime());
+        ActivationList nested = mainActivation.getNestedActivations();
+        assertEquals(2, nested.size());
+        Activation secondActivation = nested.get(1);
+        assertSame(mainActivation, secondActivation.getParent());
+        assertEquals(2, secondActivation.getFrameCount());
+        assertEquals(130, secondActivation.getEntryTime());
+        assertEquals(20, secondActivation.getTotalTime());
+        Activation innerActivation =
+                nested.get(0).getNestedActivations().get(0);
+        assertEquals(3, innerActivation.getFrameCount());
+        assertFalse(innerActivation.isTimed());
+        assertEquals(0, roots.get(1).getNumCalls());
+    }
+
+    public void testSameAsActivations() {
+        int root = store.add(TraceStore.NONE, main, foo, 0);
+        for (int i = 0; i < 3; i++) {
+            store.add(root, bar, foo, i);
+        }
+        ActivationList expected = new ActivationList();
+        Activation mainActivation =
+                new Activation(null, "Foo", symbols.getMethod(main), 1);
+        for (int i = 0; i < 3; i++) {
+            new Activation(mainActivation, "Foo", symbols.getMethod(bar), 2);
+        }
+        expected.add(mainActivation);
+        assertEquals(expected, store.getRootActivations());
+        assertEquals(expected.collapseRepetitions(), store
+                .getRootActivations().collapseRepetitions());
+        assertEquals(3, store.getRootActivations().collapseRepetitions().get(0)
+                .getNestedActivations().get(0).getNumRepetitions());
+    }
+
+    public void testReadOnly() {
+        int root = store.add(TraceStore.NONE, main, foo, 0);
+        store.add(root, bar, foo, 1);
+        try {
+            store.getRootActivations().remove(0);
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+        try {
+            store.getRootActivations().get(0).getNestedActivations().add(
+                    new Activation(null, "Foo", symbols.getMethod(bar), -1));
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+
+    public void testSerialize() throws Exception {
+        int root = store.add(TraceStore.NONE, main, foo, 0);
+        store.setExitTime(store.add(root, bar, foo, 1), 2);
+        ActivationList roots = store.getRootActivations();
+        roots.addNote("a note");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(roots);
+        out.close();
+        ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes
+                        .toByteArray()));
+        ActivationList read = (ActivationList) in.readObject();
+        in.close();
+
+        assertEquals(roots, read);
+        assertEquals(roots.getNotes(), read.getNotes());
+        assertEquals(1, read.get(0).getNestedActivations().get(0)
+                .getTotalTime());
+        read.remove(0);
+        assertEquals(0, read.size());
+    }
+}
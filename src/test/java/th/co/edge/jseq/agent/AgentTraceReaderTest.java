@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import th.co.edge.jseq.Activation;
+import th.co.edge.jseq.ActivationList;
+
+public class AgentTraceReaderTest extends TestCase {
+    public AgentTraceReaderTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(AgentTraceReaderTest.class);
+        return suite;
+    }
+
+    @Override
+    protected void setUp() {
+        Probe.reset();
+    }
+
+    //
+    // Test methods
+    //
+
+    public void testRead() throws Exception {
+        int main = Probe.registerMethod("Foo", "main", "([Ljava/lang/String;)V",
+                0x0009);
+        int init = Probe.registerMethod("Foo", "<init>", "()V", 0x0001);
+        int bar = Probe.registerMethod("Foo", "bar", "()V", 0x0001);
+        Probe.enter(main);
+        Probe.enter(init);
+        Probe.exit(init);
+        Probe.enter(bar, "a string");
+        Probe.exit(bar);
+        Probe.exit(main);
+
+        ActivationList list = writeAndRead();
+        assertEquals(1, list.size());
+        Activation root = list.get(0);
+        assertEquals("Foo", root.getClassName());
+        assertEquals("main", root.getMethod().name());
+        assertEquals(2, root.getNumCalls());
+        assertTrue(root.getNestedActivations().get(0).getMethod()
+                .isConstructor());
+        Activation barCall = root.getNestedActivations().get(1);
+        assertEquals("java.lang.String", barCall.getClassName());
+        assertEquals("bar", barCall.getMethod().name());
+    }
+
+    public void testMissingExit() throws Exception {
+        int main = Probe.registerMethod("Foo", "main", "()V", 0x0009);
+        int init = Probe.registerMethod("Bar", "<init>", "()V", 0x0001);
+        int baz = Probe.registerMethod("Foo", "baz", "()V", 0x0009);
+        Probe.enter(main);
+        Probe.enter(init);
+        // The constructor throws, so there is no exit event for it.
+        Probe.exit(main);
+        Probe.enter(baz);
+        Probe.exit(baz);
+
+        ActivationList list = writeAndRead();
+        assertEquals(2, list.size());
+        assertEquals(1, list.get(0).getNumCalls());
+        assertEquals("baz", list.get(1).getMethod().name());
+    }
+
+    public void testFullBuffers() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Probe.open(out);
+        int main = Probe.registerMethod("Foo", "main", "()V", 0x0009);
+        Probe.enter(main);
+        int numCalls = Probe.BUFFER_CAPACITY;
+        for (int i = 0; i < numCalls; i++) {
+            // Methods registered after the first chunk was written.
+            int bar = Probe.registerMethod("Foo", "bar" + i, "()V", 0x0001);
+            Probe.enter(bar, "a string");
+            Probe.exit(bar);
+        }
+        Probe.exit(main);
+        Probe.close();
+        out.close();
+
+        ActivationList list =
+                AgentTraceReader.read(new ByteArrayInputStream(bytes
+                        .toByteArray()));
+        assertEquals(1, list.size());
+        Activation root = list.get(0);
+        assertEquals(numCalls, root.getNumCalls());
+        Activation lastCall = root.getNestedActivations().get(numCalls - 1);
+        assertEquals("bar" + (numCalls - 1), lastCall.getMethod().name());
+        assertEquals("java.lang.String", lastCall.getClassName());
+    }
+
+    public void testDeadThreads() throws Exception {
+        final int run = Probe.registerMethod("Foo", "run", "()V", 0x0001);
+        Runnable runnable = new Runnable() {
+            public void run() {
+                Probe.enter(run, this);
+                Probe.exit(run);
+            }
+        };
+        int numBuffers = Probe.getNumThreadBuffers();
+        for (int i = 0; i < 3; i++) {
+            Thread thread = new Thread(runnable);
+            thread.start();
+            thread.join();
+        }
+        // The buffer of a dead thread is released when the next thread
+        // starts recording.
+        assertEquals(numBuffers + 1, Probe.getNumThreadBuffers());
+    }
+
+    //
+    // Utility methods
+    //
+
+    private ActivationList writeAndRead() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Probe.open(out);
+        Probe.close();
+        out.close();
+        return AgentTraceReader.read(new ByteArrayInputStream(bytes
+                .toByteArray()));
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import th.co.edge.jseq.Activation;
+import th.co.edge.jseq.ActivationList;
+import th.co.edge.jseq.scenarios.ConstructorExceptionScenario;
+
+public class ProbeTransformerTest extends TestCase {
+    private static final String SCENARIOS =
+            ConstructorExceptionScenario.class.getPackage().getName() + ".";
+
+    public ProbeTransformerTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(ProbeTransformerTest.class);
+        return suite;
+    }
+
+    @Override
+    protected void setUp() {
+        Probe.reset();
+    }
+
+    //
+    // Test methods
+    //
+
+    public void testConstructorException() throws Exception {
+        runWoven(ConstructorExceptionScenario.class.getName());
+
+        ActivationList list = writeAndRead();
+        assertEquals(1, list.size());
+        Activation main = list.get(0);
+        assertEquals("main", main.getMethod().name());
+        assertEquals(2, main.getNumCalls());
+        Activation test = main.getNestedActivations().get(1);
+        assertEquals("test", test.getMethod().name());
+        // Both constructors, the three calls to withdraw that throw, and
+        // close, all made directly by test.
+        assertEquals(6, test.getNumCalls());
+        String[] names =
+                { "<init>", "<init>", "withdraw", "withdraw", "withdraw",
+                        "close" };
+        for (int i = 0; i < names.length; i++) {
+            Activation call = test.getNestedActivations().get(i);
+            assertEquals(SCENARIOS + "Account", call.getClassName());
+            assertEquals(names[i], call.getMethod().name());
+            assertEquals(0, call.getNumCalls());
+        }
+    }
+
+    //
+    // Utility methods
+    //
+
+    /**
+     * Loads the given class, and the other classes in its package, woven by
+     * a <code>ProbeTransformer</code>, and runs its main method.
+     */
+    private void runWoven(String className) throws Exception {
+        List<String> includes = Collections.singletonList(SCENARIOS + "*");
+        List<String> excludes = Collections.emptyList();
+        ClassLoader loader =
+                new WeavingClassLoader(new ProbeTransformer(includes,
+                        excludes));
+        Class<?> c = loader.loadClass(className);
+        c.getMethod("main", String[].class).invoke(null,
+                (Object) new String[0]);
+    }
+
+    private ActivationList writeAndRead() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Probe.open(out);
+        Probe.close();
+        out.close();
+        return AgentTraceReader.read(new ByteArrayInputStream(bytes
+                .toByteArray()));
+    }
+
+    /**
+     * A class loader that defines the scenario classes itself, passing them
+     * through a <code>ProbeTransformer</code> as the agent would, and leaves
+     * all other classes to its parent.
+     */
+    private static class WeavingClassLoader extends ClassLoader {
+        private final ProbeTransformer transformer;
+
+        public WeavingClassLoader(ProbeTransformer transformer) {
+            super(ProbeTransformerTest.class.getClassLoader());
+            this.transformer = transformer;
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name,
+                boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith(SCENARIOS)) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> c = findLoadedClass(name);
+            if (c == null) {
+                String internalName = name.replace('.', '/');
+                byte[] classfile = readClassFile(internalName + ".class");
+                byte[] woven =
+                        transformer.transform(this, internalName, null, null,
+                                classfile);
+                if (woven == null) {
+                    woven = classfile;
+                }
+                c = defineClass(name, woven, 0, woven.length);
+            }
+            if (resolve) {
+                resolveClass(c);
+            }
+            return c;
+        }
+
+        private byte[] readClassFile(String resourceName)
+                throws ClassNotFoundException {
+            InputStream in = getParent().getResourceAsStream(resourceName);
+            if (in == null) {
+                throw new ClassNotFoundException(resourceName);
+            }
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    bytes.write(buffer, 0, n);
+                }
+                in.close();
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new ClassNotFoundException(resourceName, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq.jfr;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import th.co.edge.jseq.Activation;
+import th.co.edge.jseq.ActivationList;
+import th.co.edge.jseq.DetachedMethod;
+import th.co.edge.jseq.jfr.JfrTraceReader.MethodCall;
+
+public class JfrTraceReaderTest extends TestCase {
+    private DetachedMethod main = new DetachedMethod("Foo", "main", "()V", 9);
+    private DetachedMethod bar = new DetachedMethod("Bar", "bar", "()V", 1);
+    private DetachedMethod baz = new DetachedMethod("Baz", "baz", "()V", 1);
+
+    public JfrTraceReaderTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(JfrTraceReaderTest.class);
+        return suite;
+    }
+
+    //
+    // Test methods
+    //
+
+    public void testBuildActivations() {
+        // Events are written on method exit, so callees come first.
+        List<MethodCall> calls = new ArrayList<MethodCall>();
+        calls.add(new MethodCall(baz, 20, 30));
+        calls.add(new MethodCall(bar, 10, 40));
+        calls.add(new MethodCall(bar, 50, 60));
+        calls.add(new MethodCall(main, 0, 100));
+        calls.add(new MethodCall(main, 200, 300));
+
+        ActivationList list = JfrTraceReader.buildActivations(calls);
+        assertEquals(2, list.size());
+        Activation root = list.get(0);
+        assertEquals("Foo", root.getClassName());
+        assertEquals(2, root.getNumCalls());
+        Activation firstBar = root.getNestedActivations().get(0);
+        assertEquals("bar", firstBar.getMethod().name());
+        assertEquals(1, firstBar.getNumCalls());
+        assertEquals("baz", firstBar.getNestedActivations().get(0)
+                .getMethod().name());
+        assertEquals(0, root.getNestedActivations().get(1).getNumCalls());
+        assertEquals(0, list.get(1).getNumCalls());
+
+        assertEquals(100, root.getTotalTime());
+        assertEquals(60, root.getSelfTime());
+        assertEquals(20, firstBar.getSelfTime());
+    }
+
+    public void testEqualStartTimes() {
+        List<MethodCall> calls = new ArrayList<MethodCall>();
+        calls.add(new MethodCall(bar, 0, 10));
+        calls.add(new MethodCall(main, 0, 20));
+
+        ActivationList list = JfrTraceReader.buildActivations(calls);
+        assertEquals(1, list.size());
+        assertEquals("main", list.get(0).getMethod().name());
+        assertEquals(1, list.get(0).getNumCalls());
+    }
+
+    /**
+     * Records the calls made by <code>Traced</code> with JFR method tracing,
+     * and checks the activations read from the recording. Method tracing was
+     * added in JDK 25, so on older JDKs there is nothing to record, and the
+     * test does nothing.
+     */
+    public void testRecording() throws Exception {
+        if (!isMethodTraceSupported()) {
+            return;
+        }
+        File file = File.createTempFile("jseq", ".jfr");
+        try {
+            Recording recording = new Recording();
+            try {
+                recording.enable(JfrTraceReader.METHOD_TRACE_EVENT).with(
+                        "filter", Traced.class.getName()).withThreshold(
+                        Duration.ZERO);
+                recording.start();
+                Traced.run();
+                recording.stop();
+                recording.dump(file.toPath());
+            } finally {
+                recording.close();
+            }
+
+            assertTrue(JfrTraceReader.isRecording(file));
+            ActivationList list = JfrTraceReader.read(file);
+            assertEquals(1, list.size());
+            Activation root = list.get(0);
+            assertEquals(Traced.class.getName(), root.getClassName());
+            assertEquals("run", root.getMethod().name());
+            assertEquals(2, root.getNumCalls());
+            Activation firstBar = root.getNestedActivations().get(0);
+            assertEquals("bar", firstBar.getMethod().name());
+            assertEquals(1, firstBar.getNumCalls());
+            assertEquals("baz", firstBar.getNestedActivations().get(0)
+                    .getMethod().name());
+            Activation secondBar = root.getNestedActivations().get(1);
+            assertEquals("bar", secondBar.getMethod().name());
+            assertEquals(0, secondBar.getNumCalls());
+        } finally {
+            file.delete();
+        }
+    }
+
+    //
+    // Utility methods
+    //
+
+    private static boolean isMethodTraceSupported() {
+        if (!FlightRecorder.isAvailable()) {
+            return false;
+        }
+        for (EventType type : FlightRecorder.getFlightRecorder()
+                .getEventTypes()) {
+            if (type.getName().equals(JfrTraceReader.METHOD_TRACE_EVENT)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //
+    // Nested top-level classes
+    //
+
+    /**
+     * The class traced by <code>testRecording</code>.
+     */
+    private static class Traced {
+        static void run() {
+            bar(true);
+            bar(false);
+        }
+
+        static void bar(boolean callBaz) {
+            if (callBaz) {
+                baz();
+            }
+        }
+
+        static void baz() {
+        }
+    }
+}
@@ -35,6 +35,9 @@ public class AllScenarios extends TestCase {
         TestSuite suite = new TestSuite();
 
         suite.addTest(HelloWorldScenario.suite());
+        suite.addTest(RecursiveDescentScenario.suite());
+        suite.addTest(ConstructorExceptionScenario.suite());
+        suite.addTest(BoundaryScenario.suite());
 
         return suite;
     }
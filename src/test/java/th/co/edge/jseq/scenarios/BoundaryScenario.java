@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq.scenarios;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Calls a boundary method, <code>Database.query</code>, which waits for
+ * another thread that keeps calling traced methods while the first thread is
+ * inside the boundary call.
+ */
+public class BoundaryScenario extends TestCase {
+    public BoundaryScenario(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(BoundaryScenario.class);
+        return suite;
+    }
+
+    public static void main(String[] args) {
+        BoundaryScenario scenario = new BoundaryScenario("Boundary");
+        scenario.test();
+    }
+
+    public void test() {
+        Thread thread = new Thread(new Worker());
+        Database database = new Database();
+        database.query(thread);
+        database.close();
+    }
+}
+
+class Database {
+    public void query(Thread worker) {
+        parse();
+        worker.start();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+        }
+    }
+
+    public void close() {
+    }
+
+    private void parse() {
+    }
+}
+
+class Worker implements Runnable {
+    public void run() {
+        for (int i = 0; i < 3; i++) {
+            step();
+        }
+    }
+
+    private void step() {
+    }
+}
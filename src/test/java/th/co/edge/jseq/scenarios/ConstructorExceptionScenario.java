@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq.scenarios;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Creates an account with a constructor that throws, and then keeps using
+ * the class, including calls that throw and are caught by the caller.
+ */
+public class ConstructorExceptionScenario extends TestCase {
+    public ConstructorExceptionScenario(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(ConstructorExceptionScenario.class);
+        return suite;
+    }
+
+    public static void main(String[] args) {
+        ConstructorExceptionScenario scenario =
+                new ConstructorExceptionScenario("ConstructorException");
+        scenario.test();
+    }
+
+    public void test() {
+        try {
+            new Account(-1);
+        } catch (IllegalArgumentException e) {
+        }
+        Account account = new Account(100);
+        for (int i = 0; i < 3; i++) {
+            try {
+                account.withdraw(200);
+            } catch (IllegalStateException e) {
+            }
+        }
+        account.close();
+    }
+}
+
+class Account {
+    private int balance;
+
+    public Account(int balance) {
+        if (balance < 0) {
+            throw new IllegalArgumentException("Negative balance");
+        }
+        this.balance = balance;
+    }
+
+    public void withdraw(int amount) {
+        if (amount > balance) {
+            throw new IllegalStateException("Insufficient funds");
+        }
+        balance -= amount;
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq.scenarios;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * A recursive-descent parser that throws on a syntax error deep inside
+ * nested parentheses, and recovers in the outermost call of the recursive
+ * method that catches the error.
+ */
+public class RecursiveDescentScenario extends TestCase {
+    public RecursiveDescentScenario(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(RecursiveDescentScenario.class);
+        return suite;
+    }
+
+    public static void main(String[] args) {
+        RecursiveDescentScenario scenario =
+                new RecursiveDescentScenario("RecursiveDescent");
+        scenario.test();
+    }
+
+    public void test() {
+        Parser parser = new Parser("(1+(2+)");
+        parser.expression(true);
+        parser.done();
+    }
+}
+
+class Parser {
+    private String input;
+    private int pos = 0;
+
+    public Parser(String input) {
+        this.input = input;
+    }
+
+    public int expression(boolean recovering) {
+        if (!recovering) {
+            return sum();
+        }
+        try {
+            return sum();
+        } catch (IllegalArgumentException e) {
+            return recover();
+        }
+    }
+
+    public void done() {
+    }
+
+    private int sum() {
+        int value = primary();
+        while (pos < input.length() && input.charAt(pos) == '+') {
+            pos++;
+            value += primary();
+        }
+        return value;
+    }
+
+    private int primary() {
+        if (pos >= input.length()) {
+            throw new IllegalArgumentException("Unexpected end of input");
+        }
+        char c = input.charAt(pos++);
+        if (c == '(') {
+            int value = expression(false);
+            pos++;
+            return value;
+        } else if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        throw new IllegalArgumentException("Unexpected character " + c);
+    }
+
+    private int recover() {
+        pos = input.length();
+        return 0;
+    }
+}
@@ -22,12 +22,15 @@
 
 package th.co.edge.jseq.sdedit;
 
+import java.io.IOException;
 import java.io.StringWriter;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import th.co.edge.jseq.Activation;
 import th.co.edge.jseq.ActivationList;
 import th.co.edge.jseq.ActivationListTest;
+import th.co.edge.jseq.TestMethodImpl;
 import junit.framework.TestCase;
 
 public class SdeditTextDiagramTest extends TestCase {
@@ -47,6 +50,76 @@ public class SdeditTextDiagramTest extends TestCase {
         assertEquals(1, numOccurrences("\\.baz", sdedit));
     }
     
+    public void testWriteMultiVMDiagram() throws Exception {
+        ActivationList rootActivations = new ActivationList();
+        rootActivations.add(buildRoot("host:8000", "gw.Gateway", 0, 100));
+        rootActivations.add(buildRoot("host:8001", "w.Worker", 10, 90));
+        rootActivations.add(buildRoot("host:8000", "gw.Gateway", 200, 300));
+        SdeditTextDiagram diagram = new SdeditTextDiagram(rootActivations);
+        StringWriter writer = new StringWriter();
+        diagram.writeDiagram(writer);
+        String sdedit = writer.toString();
+        assertEquals(2, numOccurrences("Actor\\d:Actor", sdedit));
+        assertTrue(sdedit.contains("host_8000_gateway1:Gateway[a]\n"
+                + "host_8000_helper1:Helper[a]\n"
+                + "host_8001_worker1:Worker[a]\n"
+                + "host_8001_helper1:Helper[a]\n"));
+        assertTrue(sdedit.contains("Actor1:host_8001_worker1.handle\n"));
+        assertEquals(3, numOccurrences(":stop", sdedit));
+    }
+
+    public void testWriteLoop() throws Exception {
+        Activation root =
+                new Activation(null, "Main", new TestMethodImpl("main"), 1);
+        for (int i = 0; i < 100; i++) {
+            new Activation(root, "Reader", new TestMethodImpl("read"), 2);
+            new Activation(root, "Writer", new TestMethodImpl("write"), 2);
+        }
+        ActivationList rootActivations = new ActivationList();
+        rootActivations.add(root);
+        SdeditTextDiagram diagram =
+                new SdeditTextDiagram(rootActivations.collapseRepetitions());
+        StringWriter writer = new StringWriter();
+        diagram.writeDiagram(writer);
+        assertTrue(writer.toString().contains("Actor1:main1.main\n"
+                + "  [c:loop 100]\n" + "  main1:reader1.read\n"
+                + "  main1:writer1.write\n" + "  [/c]\n"));
+    }
+
+    public void testWriteDeepDiagram() throws Throwable {
+        ActivationListTest.runWithSmallStack(new Runnable() {
+            public void run() {
+                int depth = ActivationListTest.DEEP;
+                ActivationList rootActivations =
+                        ActivationListTest.buildDeepActivationList(depth);
+                SdeditTextDiagram diagram =
+                        new SdeditTextDiagram(rootActivations);
+                StringWriter writer = new StringWriter();
+                try {
+                    diagram.writeDiagram(writer);
+                } catch (IOException e) {
+                    fail(e.toString());
+                }
+                String sdedit = writer.toString();
+                assertEquals(depth, numOccurrences("\\.parse\n", sdedit));
+                assertEquals(2, numOccurrences("parser1:lexer1\\.next\n",
+                        sdedit));
+            }
+        });
+    }
+
+    private static Activation buildRoot(String vmName, String className,
+            long entryTime, long exitTime) {
+        Activation root =
+                new Activation(null, className, new TestMethodImpl("handle"),
+                        1);
+        root.setVMName(vmName);
+        new Activation(root, "Helper", new TestMethodImpl("help"), 2);
+        root.setEntryTime(entryTime);
+        root.setExitTime(exitTime);
+        return root;
+    }
+
     private int numOccurrences(String regex, String s) {
         Pattern pattern = Pattern.compile(regex);
         Matcher matcher = pattern.matcher(s);
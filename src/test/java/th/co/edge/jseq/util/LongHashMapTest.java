@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class LongHashMapTest extends TestCase {
+    public LongHashMapTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(LongHashMapTest.class);
+        return suite;
+    }
+
+    //
+    // Test methods
+    //
+
+    public void testPutGetRemove() {
+        LongHashMap<String> map = new LongHashMap<String>();
+        map.put(1, "one");
+        map.put(-1, "minus one");
+        map.put(Long.MAX_VALUE, "max");
+        map.put(1, "uno");
+        assertEquals(3, map.size());
+        assertEquals("uno", map.get(1));
+        assertEquals("minus one", map.get(-1));
+        assertEquals("max", map.get(Long.MAX_VALUE));
+        assertNull(map.get(2));
+        assertEquals("uno", map.remove(1));
+        assertNull(map.remove(1));
+        assertNull(map.get(1));
+        assertEquals(2, map.size());
+    }
+
+    public void testAgainstHashMap() {
+        LongHashMap<Long> map = new LongHashMap<Long>();
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(2000);
+            if (random.nextBoolean()) {
+                map.put(key, Long.valueOf(i));
+                expected.put(Long.valueOf(key), Long.valueOf(i));
+            } else {
+                assertEquals(expected.remove(Long.valueOf(key)), map
+                        .remove(key));
+            }
+            assertEquals(expected.get(Long.valueOf(key)), map.get(key));
+        }
+        assertEquals(expected.size(), map.size());
+        int numValues = 0;
+        for (Long value : map) {
+            assertTrue(expected.containsValue(value));
+            numValues++;
+        }
+        assertEquals(expected.size(), numValues);
+    }
+
+    public void testManyThreadsComingAndGoing() {
+        LongHashMap<String> map = new LongHashMap<String>();
+        for (long id = 0; id < 200000; id++) {
+            map.put(id, "thread");
+            if (id >= 10) {
+                assertEquals("thread", map.remove(id - 10));
+            }
+        }
+        assertEquals(10, map.size());
+        for (long id = 199990; id < 200000; id++) {
+            assertEquals("thread", map.remove(id));
+        }
+        assertEquals(0, map.size());
+        assertFalse(map.iterator().hasNext());
+    }
+}
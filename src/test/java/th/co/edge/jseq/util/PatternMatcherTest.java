@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2003-2008, by Henrik Arro and Contributors
+ *
+ * This file is part of JSeq, a tool to automatically create
+ * sequence diagrams by tracing program execution.
+ *
+ * See <http://jseq.sourceforge.net> for more information.
+ *
+ * JSeq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * JSeq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JSeq. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package th.co.edge.jseq.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class PatternMatcherTest extends TestCase {
+    public PatternMatcherTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(PatternMatcherTest.class);
+        return suite;
+    }
+
+    //
+    // Test methods
+    //
+
+    public void testExactMatch() {
+        PatternMatcher matcher = matcher("foo.Bar.baz");
+        assertTrue(matcher.matches("foo.Bar.baz"));
+        assertFalse(matcher.matches("foo.Bar.bazz"));
+        assertFalse(matcher.matches("foo.Bar.ba"));
+    }
+
+    public void testWildcards() {
+        PatternMatcher matcher = matcher("foo.*.baz", "*Test.set?p");
+        assertTrue(matcher.matches("foo.Bar.baz"));
+        assertTrue(matcher.matches("foo.a.b.c.baz"));
+        assertTrue(matcher.matches("x.FooTest.setUp"));
+        assertFalse(matcher.matches("foo.Bar.frotz"));
+        assertFalse(matcher.matches("x.FooTest.setup2"));
+    }
+
+    public void testManyPatterns() {
+        PatternMatcher matcher =
+                matcher("java.*", "javax.*", "sun.*", "com.sun.*", "*.toString",
+                        "*$*");
+        assertTrue(matcher.matches("java.lang.String"));
+        assertTrue(matcher.matches("foo.Bar.toString"));
+        assertTrue(matcher.matches("foo.Bar$1"));
+        assertFalse(matcher.matches("javafoo.Bar"));
+        assertFalse(matcher.matches("com.sunny.Day"));
+    }
+
+    public void testQualifiedMethodName() {
+        PatternMatcher matcher = matcher("foo.Bar.b*", "*.frotz");
+        assertTrue(matcher.matches("foo.Bar", "baz"));
+        assertTrue(matcher.matches("x.Y", "frotz"));
+        assertFalse(matcher.matches("foo.Bar", "qux"));
+        assertFalse(matcher.matches("foo.Ba", "r"));
+    }
+
+    public void testNoPatterns() {
+        PatternMatcher matcher =
+                new PatternMatcher(Collections.<String> emptyList());
+        assertTrue(matcher.isEmpty());
+        assertFalse(matcher.matches(""));
+        assertFalse(matcher.matches("foo"));
+    }
+
+    public void testIsComplex() {
+        assertFalse(PatternMatcher.isComplex("foo.Bar"));
+        assertFalse(PatternMatcher.isComplex("foo.*"));
+        assertFalse(PatternMatcher.isComplex("*.Bar"));
+        assertFalse(PatternMatcher.isComplex("*"));
+        assertTrue(PatternMatcher.isComplex("foo.*.Bar"));
+        assertTrue(PatternMatcher.isComplex("*.Bar*"));
+        assertTrue(PatternMatcher.isComplex("foo.Ba?"));
+        assertEquals("foo.", PatternMatcher.literalPrefix("foo.*.Bar"));
+    }
+
+    private PatternMatcher matcher(String... patterns) {
+        return new PatternMatcher(Arrays.asList(patterns));
+    }
+}